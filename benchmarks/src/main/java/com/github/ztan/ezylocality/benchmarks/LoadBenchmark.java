@@ -0,0 +1,41 @@
+package com.github.ztan.ezylocality.benchmarks;
+
+import com.github.ztan.ezylocality.core.LocalityStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures constructing a store, i.e. reading the data of a country and building its search index, with and
+ * without a H2 data table.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+
+	@Param({"SAMPLE", "AD", "AU", "US", "GB"})
+	public String country;
+
+	@Param({"false", "true"})
+	public boolean createDataFile;
+
+	@Benchmark
+	public long load() {
+		try (LocalityStore store = new LocalityStore(this.country, this.createDataFile)) {
+			return store.memoryUsage();
+		}
+	}
+}
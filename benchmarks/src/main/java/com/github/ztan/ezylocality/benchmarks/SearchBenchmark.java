@@ -0,0 +1,143 @@
+package com.github.ztan.ezylocality.benchmarks;
+
+import com.github.ztan.ezylocality.core.Locality;
+import com.github.ztan.ezylocality.core.LocalityStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures single-threaded searches against one store. The search terms are taken from the data of the country, so
+ * that the same suite runs against any country: the place name of the first row hits early in the data file, the
+ * place name of the last row hits late, and the first 4 letters of the latter make a broader term for counting and
+ * ranking. Batch lookups use postcodes picked at random from the data. The broad term with its last letter replaced by
+ * the <code>_</code> wildcard measures the searches still passed on to H2 as <code>LIKE</code> patterns, which read the
+ * data file with <code>CSVREAD</code> unless the store was constructed with <code>createDataFile</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+
+	private static final int LOOKUP_BATCH = 1000;
+
+	@Param({"SAMPLE", "AD", "AU", "US", "GB"})
+	public String country;
+
+	@Param({"false", "true"})
+	public boolean createDataFile;
+
+	private LocalityStore store;
+	private String earlyTerm;
+	private String lateTerm;
+	private String broadTerm;
+	private String wildcardTerm;
+	private List<String> postcodes;
+
+	@Setup
+	public void setUp() {
+		this.store = new LocalityStore(this.country, this.createDataFile);
+		List<Map<String, String>> rows;
+		try (Stream<Map<String, String>> stream = this.store.search("")) {
+			rows = stream.collect(Collectors.toList());
+		}
+		if (rows.isEmpty()) {
+			throw new IllegalStateException("No data for country '" + this.country + "'");
+		}
+		this.earlyTerm = rows.get(0).get("place_name");
+		this.lateTerm = rows.get(rows.size() - 1).get("place_name");
+		this.broadTerm = this.lateTerm.substring(0, Math.min(4, this.lateTerm.length()));
+		this.wildcardTerm = this.broadTerm.substring(0, this.broadTerm.length() - 1) + "_";
+		Random random = new Random(42);
+		this.postcodes = random.ints(LOOKUP_BATCH, 0, rows.size()).mapToObj(i -> rows.get(i).get("postal_code"))
+				.collect(Collectors.toList());
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.store.close();
+	}
+
+	@Benchmark
+	public List<Map<String, String>> searchEarly() {
+		try (Stream<Map<String, String>> stream = this.store.search(this.earlyTerm)) {
+			return stream.limit(10).collect(Collectors.toList());
+		}
+	}
+
+	@Benchmark
+	public List<Map<String, String>> searchLate() {
+		try (Stream<Map<String, String>> stream = this.store.search(this.lateTerm)) {
+			return stream.limit(10).collect(Collectors.toList());
+		}
+	}
+
+	@Benchmark
+	public List<Map<String, String>> prefixSearch() {
+		try (Stream<Map<String, String>> stream = this.store.prefixSearch("place_name", this.broadTerm, 10)) {
+			return stream.collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Looks up a batch of postcodes picked at random from the data; the score is per postcode.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(LOOKUP_BATCH)
+	public Map<String, List<Locality>> lookupPostcodes() {
+		return this.store.lookupPostcodes(this.postcodes);
+	}
+
+	@Benchmark
+	public int count() {
+		return this.store.count(this.broadTerm);
+	}
+
+	@Benchmark
+	public List<Map<String, String>> searchWildcard() {
+		try (Stream<Map<String, String>> stream = this.store.search(this.wildcardTerm)) {
+			return stream.limit(10).collect(Collectors.toList());
+		}
+	}
+
+	@Benchmark
+	public int countWildcard() {
+		return this.store.count(this.wildcardTerm);
+	}
+
+	@Benchmark
+	public List<Map<String, String>> searchRanked() {
+		try (Stream<Map<String, String>> stream = this.store.search(this.broadTerm, true)) {
+			return stream.sorted(Comparator.comparingDouble(m -> Double.parseDouble(m.get("rank"))))
+					.limit(10).collect(Collectors.toList());
+		}
+	}
+
+	@Benchmark
+	public List<Map<String, String>> searchTopK() {
+		try (Stream<Map<String, String>> stream = this.store.searchTopK(this.broadTerm, 10)) {
+			return stream.collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.github.ztan.ezylocality.benchmarks;
+
+import com.github.ztan.ezylocality.core.LocalityStore;
+import com.github.ztan.ezylocality.core.LocalityStores;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of several threads searching random postcodes of the country through a single shared
+ * store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class SharedStoreBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class SharedStore {
+
+		@Param({"SAMPLE", "AD", "AU", "US", "GB"})
+		public String country;
+
+		private LocalityStore store;
+		private String[] postcodes;
+
+		@Setup
+		public void setUp() {
+			this.store = LocalityStores.get(this.country);
+			try (Stream<Map<String, String>> stream = this.store.search("")) {
+				this.postcodes = stream.map(m -> m.get("postal_code")).distinct().toArray(String[]::new);
+			}
+			if (this.postcodes.length == 0) {
+				throw new IllegalStateException("No data for country '" + this.country + "'");
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			this.store.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Terms {
+		private final Random random = new Random(42);
+
+		private String next(SharedStore shared) {
+			return shared.postcodes[this.random.nextInt(shared.postcodes.length)];
+		}
+	}
+
+	@Benchmark
+	public List<Map<String, String>> search(SharedStore shared, Terms terms) {
+		try (Stream<Map<String, String>> stream = shared.store.search(terms.next(shared))) {
+			return stream.limit(10).collect(Collectors.toList());
+		}
+	}
+
+	@Benchmark
+	public int count(SharedStore shared, Terms terms) {
+		return shared.store.count(terms.next(shared));
+	}
+}
@@ -0,0 +1,126 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A node of the administrative hierarchy of a country, e.g. a state, a county or a community, with the number of
+ * localities within it. The root of the hierarchy stands for the whole country. Areas are identified by their code
+ * within their parent, or by their name when the data has no code for them, and are listed in the order they first
+ * appear in the data file.
+ * <p>
+ * The hierarchy is built in one pass over the data the first time it is used, after which reading it costs no query.
+ * It is immutable; a reloaded store builds a new one on first use.
+ *
+ * @author ztan
+ * @see LocalityStore#hierarchy()
+ */
+public final class AdminArea {
+
+	private final int id;
+	private final int level;
+	private final String code;
+	private final String name;
+	private final AdminArea parent;
+	private final Map<String, AdminArea> children = new LinkedHashMap<>();
+	private List<AdminArea> childList = Collections.emptyList();
+	private int count;
+
+	AdminArea(int id, int level, String code, String name, AdminArea parent) {
+		this.id = id;
+		this.level = level;
+		this.code = code;
+		this.name = name;
+		this.parent = parent;
+	}
+
+	/**
+	 * @return the index of the area in its hierarchy
+	 */
+	int id() {
+		return this.id;
+	}
+
+	/**
+	 * @return the child area with the given key, added at the end of the children when it is new
+	 */
+	AdminArea child(String key, String code, String name, List<AdminArea> areas) {
+		AdminArea child = this.children.get(key);
+		if (child == null) {
+			child = new AdminArea(areas.size(), this.level + 1, code, name, this);
+			areas.add(child);
+			this.children.put(key, child);
+		}
+		return child;
+	}
+
+	void increment() {
+		this.count++;
+	}
+
+	/**
+	 * Freezes the list of children, once the hierarchy is complete.
+	 */
+	void seal() {
+		this.childList = Collections.unmodifiableList(new ArrayList<>(this.children.values()));
+	}
+
+	/**
+	 * @return 0 for the country, 1 for the areas of 'admin_code1', 2 for 'admin_code2' and 3 for 'admin_code3'
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * @return the admin code of the area, or an empty string for the country and for areas known by name only
+	 */
+	public String getCode() {
+		return this.code;
+	}
+
+	/**
+	 * @return the admin name of the area, or an empty string for the country and for areas known by code only
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the enclosing area, or <code>null</code> for the country
+	 */
+	public AdminArea getParent() {
+		return this.parent;
+	}
+
+	/**
+	 * @return the number of localities within the area, including those of its sub-areas
+	 */
+	public int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * @return the sub-areas of the area, empty at the lowest level
+	 */
+	public List<AdminArea> getChildren() {
+		return this.childList;
+	}
+
+	/**
+	 * @param key the code of a sub-area, or its name when it has no code
+	 * @return the sub-area, or <code>null</code> when there is none
+	 */
+	public AdminArea getChild(String key) {
+		return this.children.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return "AdminArea{level=" + this.level + ", code=" + this.code + ", name=" + this.name + ", count="
+				+ this.count + "}";
+	}
+}
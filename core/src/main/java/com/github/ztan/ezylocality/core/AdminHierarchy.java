@@ -0,0 +1,149 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * The tree of {@link AdminArea}s of a {@link LocalityTable}, built from the 'admin_code1/2/3' and 'admin_name1/2/3'
+ * columns, with the deepest area of every row so that the areas of a set of rows are counted in a single pass.
+ * <p>
+ * A row belongs to the areas of its levels down to the first one which has neither a code nor a name.
+ */
+final class AdminHierarchy {
+
+	static final int LEVELS = 3;
+
+	private static final int[] CODE_COLUMNS = new int[LEVELS];
+	private static final int[] NAME_COLUMNS = new int[LEVELS];
+
+	static {
+		for (int level = 1; level <= LEVELS; level++) {
+			CODE_COLUMNS[level - 1] = LocalityStore.COLUMNS.indexOf("admin_code" + level);
+			NAME_COLUMNS[level - 1] = LocalityStore.COLUMNS.indexOf("admin_name" + level);
+		}
+	}
+
+	private final AdminArea root;
+	private final AdminArea[] areas;
+	private final int[] rowAreas;
+
+	private AdminHierarchy(AdminArea root, AdminArea[] areas, int[] rowAreas) {
+		this.root = root;
+		this.areas = areas;
+		this.rowAreas = rowAreas;
+	}
+
+	/**
+	 * Builds the hierarchy of the table, or an empty one when <code>table</code> is <code>null</code>.
+	 */
+	static AdminHierarchy build(LocalityTable table) {
+		List<AdminArea> areas = new ArrayList<>();
+		AdminArea root = new AdminArea(0, 0, "", "", null);
+		areas.add(root);
+		int size = table == null ? 0 : table.size();
+		int[] rowAreas = new int[size];
+		for (int row = 0; row < size; row++) {
+			AdminArea area = root;
+			area.increment();
+			for (int level = 0; level < LEVELS; level++) {
+				String code = table.get(row, CODE_COLUMNS[level]);
+				String name = table.get(row, NAME_COLUMNS[level]);
+				if (code.isEmpty() && name.isEmpty()) {
+					break;
+				}
+				area = area.child(code.isEmpty() ? name : code, code, name, areas);
+				area.increment();
+			}
+			rowAreas[row] = area.id();
+		}
+		for (AdminArea area : areas) {
+			area.seal();
+		}
+		return new AdminHierarchy(root, areas.toArray(new AdminArea[0]), rowAreas);
+	}
+
+	AdminArea root() {
+		return this.root;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the hierarchy holds on the Java heap
+	 */
+	long memoryUsage() {
+		return 16 + 4L * this.rowAreas.length + 160L * this.areas.length;
+	}
+
+	/**
+	 * @return a counter of the areas of the rows it is given, by area id
+	 */
+	Counter counter() {
+		return new Counter();
+	}
+
+	/**
+	 * @return the deepest area of a result row, as returned by {@link LocalityStore#search(String)}, or the root when
+	 * the row is not in the hierarchy
+	 */
+	private AdminArea areaOf(Map<String, String> item) {
+		AdminArea area = this.root;
+		for (int level = 1; level <= LEVELS; level++) {
+			String code = item.getOrDefault("admin_code" + level, "");
+			AdminArea child = area.getChild(code.isEmpty() ? item.getOrDefault("admin_name" + level, "") : code);
+			if (child == null) {
+				break;
+			}
+			area = child;
+		}
+		return area;
+	}
+
+	/**
+	 * Counts the rows of a result set per area, including each row in all the areas above its own.
+	 */
+	final class Counter implements IntConsumer {
+		private final int[] counts = new int[AdminHierarchy.this.areas.length];
+		private int total;
+
+		/**
+		 * Counts a row of the table.
+		 */
+		@Override
+		public void accept(int row) {
+			add(AdminHierarchy.this.areas[AdminHierarchy.this.rowAreas[row]]);
+		}
+
+		/**
+		 * Counts a result row, matched to its area by its admin codes and names.
+		 */
+		void accept(Map<String, String> item) {
+			add(areaOf(item));
+		}
+
+		private void add(AdminArea area) {
+			this.total++;
+			for (; area.getLevel() > 0; area = area.getParent()) {
+				this.counts[area.id()]++;
+			}
+		}
+
+		int total() {
+			return this.total;
+		}
+
+		/**
+		 * @return the areas of a level which have counted rows, with their counts
+		 */
+		List<Map.Entry<AdminArea, Integer>> counts(int level) {
+			List<Map.Entry<AdminArea, Integer>> counts = new ArrayList<>();
+			for (AdminArea area : AdminHierarchy.this.areas) {
+				if (area.getLevel() == level && this.counts[area.id()] > 0) {
+					counts.add(new AbstractMap.SimpleImmutableEntry<>(area, this.counts[area.id()]));
+				}
+			}
+			return counts;
+		}
+	}
+}
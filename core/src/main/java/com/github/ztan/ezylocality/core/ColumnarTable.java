@@ -0,0 +1,543 @@
+package com.github.ztan.ezylocality.core;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * An in-memory copy of the rows of a country data source, stored column by column. String values are dictionary
+ * encoded per column, so repeated values (e.g. admin names) are stored once and each row only holds an integer code.
+ * Codes are narrowed to the smallest type holding the dictionary of their column, i.e. a <code>byte</code> for
+ * columns with up to 256 distinct values like <code>country_code</code> or <code>accuracy</code>, and a
+ * <code>short</code> for up to 65536 values like most admin names. The folded form of every searchable value is
+ * computed once per dictionary entry at load time.
+ * <p>
+ * Latitude and longitude are kept as <code>int</code> millionths of a degree instead, which is exact for the decimal
+ * coordinates of geonames data. The rare value which would not read back the same, e.g. <code>12.50</code>, is kept
+ * as text on the side.
+ */
+final class ColumnarTable implements LocalityTable {
+
+	/**
+	 * The scale of quantized coordinates, i.e. the number of units per degree.
+	 */
+	static final int COORDINATE_SCALE = 1_000_000;
+	private static final int COORDINATE_DIGITS = 6;
+	private static final int NO_COORDINATE = Integer.MIN_VALUE;
+	static final int TEXT_COORDINATE = Integer.MIN_VALUE + 1;
+
+	private final byte[][] byteCodes;
+	private final short[][] shortCodes;
+	private final int[][] intCodes;
+	private final String[][] dictionaries;
+	private final int[] searchColumns;
+	private final String[][] keys;
+	private final int latitudeColumn;
+	private final int longitudeColumn;
+	private final int[] latitudes;
+	private final int[] longitudes;
+	private final Map<Integer, String> coordinateText;
+	private final int size;
+
+	private ColumnarTable(Builder builder) {
+		this.size = builder.size;
+		int columnCount = builder.codes.length;
+		this.byteCodes = new byte[columnCount][];
+		this.shortCodes = new short[columnCount][];
+		this.intCodes = new int[columnCount][];
+		this.dictionaries = new String[columnCount][];
+		for (int c = 0; c < columnCount; c++) {
+			if (builder.codes[c] != null) {
+				this.dictionaries[c] = builder.dictionaries.get(c).toArray(new String[0]);
+				narrow(c, builder.codes[c]);
+			}
+		}
+		this.searchColumns = builder.searchColumns;
+		this.keys = new String[this.searchColumns.length][];
+		for (int s = 0; s < this.keys.length; s++) {
+			String[] dictionary = this.dictionaries[this.searchColumns[s]];
+			int[] previousCodes = builder.previousCodes == null ? null : builder.previousCodes[this.searchColumns[s]];
+			this.keys[s] = new String[dictionary.length];
+			for (int code = 0; code < dictionary.length; code++) {
+				this.keys[s][code] = previousCodes != null && previousCodes[code] >= 0
+						? builder.previous.keys[s][previousCodes[code]] : SearchKeys.fold(dictionary[code]);
+			}
+		}
+		this.latitudeColumn = builder.latitudeColumn;
+		this.longitudeColumn = builder.longitudeColumn;
+		this.latitudes = Arrays.copyOf(builder.latitudes, this.size);
+		this.longitudes = Arrays.copyOf(builder.longitudes, this.size);
+		this.coordinateText = builder.coordinateText;
+	}
+
+	/**
+	 * Stores the codes of a column in the narrowest array able to hold all codes of its dictionary.
+	 */
+	private void narrow(int column, int[] codes) {
+		int entries = this.dictionaries[column].length;
+		if (entries <= 1 << Byte.SIZE) {
+			byte[] narrowed = new byte[this.size];
+			for (int row = 0; row < this.size; row++) {
+				narrowed[row] = (byte) codes[row];
+			}
+			this.byteCodes[column] = narrowed;
+		} else if (entries <= 1 << Short.SIZE) {
+			short[] narrowed = new short[this.size];
+			for (int row = 0; row < this.size; row++) {
+				narrowed[row] = (short) codes[row];
+			}
+			this.shortCodes[column] = narrowed;
+		} else {
+			this.intCodes[column] = Arrays.copyOf(codes, this.size);
+		}
+	}
+
+	/**
+	 * Reads all rows of the given result set. Column values are read in the same way as they are returned by
+	 * {@link LocalityStore#search(String)}, i.e. <code>null</code> becomes an empty string.
+	 *
+	 * @param resultSet     a result set containing the columns <code>columns</code>
+	 * @param columns       the names of all the columns to read
+	 * @param searchColumns the names of the columns to build folded search keys for
+	 */
+	static ColumnarTable load(ResultSet resultSet, List<String> columns, List<String> searchColumns)
+			throws SQLException {
+		return load(resultSet, columns, searchColumns, null);
+	}
+
+	/**
+	 * Reads all rows of the given result set, sharing the values also found in a previous version of the table.
+	 *
+	 * @param previous a table loaded from a previous version of the data, or <code>null</code>
+	 * @see Builder#Builder(List, List, ColumnarTable)
+	 */
+	static ColumnarTable load(ResultSet resultSet, List<String> columns, List<String> searchColumns,
+			ColumnarTable previous) throws SQLException {
+		Builder builder = new Builder(columns, searchColumns, previous);
+		String[] row = new String[columns.size()];
+		while (resultSet.next()) {
+			for (int c = 0; c < row.length; c++) {
+				row[c] = resultSet.getString(c + 1);
+			}
+			builder.add(row);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Reads a geonames tab delimited data file, without going through H2, see {@link TsvParser}.
+	 *
+	 * @param resource      the data file
+	 * @param columns       the names of the columns, in the order they appear in the file
+	 * @param searchColumns the names of the columns to build folded search keys for
+	 */
+	static ColumnarTable read(URL resource, List<String> columns, List<String> searchColumns) throws IOException {
+		return read(resource, columns, searchColumns, null);
+	}
+
+	/**
+	 * Reads a geonames tab delimited data file, sharing the values also found in a previous version of the table.
+	 *
+	 * @param previous a table read from a previous version of the data file, or <code>null</code>
+	 * @see Builder#Builder(List, List, ColumnarTable)
+	 */
+	static ColumnarTable read(URL resource, List<String> columns, List<String> searchColumns,
+			ColumnarTable previous) throws IOException {
+		Builder builder = new Builder(columns, searchColumns, previous);
+		for (TsvParser.Chunk chunk : new TsvParser(columns).parse(resource)) {
+			builder.add(chunk);
+		}
+		return builder.build();
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public String get(int row, int column) {
+		if (column == this.latitudeColumn) {
+			return coordinate(row, 0, this.latitudes[row]);
+		} else if (column == this.longitudeColumn) {
+			return coordinate(row, 1, this.longitudes[row]);
+		}
+		return this.dictionaries[column][code(row, column)];
+	}
+
+	private String coordinate(int row, int axis, int value) {
+		return value == TEXT_COORDINATE ? this.coordinateText.get(row << 1 | axis) : formatCoordinate(value);
+	}
+
+	/**
+	 * @return the shortest plain decimal form of a quantized coordinate, e.g. <code>-34</code> or
+	 * <code>138.8167</code>
+	 */
+	static String formatCoordinate(int value) {
+		if (value == NO_COORDINATE) {
+			return "";
+		}
+		StringBuilder text = new StringBuilder(12);
+		if (value < 0) {
+			text.append('-');
+		}
+		int units = Math.abs(value);
+		text.append(units / COORDINATE_SCALE);
+		int fraction = units % COORDINATE_SCALE;
+		if (fraction != 0) {
+			int fractionDigits = COORDINATE_DIGITS;
+			while (fraction % 10 == 0) {
+				fraction /= 10;
+				fractionDigits--;
+			}
+			String digits = Integer.toString(fraction);
+			text.append('.');
+			for (int i = digits.length(); i < fractionDigits; i++) {
+				text.append('0');
+			}
+			text.append(digits);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return the shortest plain decimal form of a coordinate, e.g. <code>-34</code> or <code>138.8167</code>
+	 */
+	static String formatCoordinate(double value) {
+		if (Double.isNaN(value)) {
+			return "";
+		}
+		return new BigDecimal(Double.toString(value)).stripTrailingZeros().toPlainString();
+	}
+
+	@Override
+	public String key(int row, int searchColumn) {
+		return this.keys[searchColumn][code(row, this.searchColumns[searchColumn])];
+	}
+
+	@Override
+	public int keyCount() {
+		return this.keys.length;
+	}
+
+	@Override
+	public double latitude(int row) {
+		return toDegrees(row, 0, this.latitudes[row]);
+	}
+
+	@Override
+	public double longitude(int row) {
+		return toDegrees(row, 1, this.longitudes[row]);
+	}
+
+	private double toDegrees(int row, int axis, int value) {
+		if (value == NO_COORDINATE) {
+			return Double.NaN;
+		} else if (value == TEXT_COORDINATE) {
+			return Builder.parseCoordinate(this.coordinateText.get(row << 1 | axis));
+		}
+		return (double) value / COORDINATE_SCALE;
+	}
+
+	@Override
+	public long memoryUsage() {
+		long bytes = 0;
+		for (int c = 0; c < this.dictionaries.length; c++) {
+			if (this.byteCodes[c] != null) {
+				bytes += 16 + this.size;
+			} else if (this.shortCodes[c] != null) {
+				bytes += 16 + 2L * this.size;
+			} else if (this.intCodes[c] != null) {
+				bytes += 16 + 4L * this.size;
+			}
+			if (this.dictionaries[c] != null) {
+				bytes += sizeOf(this.dictionaries[c], null);
+			}
+		}
+		for (int s = 0; s < this.keys.length; s++) {
+			bytes += sizeOf(this.keys[s], this.dictionaries[this.searchColumns[s]]);
+		}
+		bytes += 2 * (16 + 4L * this.size);
+		for (String text : this.coordinateText.values()) {
+			bytes += 80 + 2L * text.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return an estimate of the size of a string array and its strings, not counting the strings also found at the
+	 * same index of <code>shared</code>
+	 */
+	private static long sizeOf(String[] strings, String[] shared) {
+		long bytes = 16 + 4L * strings.length;
+		for (int i = 0; i < strings.length; i++) {
+			if (shared == null || strings[i] != shared[i]) {
+				bytes += 40 + 2L * strings[i].length();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the distinct values of a column, indexed by code, or <code>null</code> for quantized coordinate
+	 * columns
+	 */
+	String[] dictionary(int column) {
+		return this.dictionaries[column];
+	}
+
+	/**
+	 * @return the dictionary code of a column value
+	 */
+	int code(int row, int column) {
+		byte[] bytes = this.byteCodes[column];
+		if (bytes != null) {
+			return bytes[row] & 0xFF;
+		}
+		short[] shorts = this.shortCodes[column];
+		if (shorts != null) {
+			return shorts[row] & 0xFFFF;
+		}
+		return this.intCodes[column][row];
+	}
+
+	/**
+	 * Accumulates rows and dictionary encodes them column by column.
+	 */
+	static final class Builder {
+		private final int[][] codes;
+		private final List<List<String>> dictionaries;
+		private final List<Map<String, Integer>> lookups;
+		private final int[] searchColumns;
+		private final int latitudeColumn;
+		private final int longitudeColumn;
+		private ColumnarTable previous;
+		private int[][] previousCodes;
+		private final Map<Integer, String> coordinateText = new HashMap<>();
+		private int[] latitudes;
+		private int[] longitudes;
+		private int size;
+
+		Builder(List<String> columns, List<String> searchColumns) {
+			int capacity = 1024;
+			this.latitudeColumn = columns.indexOf("latitude");
+			this.longitudeColumn = columns.indexOf("longitude");
+			this.latitudes = new int[capacity];
+			this.longitudes = new int[capacity];
+			this.codes = new int[columns.size()][];
+			this.dictionaries = new ArrayList<>();
+			this.lookups = new ArrayList<>();
+			for (int c = 0; c < columns.size(); c++) {
+				if (c != this.latitudeColumn && c != this.longitudeColumn) {
+					this.codes[c] = new int[capacity];
+				}
+				this.dictionaries.add(new ArrayList<>());
+				this.lookups.add(new HashMap<>());
+			}
+			this.searchColumns = searchColumns.stream().mapToInt(columns::indexOf).toArray();
+		}
+
+		/**
+		 * Creates a builder sharing the dictionary strings and search keys of a previous version of the table, so
+		 * that a reloaded table only allocates the values which have changed, and the values of both versions are
+		 * not held twice while they coexist.
+		 *
+		 * @param previous a table built from a previous version of the same data, or <code>null</code>
+		 */
+		Builder(List<String> columns, List<String> searchColumns, ColumnarTable previous) {
+			this(columns, searchColumns);
+			if (previous == null || previous.dictionaries.length != this.codes.length
+					|| !Arrays.equals(previous.searchColumns, this.searchColumns)) {
+				return;
+			}
+			this.previous = previous;
+			this.previousCodes = new int[this.codes.length][];
+			for (int c = 0; c < this.codes.length; c++) {
+				String[] dictionary = previous.dictionaries[c];
+				if (this.codes[c] == null || dictionary == null) {
+					continue;
+				}
+				// values of the previous version are known to the lookup by a negative code until they are added
+				Map<String, Integer> lookup = this.lookups.get(c);
+				for (int code = 0; code < dictionary.length; code++) {
+					lookup.put(dictionary[code], -1 - code);
+				}
+				this.previousCodes[c] = new int[16];
+			}
+		}
+
+		/**
+		 * Adds a row. <code>null</code> values are stored as empty strings.
+		 *
+		 * @param row the values of the row, in column order
+		 */
+		void add(String[] row) {
+			if (this.size == capacity()) {
+				grow(this.size + 1);
+			}
+			for (int c = 0; c < this.codes.length; c++) {
+				String value = ofNullable(c < row.length ? row[c] : null).orElse("");
+				if (this.codes[c] != null) {
+					this.codes[c][this.size] = encode(c, value);
+				} else {
+					int axis = c == this.latitudeColumn ? 0 : 1;
+					int coordinate = quantizeCoordinate(value);
+					if (coordinate == TEXT_COORDINATE) {
+						this.coordinateText.put(this.size << 1 | axis, value);
+					}
+					(axis == 0 ? this.latitudes : this.longitudes)[this.size] = coordinate;
+				}
+			}
+			this.size++;
+		}
+
+		/**
+		 * Adds the rows of a parsed chunk, recoding its column values against the dictionaries of the table.
+		 */
+		void add(TsvParser.Chunk chunk) {
+			if (this.size + chunk.size > capacity()) {
+				grow(this.size + chunk.size);
+			}
+			for (int c = 0; c < this.codes.length; c++) {
+				String[] dictionary = chunk.dictionary(c);
+				if (dictionary == null) {
+					continue;
+				}
+				int[] recode = new int[dictionary.length];
+				for (int code = 0; code < dictionary.length; code++) {
+					recode[code] = encode(c, dictionary[code]);
+				}
+				for (int row = 0; row < chunk.size; row++) {
+					this.codes[c][this.size + row] = recode[chunk.codes[c][row]];
+				}
+			}
+			System.arraycopy(chunk.latitudes, 0, this.latitudes, this.size, chunk.size);
+			System.arraycopy(chunk.longitudes, 0, this.longitudes, this.size, chunk.size);
+			for (Map.Entry<Integer, String> text : chunk.coordinateText.entrySet()) {
+				this.coordinateText.put((this.size << 1) + text.getKey(), text.getValue());
+			}
+			this.size += chunk.size;
+		}
+
+		/**
+		 * @return the code of a value in the dictionary of a column, adding it when it is new
+		 */
+		private int encode(int column, String value) {
+			Integer code = this.lookups.get(column).get(value);
+			if (code == null || code < 0) {
+				code = addValue(column, value, code == null ? -1 : -1 - code);
+			}
+			return code;
+		}
+
+		/**
+		 * Adds a value to the dictionary of a column.
+		 *
+		 * @param previousCode the code of the value in the previous version of the table, or -1
+		 * @return the code of the value
+		 */
+		private int addValue(int column, String value, int previousCode) {
+			List<String> dictionary = this.dictionaries.get(column);
+			String shared = previousCode < 0 ? value : this.previous.dictionaries[column][previousCode];
+			int code = dictionary.size();
+			dictionary.add(shared);
+			this.lookups.get(column).put(shared, code);
+			if (this.previousCodes != null && this.previousCodes[column] != null) {
+				if (code == this.previousCodes[column].length) {
+					this.previousCodes[column] = Arrays.copyOf(this.previousCodes[column], code * 2);
+				}
+				this.previousCodes[column][code] = previousCode;
+			}
+			return code;
+		}
+
+		static double parseCoordinate(String value) {
+			try {
+				return value.isEmpty() ? Double.NaN : Double.parseDouble(value);
+			} catch (NumberFormatException ex) {
+				return Double.NaN;
+			}
+		}
+
+		/**
+		 * @return the coordinate in millionths of a degree, or a marker for an empty value or for a value which
+		 * {@link ColumnarTable#formatCoordinate(int)} would not give back as is
+		 */
+		static int quantizeCoordinate(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+			return quantizeCoordinate(bytes, 0, bytes.length);
+		}
+
+		/**
+		 * Quantizes a coordinate read as ASCII from a range of bytes, like {@link #quantizeCoordinate(String)}.
+		 */
+		static int quantizeCoordinate(byte[] value, int start, int end) {
+			if (start == end) {
+				return NO_COORDINATE;
+			}
+			boolean negative = value[start] == '-';
+			int i = negative ? start + 1 : start;
+			int integerStart = i;
+			long units = 0;
+			while (i < end && value[i] >= '0' && value[i] <= '9' && i - integerStart < 3) {
+				units = units * 10 + (value[i++] - '0');
+			}
+			int integerDigits = i - integerStart;
+			if (integerDigits == 0 || (integerDigits > 1 && value[integerStart] == '0')) {
+				return TEXT_COORDINATE;
+			}
+			int fractionDigits = 0;
+			if (i < end && value[i] == '.') {
+				for (i++; i < end && value[i] >= '0' && value[i] <= '9' && fractionDigits < COORDINATE_DIGITS;
+					 i++, fractionDigits++) {
+					units = units * 10 + (value[i] - '0');
+				}
+				if (fractionDigits == 0 || value[i - 1] == '0') {
+					return TEXT_COORDINATE;
+				}
+			}
+			if (i < end || (negative && units == 0) || units > 360L * pow10(fractionDigits)) {
+				return TEXT_COORDINATE;
+			}
+			units *= pow10(COORDINATE_DIGITS - fractionDigits);
+			return (int) (negative ? -units : units);
+		}
+
+		private static long pow10(int exponent) {
+			long value = 1;
+			for (int i = 0; i < exponent; i++) {
+				value *= 10;
+			}
+			return value;
+		}
+
+		private int capacity() {
+			return this.latitudes.length;
+		}
+
+		private void grow(int minCapacity) {
+			int capacity = Math.max(capacity() * 2, minCapacity);
+			for (int c = 0; c < this.codes.length; c++) {
+				if (this.codes[c] != null) {
+					this.codes[c] = Arrays.copyOf(this.codes[c], capacity);
+				}
+			}
+			this.latitudes = Arrays.copyOf(this.latitudes, capacity);
+			this.longitudes = Arrays.copyOf(this.longitudes, capacity);
+		}
+
+		ColumnarTable build() {
+			return new ColumnarTable(this);
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package com.github.ztan.ezylocality.core;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.List;
 
 /**
  * String compare algorithm from http://www.catalysoft.com/articles/StrikeAMatch.html
@@ -13,52 +11,97 @@ final class CompareUtils {
 	 * @return lexical similarity value in the range [0,1]
 	 */
 	static double calculateSimilarity(String text1, String text2) {
-		List<String> pairs1 = wordLetterPairs(text1.toUpperCase());
-		List<String> pairs2 = wordLetterPairs(text2.toUpperCase());
-		int intersection = 0;
-		int union = pairs1.size() + pairs2.size();
-		for (Object pair1 : pairs1) {
-			for (int j = 0; j < pairs2.size(); j++) {
-				Object pair2 = pairs2.get(j);
-				if (pair1.equals(pair2)) {
-					intersection++;
-					pairs2.remove(j);
-					break;
-				}
-			}
-		}
-
-		return (2.0 * intersection) / union;
+		Scorer scorer = new Scorer(text1);
+		scorer.add(text2);
+		return scorer.similarity();
 	}
 
 	/**
-	 * @return an array of adjacent letter pairs contained in the input string
+	 * @return whether the character separates words, i.e. whether it matches the regular expression <code>\s</code>
 	 */
-	private static String[] letterPairs(String str) {
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
 
-		int numPairs = str.length() - 1;
-		String[] pairs = new String[numPairs];
-		for (int i = 0; i < numPairs; i++) {
-			pairs[i] = str.substring(i, i + 2);
-		}
-		return pairs;
+	/**
+	 * @return the adjacent upper case letter pair starting at <code>i</code>, packed into an <code>int</code>
+	 */
+	private static int letterPair(CharSequence str, int i) {
+		return Character.toUpperCase(str.charAt(i)) << 16 | Character.toUpperCase(str.charAt(i + 1));
 	}
 
 	/**
-	 * @return an ArrayList of 2-character Strings.
+	 * Scores texts against a fixed search term without allocating. The letter pairs of the term are packed into
+	 * <code>int</code> codes and kept as a sorted multiset; the pairs of a scored text are matched against it through a
+	 * reusable array of counters. A scorer is not thread safe.
 	 */
-	private static List<String> wordLetterPairs(String str) {
+	static final class Scorer {
+		private final int[] pairs;
+		private final int[] counts;
+		private final int[] matched;
+		private final int pairCount;
+		private int intersection;
+		private int textPairCount;
+
+		/**
+		 * @param text the search term
+		 */
+		Scorer(String text) {
+			int[] all = new int[Math.max(text.length() - 1, 0)];
+			int size = 0;
+			for (int i = 0; i + 1 < text.length(); i++) {
+				if (!isWhitespace(text.charAt(i)) && !isWhitespace(text.charAt(i + 1))) {
+					all[size++] = letterPair(text, i);
+				}
+			}
+			Arrays.sort(all, 0, size);
+			int[] pairs = new int[size];
+			int[] counts = new int[size];
+			int distinct = 0;
+			for (int i = 0; i < size; i++) {
+				if (distinct == 0 || pairs[distinct - 1] != all[i]) {
+					pairs[distinct++] = all[i];
+				}
+				counts[distinct - 1]++;
+			}
+			this.pairs = Arrays.copyOf(pairs, distinct);
+			this.counts = Arrays.copyOf(counts, distinct);
+			this.matched = new int[distinct];
+			this.pairCount = size;
+		}
+
+		/**
+		 * Starts scoring a new text.
+		 */
+		void reset() {
+			Arrays.fill(this.matched, 0);
+			this.intersection = 0;
+			this.textPairCount = 0;
+		}
 
-		List<String> allPairs = new ArrayList<>();
-		// Tokenize the string and put the tokens/words into an array
-		String[] words = str.split("\\s");
-		// For each word
-		for (String word : words) {
-			// Find the pairs of characters
-			String[] pairsInWord = letterPairs(word);
-			allPairs.addAll(Arrays.asList(pairsInWord));
+		/**
+		 * Adds a part of the scored text, as if it was separated from the previous parts by a whitespace.
+		 */
+		void add(CharSequence text) {
+			for (int i = 0; i + 1 < text.length(); i++) {
+				if (isWhitespace(text.charAt(i)) || isWhitespace(text.charAt(i + 1))) {
+					continue;
+				}
+				this.textPairCount++;
+				int index = Arrays.binarySearch(this.pairs, letterPair(text, i));
+				if (index >= 0 && this.matched[index] < this.counts[index]) {
+					this.matched[index]++;
+					this.intersection++;
+				}
+			}
 		}
 
-		return allPairs;
+		/**
+		 * @return lexical similarity value in the range [0,1] between the search term and the text added since the
+		 * last reset
+		 */
+		double similarity() {
+			return (2.0 * this.intersection) / (this.pairCount + this.textPairCount);
+		}
 	}
 }
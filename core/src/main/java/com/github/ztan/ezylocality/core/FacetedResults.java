@@ -0,0 +1,73 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The first results of a search, with the total number of matching localities and their counts per administrative
+ * area, all gathered in the same pass over the matches.
+ *
+ * @author ztan
+ * @see LocalityStore#searchFaceted(String, int)
+ * @see LocalityStore#queryFaceted(LocalityQuery, int)
+ */
+public final class FacetedResults {
+
+	private final List<Map<String, String>> results;
+	private final int totalCount;
+	private final List<Map<AdminArea, Integer>> facets;
+
+	FacetedResults(List<Map<String, String>> results, AdminHierarchy.Counter counter) {
+		this.results = Collections.unmodifiableList(results);
+		this.totalCount = counter.total();
+		List<Map<AdminArea, Integer>> facets = new ArrayList<>();
+		for (int level = 1; level <= AdminHierarchy.LEVELS; level++) {
+			List<Map.Entry<AdminArea, Integer>> counts = counter.counts(level);
+			// stable, so that areas with the same count keep the order of the data file
+			counts.sort(Map.Entry.<AdminArea, Integer>comparingByValue(Comparator.reverseOrder()));
+			Map<AdminArea, Integer> facet = new LinkedHashMap<>();
+			for (Map.Entry<AdminArea, Integer> count : counts) {
+				facet.put(count.getKey(), count.getValue());
+			}
+			facets.add(Collections.unmodifiableMap(facet));
+		}
+		this.facets = Collections.unmodifiableList(facets);
+	}
+
+	/**
+	 * @return the first results, in the order of their appearance in the data file. Each element has the same keys
+	 * as the elements returned by {@link LocalityStore#search(String)}.
+	 */
+	public List<Map<String, String>> getResults() {
+		return this.results;
+	}
+
+	/**
+	 * @return the number of matching localities, which may exceed the number of results returned
+	 */
+	public int getTotalCount() {
+		return this.totalCount;
+	}
+
+	/**
+	 * @param level 1 for the areas of 'admin_code1', 2 for 'admin_code2' and 3 for 'admin_code3'
+	 * @return the areas of the level containing matching localities, mapped to the number of those localities, in
+	 * descending order of count
+	 * @throws IllegalArgumentException if the level is not between 1 and 3
+	 */
+	public Map<AdminArea, Integer> getFacets(int level) {
+		if (level < 1 || level > AdminHierarchy.LEVELS) {
+			throw new IllegalArgumentException("Invalid admin level " + level + ".");
+		}
+		return this.facets.get(level - 1);
+	}
+
+	@Override
+	public String toString() {
+		return "FacetedResults{totalCount=" + this.totalCount + ", results=" + this.results.size() + "}";
+	}
+}
@@ -0,0 +1,208 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bigram index over the distinct values of a {@link PrefixIndex}, finding the values within a small edit distance
+ * of a misspelt term without comparing the term with every value.
+ * <p>
+ * Values and terms are padded with a boundary character at both ends, so a value of n characters has n + 1 bigrams,
+ * and an edit changes at most 2 of them. A value within k edits of a term of n characters therefore shares at least
+ * max(n, m) + 1 - 2k bigrams with it, m being the length of the value. Only the values reaching that count from the
+ * posting lists of the bigrams of the term are checked with the actual Levenshtein distance. Terms too short for the
+ * count to filter anything are compared with every value, most of which are ruled out by their length alone.
+ */
+final class FuzzyIndex {
+
+	/**
+	 * The largest edit distance searched for, beyond which almost every short name matches.
+	 */
+	static final int MAX_DISTANCE = 2;
+
+	private static final char BOUNDARY = '\0';
+
+	private final PrefixIndex values;
+	/**
+	 * The positions of the values in {@link #values} by bigram, ascending and repeated for each occurrence.
+	 */
+	private final Map<Integer, int[]> postings;
+
+	private FuzzyIndex(PrefixIndex values, Map<Integer, int[]> postings) {
+		this.values = values;
+		this.postings = postings;
+	}
+
+	/**
+	 * Builds the index over the distinct values of a prefix index.
+	 */
+	static FuzzyIndex build(PrefixIndex values) {
+		Map<Integer, int[]> counts = new HashMap<>();
+		for (int i = 0; i < values.keyCount(); i++) {
+			String value = values.key(i);
+			for (int j = 0; j <= value.length(); j++) {
+				counts.computeIfAbsent(bigram(value, j), k -> new int[1])[0]++;
+			}
+		}
+		Map<Integer, int[]> postings = new HashMap<>(counts.size() * 2);
+		for (Map.Entry<Integer, int[]> count : counts.entrySet()) {
+			postings.put(count.getKey(), new int[count.getValue()[0]]);
+			count.getValue()[0] = 0;
+		}
+		for (int i = 0; i < values.keyCount(); i++) {
+			String value = values.key(i);
+			for (int j = 0; j <= value.length(); j++) {
+				int gram = bigram(value, j);
+				postings.get(gram)[counts.get(gram)[0]++] = i;
+			}
+		}
+		return new FuzzyIndex(values, postings);
+	}
+
+	/**
+	 * @return the bigram ending at a position of the padded text, i.e. starting at <code>offset - 1</code>
+	 */
+	private static int bigram(String text, int offset) {
+		char first = offset == 0 ? BOUNDARY : text.charAt(offset - 1);
+		char second = offset == text.length() ? BOUNDARY : text.charAt(offset);
+		return first << 16 | second;
+	}
+
+	/**
+	 * Finds the values within an edit distance of a term.
+	 *
+	 * @param term        a folded term
+	 * @param maxDistance the largest Levenshtein distance, at most {@value #MAX_DISTANCE}
+	 * @return the positions of the matching values, each followed by its distance, in ascending order of distance
+	 * and then of value
+	 */
+	int[] find(String term, int maxDistance) {
+		int length = term.length();
+		List<int[]> matches = new ArrayList<>();
+		if (length + 1 - 2 * maxDistance <= 0) {
+			for (int i = 0; i < this.values.keyCount(); i++) {
+				verify(term, i, maxDistance, matches);
+			}
+		} else {
+			int[] shared = countSharedBigrams(term);
+			int minimum = length + 1 - 2 * maxDistance;
+			for (int i = 0; i < shared.length; i++) {
+				if (shared[i] >= minimum
+						&& shared[i] >= Math.max(length, this.values.key(i).length()) + 1 - 2 * maxDistance) {
+					verify(term, i, maxDistance, matches);
+				}
+			}
+		}
+		matches.sort((a, b) -> a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[0], b[0]));
+		int[] results = new int[matches.size() * 2];
+		for (int i = 0; i < matches.size(); i++) {
+			results[2 * i] = matches.get(i)[0];
+			results[2 * i + 1] = matches.get(i)[1];
+		}
+		return results;
+	}
+
+	/**
+	 * @return the number of bigrams each value shares with the term, counting repeated bigrams as often as they
+	 * occur in both
+	 */
+	private int[] countSharedBigrams(String term) {
+		int[] grams = new int[term.length() + 1];
+		for (int j = 0; j <= term.length(); j++) {
+			grams[j] = bigram(term, j);
+		}
+		Arrays.sort(grams);
+		int[] shared = new int[this.values.keyCount()];
+		for (int j = 0; j < grams.length; ) {
+			int gram = grams[j];
+			int occurrences = 0;
+			for (; j < grams.length && grams[j] == gram; j++) {
+				occurrences++;
+			}
+			int[] posting = this.postings.get(gram);
+			if (posting == null) {
+				continue;
+			}
+			for (int p = 0; p < posting.length; ) {
+				int value = posting[p];
+				int count = 0;
+				for (; p < posting.length && posting[p] == value; p++) {
+					count++;
+				}
+				shared[value] += Math.min(occurrences, count);
+			}
+		}
+		return shared;
+	}
+
+	private void verify(String term, int value, int maxDistance, List<int[]> matches) {
+		int distance = distance(term, this.values.key(value), maxDistance);
+		if (distance <= maxDistance) {
+			matches.add(new int[]{value, distance});
+		}
+	}
+
+	/**
+	 * Computes the Levenshtein distance within the band of cells |i - j| &lt;= <code>maxDistance</code>, since any
+	 * path through a cell outside of it costs more than <code>maxDistance</code>. Cells outside of the band, and
+	 * costs beyond <code>maxDistance</code>, are held at <code>maxDistance + 1</code>.
+	 *
+	 * @return the Levenshtein distance between the strings, or <code>maxDistance + 1</code> when it is larger
+	 */
+	static int distance(String a, String b, int maxDistance) {
+		if (Math.abs(a.length() - b.length()) > maxDistance) {
+			return maxDistance + 1;
+		}
+		int limit = maxDistance + 1;
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++) {
+			previous[j] = Math.min(j, limit);
+		}
+		for (int i = 1; i <= a.length(); i++) {
+			int from = Math.max(1, i - maxDistance);
+			int to = Math.min(b.length(), i + maxDistance);
+			current[from - 1] = from == 1 ? Math.min(i, limit) : limit;
+			int best = current[from - 1];
+			for (int j = from; j <= to; j++) {
+				int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+				current[j] = Math.min(Math.min(Math.min(current[j - 1], previous[j]) + 1, previous[j - 1] + cost),
+						limit);
+				best = Math.min(best, current[j]);
+			}
+			if (best > maxDistance) {
+				// every later row only grows from this one
+				return limit;
+			}
+			if (to < b.length()) {
+				// the first cell of the next row's band past the end of this one
+				current[to + 1] = limit;
+			}
+			int[] swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()];
+	}
+
+	/**
+	 * @return the values the index was built over
+	 */
+	PrefixIndex values() {
+		return this.values;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the index holds on the Java heap, not counting the values
+	 */
+	long memoryUsage() {
+		long bytes = 48 + 8L * this.postings.size() * 2;
+		for (int[] posting : this.postings.values()) {
+			bytes += 32 + 16 + 16 + 4L * posting.length;
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,65 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hash index from the folded values of a search column of a {@link LocalityTable} to the ascending ids of the
+ * rows having them, for exact lookups, e.g. of postal codes or of the localities of a state by its admin code.
+ */
+final class HashIndex {
+
+	private static final int[] NO_ROWS = new int[0];
+
+	private final Map<String, int[]> rows;
+
+	private HashIndex(Map<String, int[]> rows) {
+		this.rows = rows;
+	}
+
+	/**
+	 * Builds the index over a search column of the table. Rows with an empty value are left out.
+	 */
+	static HashIndex build(LocalityTable table, int searchColumn) {
+		// counted first, so that the row lists of values shared by many rows are allocated once
+		Map<String, int[]> counts = new HashMap<>();
+		for (int row = 0; row < table.size(); row++) {
+			String key = table.key(row, searchColumn);
+			if (!key.isEmpty()) {
+				counts.computeIfAbsent(key, k -> new int[1])[0]++;
+			}
+		}
+		Map<String, int[]> rows = new HashMap<>(counts.size() * 2);
+		for (Map.Entry<String, int[]> count : counts.entrySet()) {
+			rows.put(count.getKey(), new int[count.getValue()[0]]);
+			count.getValue()[0] = 0;
+		}
+		for (int row = 0; row < table.size(); row++) {
+			String key = table.key(row, searchColumn);
+			if (!key.isEmpty()) {
+				rows.get(key)[counts.get(key)[0]++] = row;
+			}
+		}
+		return new HashIndex(rows);
+	}
+
+	/**
+	 * @param key a folded value
+	 * @return the ascending ids of the rows with exactly this value
+	 */
+	int[] rowsOf(String key) {
+		int[] list = this.rows.get(key);
+		return list == null ? NO_ROWS : list;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the index holds on the Java heap
+	 */
+	long memoryUsage() {
+		long bytes = 48 + 8L * this.rows.size() * 2;
+		for (Map.Entry<String, int[]> entry : this.rows.entrySet()) {
+			bytes += 32 + 40 + 2L * entry.getKey().length() + 16 + 4L * entry.getValue().length;
+		}
+		return bytes;
+	}
+}
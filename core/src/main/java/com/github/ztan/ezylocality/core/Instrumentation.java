@@ -0,0 +1,162 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Dispatches the measurements of the stores to the registered {@link LocalityMetrics}. The JFR events are emitted by
+ * a {@link LocalityMetrics} too, which is only loaded when the Java runtime has Flight Recorder, and only takes
+ * measurements while a recording is running.
+ */
+final class Instrumentation {
+
+	private static final Logger log = Logger.getLogger(Instrumentation.class.getName());
+
+	private static final List<LocalityMetrics> metrics = new CopyOnWriteArrayList<>();
+
+	private static final LocalityMetrics jfr;
+	private static final BooleanSupplier jfrRecording;
+
+	static {
+		try {
+			ServiceLoader.load(LocalityMetrics.class).forEach(metrics::add);
+		} catch (ServiceConfigurationError ex) {
+			log.log(Level.WARNING, "Cannot load locality metrics.", ex);
+		}
+		Object recorder = null;
+		try {
+			Class.forName("jdk.jfr.FlightRecorder");
+			recorder = Class.forName(Instrumentation.class.getPackage().getName() + ".JfrLocalityMetrics")
+					.getDeclaredConstructor().newInstance();
+		} catch (ClassNotFoundException | LinkageError ex) {
+			// no Flight Recorder
+		} catch (ReflectiveOperationException ex) {
+			log.log(Level.WARNING, "Cannot emit JFR events.", ex);
+		}
+		jfr = (LocalityMetrics) recorder;
+		jfrRecording = recorder != null ? (BooleanSupplier) recorder : () -> false;
+	}
+
+	private Instrumentation() {
+	}
+
+	static void register(LocalityMetrics metrics) {
+		Instrumentation.metrics.add(metrics);
+	}
+
+	static void unregister(LocalityMetrics metrics) {
+		Instrumentation.metrics.remove(metrics);
+	}
+
+	static boolean isEnabled() {
+		return !metrics.isEmpty() || jfrRecording.getAsBoolean();
+	}
+
+	private static void dispatch(Consumer<LocalityMetrics> measurement) {
+		for (LocalityMetrics m : metrics) {
+			try {
+				measurement.accept(m);
+			} catch (RuntimeException ex) {
+				log.log(Level.WARNING, "Locality metrics failed.", ex);
+			}
+		}
+		if (jfrRecording.getAsBoolean()) {
+			measurement.accept(jfr);
+		}
+	}
+
+	/**
+	 * @return the start time of a measurement, or 0 when nothing is measured
+	 */
+	static long start() {
+		return isEnabled() ? System.nanoTime() : 0;
+	}
+
+	static void storeLoaded(String countryCode, LocalityStore.Engine engine, long start, LocalityStore store) {
+		if (start == 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		long memoryUsage = store.memoryUsage();
+		dispatch(m -> m.storeLoaded(countryCode, engine, nanos, memoryUsage));
+	}
+
+	static void connectionAcquired(String countryCode, long start) {
+		if (start == 0) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		dispatch(m -> m.connectionAcquired(countryCode, nanos));
+	}
+
+	/**
+	 * @return a trace of a query starting now, or <code>null</code> when nothing is measured
+	 */
+	static Trace trace(String countryCode, LocalityMetrics.Query query) {
+		return isEnabled() ? new Trace(countryCode, query) : null;
+	}
+
+	/**
+	 * Counts the rows scanned and returned by a single query, which runs on one thread at a time.
+	 */
+	static final class Trace {
+		private final String countryCode;
+		private final LocalityMetrics.Query query;
+		private final long start = System.nanoTime();
+		private long scanned;
+		private long returned;
+		private boolean completed;
+
+		private Trace(String countryCode, LocalityMetrics.Query query) {
+			this.countryCode = countryCode;
+			this.query = query;
+		}
+
+		void scanned() {
+			this.scanned++;
+		}
+
+		/**
+		 * Marks the query as run in H2, where the scanned rows are not known.
+		 */
+		void scannedUnknown() {
+			this.scanned = -1;
+		}
+
+		/**
+		 * Adds the rows scanned without being verified one by one, e.g. read from a cache or an exact index.
+		 */
+		void scanned(long rows) {
+			this.scanned += rows;
+		}
+
+		void returned(long rows) {
+			this.returned += rows;
+		}
+
+		/**
+		 * Counts the elements of a stream as returned, and completes the trace when the stream is closed.
+		 */
+		<T> Stream<T> trace(Stream<T> stream) {
+			return stream.peek(e -> this.returned++).onClose(this::complete);
+		}
+
+		void complete() {
+			if (this.completed) {
+				return;
+			}
+			this.completed = true;
+			long nanos = System.nanoTime() - this.start;
+			long scanned = this.scanned;
+			long returned = this.returned;
+			dispatch(m -> m.queryCompleted(this.countryCode, this.query, nanos, scanned, returned));
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.github.ztan.ezylocality.core;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Emits the measurements of the stores as JFR events, so that slow lookups can be correlated with GC and other
+ * activity in a recording. This class is only loaded when the Java runtime has Flight Recorder, and only receives
+ * measurements while a recording is running.
+ */
+final class JfrLocalityMetrics implements LocalityMetrics, BooleanSupplier {
+
+	private volatile boolean recording;
+
+	JfrLocalityMetrics() {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			@Override
+			public void recordingStateChanged(Recording changed) {
+				update();
+			}
+		});
+		if (FlightRecorder.isInitialized()) {
+			update();
+		}
+	}
+
+	private void update() {
+		this.recording = FlightRecorder.getFlightRecorder().getRecordings().stream()
+				.anyMatch(r -> r.getState() == RecordingState.RUNNING);
+	}
+
+	@Override
+	public boolean getAsBoolean() {
+		return this.recording;
+	}
+
+	@Override
+	public void storeLoaded(String countryCode, LocalityStore.Engine engine, long nanos, long memoryUsage) {
+		StoreLoadEvent event = new StoreLoadEvent();
+		if (event.shouldCommit()) {
+			event.countryCode = countryCode;
+			event.engine = engine.name();
+			event.loadTime = nanos;
+			event.memoryUsage = memoryUsage;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void queryCompleted(String countryCode, Query query, long nanos, long rowsScanned, long rowsReturned) {
+		QueryEvent event = new QueryEvent();
+		if (event.shouldCommit()) {
+			event.countryCode = countryCode;
+			event.query = query.name();
+			event.latency = nanos;
+			event.rowsScanned = rowsScanned;
+			event.rowsReturned = rowsReturned;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void connectionAcquired(String countryCode, long nanos) {
+		ConnectionEvent event = new ConnectionEvent();
+		if (event.shouldCommit()) {
+			event.countryCode = countryCode;
+			event.waitTime = nanos;
+			event.commit();
+		}
+	}
+
+	@Name("com.github.ztan.ezylocality.StoreLoad")
+	@Label("Locality Store Load")
+	@Category("ezy-locality")
+	@StackTrace(false)
+	static final class StoreLoadEvent extends Event {
+		@Label("Country Code")
+		String countryCode;
+
+		@Label("Engine")
+		String engine;
+
+		@Label("Load Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long loadTime;
+
+		@Label("Memory Usage")
+		@DataAmount
+		long memoryUsage;
+	}
+
+	@Name("com.github.ztan.ezylocality.Query")
+	@Label("Locality Query")
+	@Category("ezy-locality")
+	@StackTrace(false)
+	static final class QueryEvent extends Event {
+		@Label("Country Code")
+		String countryCode;
+
+		@Label("Query")
+		String query;
+
+		@Label("Latency")
+		@Timespan(Timespan.NANOSECONDS)
+		long latency;
+
+		@Label("Rows Scanned")
+		@Description("The number of rows verified, or -1 when the query ran in H2")
+		long rowsScanned;
+
+		@Label("Rows Returned")
+		long rowsReturned;
+	}
+
+	@Name("com.github.ztan.ezylocality.ConnectionAcquire")
+	@Label("Locality Connection Acquire")
+	@Category("ezy-locality")
+	@StackTrace(false)
+	static final class ConnectionEvent extends Event {
+		@Label("Country Code")
+		String countryCode;
+
+		@Label("Wait Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+	}
+}
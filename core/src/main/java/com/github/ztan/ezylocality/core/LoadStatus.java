@@ -0,0 +1,102 @@
+package com.github.ztan.ezylocality.core;
+
+/**
+ * A snapshot of the loading of a country by a {@link LocalityLoader}.
+ *
+ * @author ztan
+ * @see LocalityLoader#getStatus()
+ */
+public final class LoadStatus {
+
+	/**
+	 * The stages a country goes through, from {@link #PENDING} to either {@link #READY} or {@link #FAILED}.
+	 */
+	public enum State {
+		/**
+		 * Not requested yet.
+		 */
+		PENDING,
+		/**
+		 * The data is being loaded.
+		 */
+		LOADING,
+		/**
+		 * The warm-up queries are running.
+		 */
+		WARMING_UP,
+		/**
+		 * Loaded and warmed up, ready to serve queries.
+		 */
+		READY,
+		/**
+		 * The country has no data, or it could not be loaded.
+		 */
+		FAILED
+	}
+
+	private final String countryCode;
+	private final State state;
+	private final long loadTimeMillis;
+	private final long warmUpTimeMillis;
+	private final int size;
+	private final Throwable failure;
+
+	LoadStatus(String countryCode, State state, long loadTimeMillis, long warmUpTimeMillis, int size,
+			Throwable failure) {
+		this.countryCode = countryCode;
+		this.state = state;
+		this.loadTimeMillis = loadTimeMillis;
+		this.warmUpTimeMillis = warmUpTimeMillis;
+		this.size = size;
+		this.failure = failure;
+	}
+
+	public String getCountryCode() {
+		return this.countryCode;
+	}
+
+	public State getState() {
+		return this.state;
+	}
+
+	/**
+	 * @return whether the country is ready to serve queries
+	 */
+	public boolean isReady() {
+		return this.state == State.READY;
+	}
+
+	/**
+	 * @return the time it took to load the data, in milliseconds, or 0 until it is loaded
+	 */
+	public long getLoadTimeMillis() {
+		return this.loadTimeMillis;
+	}
+
+	/**
+	 * @return the time the warm-up queries took, in milliseconds, or 0 until they have run
+	 */
+	public long getWarmUpTimeMillis() {
+		return this.warmUpTimeMillis;
+	}
+
+	/**
+	 * @return the number of localities of the country, or 0 until it is loaded
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return why the country failed to load, or <code>null</code>
+	 */
+	public Throwable getFailure() {
+		return this.failure;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadStatus{countryCode=" + this.countryCode + ", state=" + this.state + ", loadTimeMillis="
+				+ this.loadTimeMillis + ", warmUpTimeMillis=" + this.warmUpTimeMillis + ", size=" + this.size + "}";
+	}
+}
@@ -0,0 +1,78 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Map;
+
+/**
+ * A postal locality, i.e. one row of the geonames postal code data. Empty values are returned as empty strings.
+ *
+ * @author ztan
+ * @see LocalityStore#searchLocalities(String)
+ */
+public interface Locality {
+
+	/**
+	 * @return the ISO 3166-1 country code
+	 */
+	String getCountryCode();
+
+	String getPostalCode();
+
+	String getPlaceName();
+
+	/**
+	 * @return the name of the 1st order subdivision, e.g. the state
+	 */
+	String getAdminName1();
+
+	/**
+	 * @return the code of the 1st order subdivision, e.g. the state
+	 */
+	String getAdminCode1();
+
+	/**
+	 * @return the name of the 2nd order subdivision, e.g. the county or province
+	 */
+	String getAdminName2();
+
+	/**
+	 * @return the code of the 2nd order subdivision, e.g. the county or province
+	 */
+	String getAdminCode2();
+
+	/**
+	 * @return the name of the 3rd order subdivision, e.g. the community
+	 */
+	String getAdminName3();
+
+	/**
+	 * @return the code of the 3rd order subdivision, e.g. the community
+	 */
+	String getAdminCode3();
+
+	/**
+	 * @return the latitude in degrees, or {@link Double#NaN} when unknown
+	 */
+	double getLatitude();
+
+	/**
+	 * @return the longitude in degrees, or {@link Double#NaN} when unknown
+	 */
+	double getLongitude();
+
+	/**
+	 * @return the accuracy of the coordinates, from 1 (estimated) to 6 (centroid of addresses or shape), or 0 when
+	 * unknown
+	 */
+	int getAccuracy();
+
+	/**
+	 * @return the locality as a map of key-value pairs, the same as the elements returned by
+	 * {@link LocalityStore#search(String)}
+	 */
+	Map<String, String> toMap();
+
+	/**
+	 * @return a locality with the same values, which stays valid after a reusable view it was copied from moves on
+	 */
+	Locality copy();
+}
@@ -0,0 +1,64 @@
+package com.github.ztan.ezylocality.core;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default executor of asynchronous and parallel queries. On a Java runtime with virtual threads, every query
+ * runs on a virtual thread of its own, so that blocking on JDBC does not tie up platform threads; otherwise queries
+ * run on a shared pool of daemon threads. The executor is looked up reflectively, as this library is compiled for
+ * Java 8. {@link #newExecutor(String)} creates executors of the same kind for applications of the library, e.g. the
+ * lookup server.
+ *
+ * @author ztan
+ */
+public final class LocalityExecutors {
+
+	private static final Logger log = Logger.getLogger(LocalityExecutors.class.getName());
+
+	private static volatile Executor defaultExecutor;
+
+	private LocalityExecutors() {
+	}
+
+	static Executor defaultExecutor() {
+		Executor executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (LocalityExecutors.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = newExecutor("ezy-locality-query");
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Creates an executor running every task on a virtual thread of its own when the Java runtime has them, and on a
+	 * cached pool of daemon threads otherwise.
+	 *
+	 * @param threadName the name of the platform threads of the pool
+	 * @return a new executor, to be shut down by the caller
+	 */
+	public static ExecutorService newExecutor(String threadName) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException ex) {
+			// no virtual threads before Java 21
+		} catch (ReflectiveOperationException | RuntimeException ex) {
+			log.log(Level.WARNING, "Cannot create virtual thread executor, using platform threads instead.", ex);
+		}
+		return Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, threadName);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}
@@ -0,0 +1,207 @@
+package com.github.ztan.ezylocality.core;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.MalformedInputException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Precompiles geonames tab delimited data files into the binary format read by {@link MappedTable}, and into H2
+ * database files opened read-only by the H2 engine of {@link LocalityStore}. It is run at build time by the
+ * <code>country-zip-package</code> profile, and writes a <code>.bin</code> and a <code>.mv.db</code> file next to
+ * each <code>.txt</code> file.
+ *
+ * @author ztan
+ */
+public final class LocalityFileWriter {
+
+	private static final Logger log = Logger.getLogger(LocalityFileWriter.class.getName());
+
+	private static final List<String> INDEXED_COLUMNS = Arrays.asList("postal_code", "place_name", "admin_code1");
+
+	private LocalityFileWriter() {
+	}
+
+	/**
+	 * @param args data files, or directories whose <code>.txt</code> data files are to be precompiled. Other
+	 *             <code>.txt</code> files of the directories, like the <code>readme.txt</code> of the geonames zips,
+	 *             are skipped.
+	 */
+	public static void main(String[] args) throws IOException {
+		for (String arg : args) {
+			File file = new File(arg);
+			File[] files = file.isDirectory() ? file.listFiles((dir, name) -> name.endsWith(".txt")) : new File[]{file};
+			for (File txt : files == null ? new File[0] : files) {
+				if (file.isDirectory() && !isDataFile(txt)) {
+					log.info("Skipped " + txt + ", which is not a data file");
+					continue;
+				}
+				String name = txt.getName().replaceAll("\\.txt$", "");
+				File bin = new File(txt.getParentFile(), name + ".bin");
+				write(txt, bin);
+				File database = new File(txt.getParentFile(), name + LocalityStore.DATABASE_EXTENSION);
+				writeDatabase(txt, database);
+				log.info("Precompiled " + txt + " into " + bin + " and " + database);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the first line of the file has as many tab separated fields as a row of data
+	 */
+	static boolean isDataFile(File txt) throws IOException {
+		try (BufferedReader in = Files.newBufferedReader(txt.toPath(), StandardCharsets.UTF_8)) {
+			String line = in.readLine();
+			return line != null && line.split("\t", -1).length == LocalityStore.COLUMNS.size();
+		} catch (MalformedInputException ex) {
+			return false;
+		}
+	}
+
+	static void write(File txt, File bin) throws IOException {
+		ColumnarTable table = ColumnarTable.read(txt.toURI().toURL(), LocalityStore.COLUMNS,
+				LocalityStore.SEARCH_COLUMNS);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bin)))) {
+			write(table, out);
+		}
+	}
+
+	/**
+	 * Writes the rows of a data file into the table {@value LocalityStore#DATABASE_TABLE} of a new H2 database, with
+	 * B-tree indexes on the postal codes, place names and state codes, and an H2 native fulltext index over the search
+	 * columns. Values are stored as text, so that they read back exactly as in the data file. The rows are keyed by
+	 * their position in the file, in <code>row_id</code>.
+	 *
+	 * @param database the database file to create, whose name ends with {@value LocalityStore#DATABASE_EXTENSION}
+	 */
+	static void writeDatabase(File txt, File database) throws IOException {
+		ColumnarTable table = ColumnarTable.read(txt.toURI().toURL(), LocalityStore.COLUMNS,
+				LocalityStore.SEARCH_COLUMNS);
+		String path = database.getAbsolutePath();
+		Files.deleteIfExists(database.toPath());
+		String url = "jdbc:h2:file:" + path.substring(0, path.length() - LocalityStore.DATABASE_EXTENSION.length());
+		List<String> columns = LocalityStore.COLUMNS;
+		try (Connection conn = DriverManager.getConnection(url, "sa", "sa");
+			 Statement statement = conn.createStatement()) {
+			statement.execute("CREATE TABLE " + LocalityStore.DATABASE_TABLE + " (row_id INT PRIMARY KEY, "
+					+ columns.stream().map(c -> c + " VARCHAR").collect(Collectors.joining(", ")) + ")");
+			// indexed as the rows are inserted, as indexing a filled table does it in a single huge transaction
+			statement.execute("CREATE ALIAS IF NOT EXISTS FT_INIT FOR \"org.h2.fulltext.FullText.init\"");
+			statement.execute("CALL FT_INIT()");
+			statement.execute("CALL FT_CREATE_INDEX('PUBLIC', '" + LocalityStore.DATABASE_TABLE + "', '"
+					+ LocalityStore.SEARCH_COLUMNS.stream().map(String::toUpperCase).collect(Collectors.joining(","))
+					+ "')");
+			conn.setAutoCommit(false);
+			try (PreparedStatement insert = conn.prepareStatement("INSERT INTO " + LocalityStore.DATABASE_TABLE
+					+ " VALUES (?" + String.join("", Collections.nCopies(columns.size(), ", ?")) + ")")) {
+				for (int row = 0; row < table.size(); row++) {
+					insert.setInt(1, row);
+					for (int c = 0; c < columns.size(); c++) {
+						insert.setString(c + 2, table.get(row, c));
+					}
+					insert.addBatch();
+					if (row % 1000 == 999) {
+						insert.executeBatch();
+						conn.commit();
+					}
+				}
+				insert.executeBatch();
+				conn.commit();
+			}
+			conn.setAutoCommit(true);
+			for (String column : INDEXED_COLUMNS) {
+				statement.execute("CREATE INDEX " + LocalityStore.DATABASE_TABLE + "_" + column + " ON "
+						+ LocalityStore.DATABASE_TABLE + " (" + column + ")");
+			}
+			// rewrites the file without the pages left over by the inserts, which SHUTDOWN COMPACT leaves in place
+			statement.execute("SHUTDOWN DEFRAG");
+		} catch (SQLException ex) {
+			throw new IOException("Cannot write database file " + database + ".", ex);
+		}
+	}
+
+	private static void write(ColumnarTable table, DataOutputStream out) throws IOException {
+		List<String> columns = LocalityStore.COLUMNS;
+		int[] searchColumns = LocalityStore.SEARCH_COLUMNS.stream().mapToInt(columns::indexOf).toArray();
+		int size = table.size();
+
+		out.writeInt(MappedTable.MAGIC);
+		out.writeInt(MappedTable.VERSION);
+		out.writeInt(size);
+		out.writeInt(columns.size());
+		out.writeInt(searchColumns.length);
+		for (int column : searchColumns) {
+			out.writeInt(column);
+		}
+		int latitudeColumn = columns.indexOf("latitude");
+		int longitudeColumn = columns.indexOf("longitude");
+		out.writeInt(latitudeColumn);
+		out.writeInt(longitudeColumn);
+
+		String[][] dictionaries = new String[columns.size()][];
+		for (int c = 0; c < columns.size(); c++) {
+			if (c == latitudeColumn || c == longitudeColumn) {
+				for (int row = 0; row < size; row++) {
+					out.writeDouble(c == latitudeColumn ? table.latitude(row) : table.longitude(row));
+				}
+				continue;
+			}
+			// dictionaries are written in sorted order, so that codes compare like their values
+			String[] dictionary = table.dictionary(c);
+			Integer[] order = new Integer[dictionary.length];
+			Arrays.setAll(order, i -> i);
+			Arrays.sort(order, Comparator.comparing(i -> dictionary[i]));
+			int[] recode = new int[order.length];
+			dictionaries[c] = new String[order.length];
+			for (int code = 0; code < order.length; code++) {
+				recode[order[code]] = code;
+				dictionaries[c][code] = dictionary[order[code]];
+			}
+			writeStrings(dictionaries[c], out);
+			for (int row = 0; row < size; row++) {
+				out.writeInt(recode[table.code(row, c)]);
+			}
+		}
+
+		for (int column : searchColumns) {
+			String[] keys = new String[dictionaries[column].length];
+			Arrays.setAll(keys, i -> SearchKeys.fold(dictionaries[column][i]));
+			writeStrings(keys, out);
+		}
+	}
+
+	private static void writeStrings(String[] strings, DataOutputStream out) throws IOException {
+		byte[][] bytes = new byte[strings.length][];
+		out.writeInt(strings.length);
+		int offset = 0;
+		out.writeInt(offset);
+		for (int i = 0; i < strings.length; i++) {
+			bytes[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+			offset += bytes[i].length;
+			out.writeInt(offset);
+		}
+		out.writeInt(offset);
+		for (byte[] b : bytes) {
+			out.write(b);
+		}
+		for (int i = offset; (i & 3) != 0; i++) {
+			out.writeByte(0);
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Loads the shared stores of a set of countries, either all at once in parallel with {@link #loadAll()}, or each on
+ * the first call to {@link #get(String)} for it. A country is only loaded once, however many threads ask for it at the
+ * same time. Once loaded, a country runs the warm-up queries set with {@link #setWarmUp(Collection, int)}, so that the
+ * query paths are compiled before it reports ready. {@link #getStatus()} reports the progress and timings of every
+ * country, e.g. to hold back traffic until {@link #isReady()}.
+ * <pre>
+ * try (LocalityLoader loader = new LocalityLoader(Arrays.asList("US", "CA", "GB"), LocalityStore.Engine.COLUMNAR)) {
+ *     loader.setWarmUp(Arrays.asList("spring", "10001"), 100);
+ *     loader.loadAll();
+ *     ...
+ *     loader.get("US").search("Shrev") ...
+ * }
+ * </pre>
+ *
+ * @author ztan
+ * @see LocalityStores
+ */
+public final class LocalityLoader implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(LocalityLoader.class.getName());
+
+	/**
+	 * The number of results read from each warm-up search.
+	 */
+	private static final int WARM_UP_RESULTS = 100;
+
+	private final LocalityStore.Engine engine;
+	private final Map<String, Country> countries = new LinkedHashMap<>();
+	private volatile List<String> warmUpTerms = Collections.emptyList();
+	private volatile int warmUpIterations;
+	private volatile boolean closed;
+
+	/**
+	 * @param countryCodes the ISO 3166-1 codes of the countries to load
+	 * @param engine       the query engine of the stores
+	 */
+	public LocalityLoader(Collection<String> countryCodes, LocalityStore.Engine engine) {
+		this.engine = engine;
+		for (String countryCode : countryCodes) {
+			this.countries.putIfAbsent(countryCode, new Country(countryCode));
+		}
+	}
+
+	/**
+	 * Sets the queries run on every country once loaded, and before it reports ready. Each term is counted, searched
+	 * and looked up as a postcode. Countries loaded before the call are not warmed up.
+	 *
+	 * @param terms      the search terms, e.g. common place names and postcodes
+	 * @param iterations the number of times to run them
+	 * @throws IllegalArgumentException if <code>iterations</code> is negative
+	 */
+	public void setWarmUp(Collection<String> terms, int iterations) {
+		if (iterations < 0) {
+			throw new IllegalArgumentException("The number of warm-up iterations must not be negative.");
+		}
+		this.warmUpTerms = Collections.unmodifiableList(new ArrayList<>(terms));
+		this.warmUpIterations = iterations;
+	}
+
+	/**
+	 * Loads and warms up every country which is not loaded yet, as many at a time as there are processors.
+	 *
+	 * @return a future completed once every country is either ready or failed
+	 */
+	public CompletableFuture<Void> loadAll() {
+		List<Country> pending = new ArrayList<>();
+		for (Country country : this.countries.values()) {
+			if (country.state == LoadStatus.State.PENDING) {
+				pending.add(country);
+			}
+		}
+		if (pending.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(pending.size(), Runtime.getRuntime().availableProcessors()), r -> {
+					Thread thread = new Thread(r, "ezy-locality-loader");
+					thread.setDaemon(true);
+					return thread;
+				});
+		CompletableFuture<?>[] loads = pending.stream()
+				.map(country -> CompletableFuture.runAsync(country::load, executor))
+				.toArray(CompletableFuture[]::new);
+		CompletableFuture<Void> all = CompletableFuture.allOf(loads);
+		all.whenComplete((result, ex) -> executor.shutdown());
+		return all;
+	}
+
+	/**
+	 * Gets the store of a country, loading it on the calling thread when it is not loaded yet, or waiting for the
+	 * thread loading it.
+	 *
+	 * @param countryCode one of the countries of the loader
+	 * @return the shared store of the country
+	 * @throws IllegalArgumentException if the country is not one of the loader's
+	 * @throws IllegalStateException    if the country failed to load, or the loader is closed
+	 */
+	public LocalityStore get(String countryCode) {
+		Country country = this.countries.get(countryCode);
+		if (country == null) {
+			throw new IllegalArgumentException("Country '" + countryCode + "' is not loaded by this loader.");
+		}
+		if (this.closed) {
+			throw new IllegalStateException("The loader is closed.");
+		}
+		country.load();
+		try {
+			return country.store.join();
+		} catch (CompletionException ex) {
+			throw new IllegalStateException("Cannot load country '" + countryCode + "'.", ex.getCause());
+		}
+	}
+
+	/**
+	 * @return whether every country of the loader is ready
+	 */
+	public boolean isReady() {
+		return this.countries.values().stream().allMatch(c -> c.state == LoadStatus.State.READY);
+	}
+
+	/**
+	 * @return whether a country of the loader is ready
+	 */
+	public boolean isReady(String countryCode) {
+		Country country = this.countries.get(countryCode);
+		return country != null && country.state == LoadStatus.State.READY;
+	}
+
+	/**
+	 * @return the status of every country, in the order they were given
+	 */
+	public Map<String, LoadStatus> getStatus() {
+		Map<String, LoadStatus> status = new LinkedHashMap<>();
+		for (Country country : this.countries.values()) {
+			status.put(country.countryCode, country.status());
+		}
+		return Collections.unmodifiableMap(status);
+	}
+
+	/**
+	 * Releases the stores of the loaded countries. Countries still loading are released once loaded.
+	 */
+	@Override
+	public void close() {
+		this.closed = true;
+		for (Country country : this.countries.values()) {
+			country.release();
+		}
+	}
+
+	private final class Country {
+		private final String countryCode;
+		private final CompletableFuture<LocalityStore> store = new CompletableFuture<>();
+		private final AtomicBoolean started = new AtomicBoolean();
+		private final AtomicBoolean released = new AtomicBoolean();
+		private volatile LoadStatus.State state = LoadStatus.State.PENDING;
+		private volatile long loadNanos;
+		private volatile long warmUpNanos;
+		private volatile int size;
+		private volatile Throwable failure;
+
+		private Country(String countryCode) {
+			this.countryCode = countryCode;
+		}
+
+		/**
+		 * Loads the country on the calling thread, unless another thread has already started to.
+		 */
+		private void load() {
+			if (!this.started.compareAndSet(false, true)) {
+				return;
+			}
+			LocalityStore store = null;
+			try {
+				this.state = LoadStatus.State.LOADING;
+				long start = System.nanoTime();
+				store = LocalityStores.get(this.countryCode, LocalityLoader.this.engine);
+				this.loadNanos = System.nanoTime() - start;
+				this.size = store.size();
+				if (this.size == 0) {
+					throw new IllegalStateException("No data for country '" + this.countryCode + "'.");
+				}
+				this.state = LoadStatus.State.WARMING_UP;
+				start = System.nanoTime();
+				warmUp(store);
+				this.warmUpNanos = System.nanoTime() - start;
+				this.state = LoadStatus.State.READY;
+				this.store.complete(store);
+			} catch (RuntimeException | Error ex) {
+				log.log(Level.SEVERE, "Cannot load country '" + this.countryCode + "'.", ex);
+				this.failure = ex;
+				this.state = LoadStatus.State.FAILED;
+				this.store.completeExceptionally(ex);
+				if (store != null) {
+					this.released.set(true);
+					store.close();
+				}
+			}
+			if (LocalityLoader.this.closed) {
+				release();
+			}
+		}
+
+		private void warmUp(LocalityStore store) {
+			List<String> terms = LocalityLoader.this.warmUpTerms;
+			int iterations = LocalityLoader.this.warmUpIterations;
+			for (int i = 0; i < iterations; i++) {
+				for (String term : terms) {
+					store.count(term);
+					try (Stream<Map<String, String>> results = store.search(term)) {
+						results.limit(WARM_UP_RESULTS).forEach(result -> {
+						});
+					}
+				}
+				store.lookupPostcodes(terms);
+			}
+		}
+
+		private void release() {
+			if (this.store.isDone() && !this.store.isCompletedExceptionally()
+					&& this.released.compareAndSet(false, true)) {
+				this.store.join().close();
+			}
+		}
+
+		private LoadStatus status() {
+			return new LoadStatus(this.countryCode, this.state, TimeUnit.NANOSECONDS.toMillis(this.loadNanos),
+					TimeUnit.NANOSECONDS.toMillis(this.warmUpNanos), this.size, this.failure);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.github.ztan.ezylocality.core;
+
+/**
+ * A service provider interface receiving measurements of the locality stores, e.g. to bridge them to a metrics
+ * library such as Micrometer. Implementations are discovered through {@link java.util.ServiceLoader}, or registered
+ * with {@link #register(LocalityMetrics)}. When none is registered, the stores take no measurement.
+ * <p>
+ * Methods are called synchronously from the threads running the queries, so they should return quickly and must be
+ * thread safe. Exceptions they throw are logged and otherwise ignored. On a Java runtime with Flight Recorder, the
+ * same measurements are also emitted as JFR events in the 'ezy-locality' category.
+ *
+ * @author ztan
+ */
+public interface LocalityMetrics {
+
+	/**
+	 * The kinds of queries measured.
+	 */
+	enum Query {
+		/**
+		 * {@link LocalityStore#search(String)} and {@link LocalityStore#searchLocalities(String)}
+		 */
+		SEARCH,
+		/**
+		 * {@link LocalityStore#search(String, boolean)} with ranking
+		 */
+		RANKED_SEARCH,
+		/**
+		 * {@link LocalityStore#searchTopK(String, int)}
+		 */
+		TOP_K,
+		/**
+		 * {@link LocalityStore#count(String)}
+		 */
+		COUNT,
+		/**
+		 * {@link LocalityStore#prefixSearch(String, String, int)}
+		 */
+		PREFIX_SEARCH,
+		/**
+		 * {@link LocalityStore#lookupPostcodes(java.util.Collection)}
+		 */
+		POSTCODE_LOOKUP,
+		/**
+		 * {@link LocalityStore#nearest(double, double, int)} and
+		 * {@link LocalityStore#withinRadius(double, double, double)}
+		 */
+		SPATIAL,
+		/**
+		 * {@link LocalityStore#query(LocalityQuery)} and {@link LocalityStore#count(LocalityQuery)}
+		 */
+		STRUCTURED,
+		/**
+		 * {@link LocalityStore#searchFaceted(String, int)} and {@link LocalityStore#queryFaceted(LocalityQuery, int)}
+		 */
+		FACETED,
+		/**
+		 * {@link LocalityStore#fuzzySearch(String, int)}
+		 */
+		FUZZY_SEARCH,
+		/**
+		 * {@link LocalityStore#fulltextSearch(String)}
+		 */
+		FULLTEXT_SEARCH,
+		/**
+		 * {@link LocalityStore#searchPage(String, int, String)}
+		 */
+		SEARCH_PAGE
+	}
+
+	/**
+	 * Called when a store has read the data of its country.
+	 *
+	 * @param countryCode the country code the store was constructed with
+	 * @param engine      the engine of the store
+	 * @param nanos       the time taken to construct the store
+	 * @param memoryUsage the memory the store holds, see {@link LocalityStore#memoryUsage()}
+	 */
+	default void storeLoaded(String countryCode, LocalityStore.Engine engine, long nanos, long memoryUsage) {
+	}
+
+	/**
+	 * Called when a query has completed. The queries returning a <code>Stream</code> complete when the stream is
+	 * closed, so their latency includes the time taken to consume the results, and they are not measured if the
+	 * stream is never closed.
+	 *
+	 * @param countryCode  the country code of the store
+	 * @param query        the kind of query
+	 * @param nanos        the latency of the query
+	 * @param rowsScanned  the number of rows the query verified, or -1 when the query ran in H2
+	 * @param rowsReturned the number of results returned, or counted
+	 */
+	default void queryCompleted(String countryCode, Query query, long nanos, long rowsScanned, long rowsReturned) {
+	}
+
+	/**
+	 * Called when a query running in H2 has obtained a connection from the store's connection pool.
+	 *
+	 * @param countryCode the country code of the store
+	 * @param nanos       the time spent waiting for the connection
+	 */
+	default void connectionAcquired(String countryCode, long nanos) {
+	}
+
+	/**
+	 * Registers an implementation, in addition to the ones found by {@link java.util.ServiceLoader}.
+	 */
+	static void register(LocalityMetrics metrics) {
+		Instrumentation.register(metrics);
+	}
+
+	/**
+	 * Unregisters an implementation registered with {@link #register(LocalityMetrics)}.
+	 */
+	static void unregister(LocalityMetrics metrics) {
+		Instrumentation.unregister(metrics);
+	}
+}
@@ -0,0 +1,314 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A query matching localities on specific columns, for {@link LocalityStore#query(LocalityQuery)}. Conditions are
+ * created with the static methods of this class and combined with {@link #and(LocalityQuery)} and
+ * {@link #or(LocalityQuery)}, e.g. the localities of postcode 2000 in New South Wales:
+ * <pre>
+ * LocalityQuery.equalTo("postal_code", "2000").and(LocalityQuery.equalTo("admin_code1", "NSW"))
+ * </pre>
+ * Values are compared ignoring case and accents. Queries are immutable and may be shared between threads and stores.
+ * <p>
+ * A query is answered from the most selective index available to it: a hash index for exact postal codes and
+ * admin codes, the sorted prefix index of a search column for exact values and prefixes, the trigram index for
+ * substrings of at least 3 characters, and the spatial index for latitude and longitude ranges. The other conditions
+ * of a conjunction are checked against the rows found in that index, and a query for which no index applies scans
+ * all rows.
+ *
+ * @author ztan
+ */
+public final class LocalityQuery {
+
+	private static final List<String> HASH_COLUMNS = Arrays.asList("postal_code", "admin_code1");
+
+	private enum Kind {
+		EQUAL_TO("="), STARTS_WITH("STARTS WITH"), CONTAINS("CONTAINS"), WITHIN("WITHIN"), ALL_OF(" AND "),
+		ANY_OF(" OR ");
+
+		private final String operator;
+
+		Kind(String operator) {
+			this.operator = operator;
+		}
+	}
+
+	private final Kind kind;
+	private final String column;
+	private final int columnIndex;
+	private final int searchColumn;
+	private final String value;
+	private final double[] box;
+	private final List<LocalityQuery> operands;
+
+	private LocalityQuery(Kind kind, String column, String value, double[] box, List<LocalityQuery> operands) {
+		this.kind = kind;
+		this.column = column;
+		this.columnIndex = column == null ? -1 : LocalityStore.COLUMNS.indexOf(column);
+		this.searchColumn = column == null ? -1 : LocalityStore.SEARCH_COLUMNS.indexOf(column);
+		this.value = value == null ? null : SearchKeys.fold(value);
+		this.box = box;
+		this.operands = operands;
+		if (column != null && this.columnIndex < 0) {
+			throw new IllegalArgumentException("Unknown column '" + column + "'.");
+		}
+	}
+
+	private static LocalityQuery condition(Kind kind, String column, String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("The value must not be null.");
+		}
+		return new LocalityQuery(kind, column, value, null, null);
+	}
+
+	/**
+	 * @param column the name of a column, e.g. 'postal_code' or 'admin_code1'
+	 * @param value  the value of the column, ignoring case and accents
+	 * @return a query matching the localities whose value of <code>column</code> is <code>value</code>
+	 * @throws IllegalArgumentException if <code>column</code> is not a column of the data
+	 */
+	public static LocalityQuery equalTo(String column, String value) {
+		return condition(Kind.EQUAL_TO, column, value);
+	}
+
+	/**
+	 * @param column the name of a column, e.g. 'postal_code' or 'place_name'
+	 * @param prefix the prefix, ignoring case and accents
+	 * @return a query matching the localities whose value of <code>column</code> starts with <code>prefix</code>
+	 * @throws IllegalArgumentException if <code>column</code> is not a column of the data
+	 */
+	public static LocalityQuery startsWith(String column, String prefix) {
+		return condition(Kind.STARTS_WITH, column, prefix);
+	}
+
+	/**
+	 * @param column the name of a column, e.g. 'place_name'
+	 * @param text   the text, ignoring case and accents
+	 * @return a query matching the localities whose value of <code>column</code> contains <code>text</code>
+	 * @throws IllegalArgumentException if <code>column</code> is not a column of the data
+	 */
+	public static LocalityQuery contains(String column, String text) {
+		return condition(Kind.CONTAINS, column, text);
+	}
+
+	/**
+	 * Creates a bounding box query. Localities without coordinates never match it.
+	 *
+	 * @param south the lowest latitude, in degrees
+	 * @param west  the westernmost longitude, in degrees
+	 * @param north the highest latitude, in degrees
+	 * @param east  the easternmost longitude, in degrees; less than <code>west</code> for a box crossing the
+	 *              antimeridian
+	 * @return a query matching the localities located within the box, edges included
+	 * @throws IllegalArgumentException if the latitudes are not ordered or out of range
+	 */
+	public static LocalityQuery within(double south, double west, double north, double east) {
+		if (!(-90 <= south && south <= north && north <= 90) || Double.isNaN(west) || Double.isNaN(east)) {
+			throw new IllegalArgumentException("Invalid bounding box.");
+		}
+		return new LocalityQuery(Kind.WITHIN, null, null, new double[]{south, west, north, east}, null);
+	}
+
+	/**
+	 * @return a query matching the localities matched by all of <code>queries</code>
+	 */
+	public static LocalityQuery allOf(LocalityQuery... queries) {
+		return combine(Kind.ALL_OF, queries);
+	}
+
+	/**
+	 * @return a query matching the localities matched by any of <code>queries</code>
+	 */
+	public static LocalityQuery anyOf(LocalityQuery... queries) {
+		return combine(Kind.ANY_OF, queries);
+	}
+
+	private static LocalityQuery combine(Kind kind, LocalityQuery... queries) {
+		if (queries.length == 0) {
+			throw new IllegalArgumentException("At least one query is required.");
+		}
+		List<LocalityQuery> operands = new ArrayList<>();
+		for (LocalityQuery query : queries) {
+			// nested queries of the same kind are flattened, so that a chain of and() picks from all its operands
+			operands.addAll(query.kind == kind ? query.operands : Collections.singletonList(query));
+		}
+		return operands.size() == 1 ? operands.get(0)
+				: new LocalityQuery(kind, null, null, null, Collections.unmodifiableList(operands));
+	}
+
+	/**
+	 * @return a query matching the localities matched by both this query and <code>other</code>
+	 */
+	public LocalityQuery and(LocalityQuery other) {
+		return allOf(this, other);
+	}
+
+	/**
+	 * @return a query matching the localities matched by this query, <code>other</code>, or both
+	 */
+	public LocalityQuery or(LocalityQuery other) {
+		return anyOf(this, other);
+	}
+
+	/**
+	 * Estimates the number of rows the index of this query would yield, or the size of the table when it has none.
+	 */
+	int estimate(LocalitySnapshot snapshot) {
+		int size = snapshot.table.size();
+		switch (this.kind) {
+			case EQUAL_TO:
+				// the rows equal to a value are among those starting with it
+				return isHashed() ? snapshot.hashIndex(this.searchColumn).rowsOf(this.value).length
+						: estimatePrefix(snapshot);
+			case STARTS_WITH:
+				return estimatePrefix(snapshot);
+			case CONTAINS:
+				return this.searchColumn >= 0 && this.value.length() >= TrigramIndex.GRAM_LENGTH
+						? snapshot.trigramIndex().estimate(this.value) : size;
+			case WITHIN:
+				return snapshot.spatialIndex().estimateWithinBox(this.box[0], this.box[1], this.box[2], this.box[3]);
+			case ALL_OF:
+				return this.operands.stream().mapToInt(q -> q.estimate(snapshot)).min().orElse(size);
+			default:
+				return (int) Math.min(size, this.operands.stream().mapToLong(q -> q.estimate(snapshot)).sum());
+		}
+	}
+
+	/**
+	 * Finds the rows which may match the query through the most selective index available.
+	 *
+	 * @return the ascending ids of the candidate rows, or <code>null</code> when all rows are to be scanned
+	 */
+	int[] candidates(LocalitySnapshot snapshot) {
+		switch (this.kind) {
+			case EQUAL_TO:
+				return isHashed() ? snapshot.hashIndex(this.searchColumn).rowsOf(this.value)
+						: prefixCandidates(snapshot);
+			case STARTS_WITH:
+				return prefixCandidates(snapshot);
+			case CONTAINS:
+				return this.searchColumn >= 0 && this.value.length() >= TrigramIndex.GRAM_LENGTH
+						? snapshot.trigramIndex().candidates(this.value) : null;
+			case WITHIN:
+				return snapshot.spatialIndex().withinBox(this.box[0], this.box[1], this.box[2], this.box[3]);
+			case ALL_OF:
+				LocalityQuery driver = null;
+				int best = snapshot.table.size();
+				for (LocalityQuery operand : this.operands) {
+					int estimate = operand.estimate(snapshot);
+					if (estimate < best) {
+						driver = operand;
+						best = estimate;
+					}
+				}
+				return driver == null ? null : driver.candidates(snapshot);
+			default:
+				int[] union = new int[0];
+				for (LocalityQuery operand : this.operands) {
+					int[] rows = operand.candidates(snapshot);
+					if (rows == null) {
+						return null;
+					}
+					union = union(union, rows);
+				}
+				return union;
+		}
+	}
+
+	/**
+	 * @return the number of rows whose search column starts with the value, or the size of the table when the prefix
+	 * index cannot be used
+	 */
+	private int estimatePrefix(LocalitySnapshot snapshot) {
+		return this.searchColumn >= 0 && !this.value.isEmpty()
+				? snapshot.prefixIndex(this.searchColumn).count(this.value) : snapshot.table.size();
+	}
+
+	/**
+	 * @return the ascending ids of the rows whose search column starts with the value, or <code>null</code> when the
+	 * prefix index cannot be used
+	 */
+	private int[] prefixCandidates(LocalitySnapshot snapshot) {
+		return this.searchColumn >= 0 && !this.value.isEmpty()
+				? snapshot.prefixIndex(this.searchColumn).rows(this.value).sorted().toArray() : null;
+	}
+
+	private boolean isHashed() {
+		return HASH_COLUMNS.contains(this.column) && !this.value.isEmpty();
+	}
+
+	private static int[] union(int[] a, int[] b) {
+		int[] union = new int[a.length + b.length];
+		int size = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length || j < b.length) {
+			int row = j == b.length || (i < a.length && a[i] < b[j]) ? a[i++] : b[j++];
+			if (size == 0 || union[size - 1] != row) {
+				union[size++] = row;
+			}
+		}
+		return Arrays.copyOf(union, size);
+	}
+
+	/**
+	 * @return whether a row of the table matches the query
+	 */
+	boolean matches(LocalityTable table, int row) {
+		switch (this.kind) {
+			case EQUAL_TO:
+				return valueOf(table, row).equals(this.value);
+			case STARTS_WITH:
+				return valueOf(table, row).startsWith(this.value);
+			case CONTAINS:
+				return valueOf(table, row).contains(this.value);
+			case WITHIN:
+				double latitude = table.latitude(row);
+				double longitude = table.longitude(row);
+				if (!(this.box[0] <= latitude && latitude <= this.box[2])) {
+					return false;
+				}
+				return this.box[1] <= this.box[3]
+						? this.box[1] <= longitude && longitude <= this.box[3]
+						: this.box[1] <= longitude || longitude <= this.box[3];
+			case ALL_OF:
+				for (LocalityQuery operand : this.operands) {
+					if (!operand.matches(table, row)) {
+						return false;
+					}
+				}
+				return true;
+			default:
+				for (LocalityQuery operand : this.operands) {
+					if (operand.matches(table, row)) {
+						return true;
+					}
+				}
+				return false;
+		}
+	}
+
+	private String valueOf(LocalityTable table, int row) {
+		return this.searchColumn >= 0 ? table.key(row, this.searchColumn)
+				: SearchKeys.fold(table.get(row, this.columnIndex));
+	}
+
+	@Override
+	public String toString() {
+		switch (this.kind) {
+			case WITHIN:
+				return "WITHIN " + Arrays.toString(this.box);
+			case ALL_OF:
+			case ANY_OF:
+				return this.operands.stream().map(q -> q.operands == null ? q.toString() : "(" + q + ")")
+						.collect(Collectors.joining(this.kind.operator));
+			default:
+				return this.column + " " + this.kind.operator + " '" + this.value + "'";
+		}
+	}
+}
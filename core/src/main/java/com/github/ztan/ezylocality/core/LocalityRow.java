@@ -0,0 +1,190 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link Locality} reading its values from a row of a {@link LocalityTable}, or from an array of column values
+ * when it is not backed by a table. A view over a table can be moved from row to row, so that iterating over many
+ * rows does not need to allocate a locality per row.
+ */
+final class LocalityRow implements Locality {
+
+	private static final List<String> COLUMNS = LocalityStore.COLUMNS;
+	private static final int COUNTRY_CODE = COLUMNS.indexOf("country_code");
+	private static final int POSTAL_CODE = COLUMNS.indexOf("postal_code");
+	private static final int PLACE_NAME = COLUMNS.indexOf("place_name");
+	private static final int ADMIN_NAME1 = COLUMNS.indexOf("admin_name1");
+	private static final int ADMIN_CODE1 = COLUMNS.indexOf("admin_code1");
+	private static final int ADMIN_NAME2 = COLUMNS.indexOf("admin_name2");
+	private static final int ADMIN_CODE2 = COLUMNS.indexOf("admin_code2");
+	private static final int ADMIN_NAME3 = COLUMNS.indexOf("admin_name3");
+	private static final int ADMIN_CODE3 = COLUMNS.indexOf("admin_code3");
+	private static final int LATITUDE = COLUMNS.indexOf("latitude");
+	private static final int LONGITUDE = COLUMNS.indexOf("longitude");
+	private static final int ACCURACY = COLUMNS.indexOf("accuracy");
+
+	private final LocalityTable table;
+	private final String[] values;
+	private int row;
+
+	/**
+	 * Creates a view over a row of a table.
+	 */
+	LocalityRow(LocalityTable table, int row) {
+		this.table = table;
+		this.values = null;
+		this.row = row;
+	}
+
+	private LocalityRow(String[] values) {
+		this.table = null;
+		this.values = values;
+	}
+
+	/**
+	 * Creates a locality from a map of key-value pairs, as returned by {@link LocalityStore#search(String)}.
+	 */
+	static LocalityRow of(Map<String, String> map) {
+		String[] values = new String[COLUMNS.size()];
+		for (int c = 0; c < values.length; c++) {
+			String value = map.get(COLUMNS.get(c));
+			values[c] = value == null ? "" : value;
+		}
+		return new LocalityRow(values);
+	}
+
+	/**
+	 * Moves the view to another row of its table.
+	 *
+	 * @return this instance
+	 */
+	LocalityRow at(int row) {
+		this.row = row;
+		return this;
+	}
+
+	/**
+	 * @return the value of a column, as an index of {@link LocalityStore#COLUMNS}
+	 */
+	String get(int column) {
+		return this.values != null ? this.values[column] : this.table.get(this.row, column);
+	}
+
+	@Override
+	public String getCountryCode() {
+		return get(COUNTRY_CODE);
+	}
+
+	@Override
+	public String getPostalCode() {
+		return get(POSTAL_CODE);
+	}
+
+	@Override
+	public String getPlaceName() {
+		return get(PLACE_NAME);
+	}
+
+	@Override
+	public String getAdminName1() {
+		return get(ADMIN_NAME1);
+	}
+
+	@Override
+	public String getAdminCode1() {
+		return get(ADMIN_CODE1);
+	}
+
+	@Override
+	public String getAdminName2() {
+		return get(ADMIN_NAME2);
+	}
+
+	@Override
+	public String getAdminCode2() {
+		return get(ADMIN_CODE2);
+	}
+
+	@Override
+	public String getAdminName3() {
+		return get(ADMIN_NAME3);
+	}
+
+	@Override
+	public String getAdminCode3() {
+		return get(ADMIN_CODE3);
+	}
+
+	@Override
+	public double getLatitude() {
+		return this.values != null ? ColumnarTable.Builder.parseCoordinate(this.values[LATITUDE])
+				: this.table.latitude(this.row);
+	}
+
+	@Override
+	public double getLongitude() {
+		return this.values != null ? ColumnarTable.Builder.parseCoordinate(this.values[LONGITUDE])
+				: this.table.longitude(this.row);
+	}
+
+	@Override
+	public int getAccuracy() {
+		String accuracy = get(ACCURACY);
+		try {
+			return accuracy.isEmpty() ? 0 : Integer.parseInt(accuracy);
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+	@Override
+	public Map<String, String> toMap() {
+		Map<String, String> map = new LinkedHashMap<>();
+		for (int c = 0; c < COLUMNS.size(); c++) {
+			map.put(COLUMNS.get(c), get(c));
+		}
+		return map;
+	}
+
+	@Override
+	public Locality copy() {
+		if (this.values != null) {
+			return this;
+		}
+		String[] values = new String[COLUMNS.size()];
+		for (int c = 0; c < values.length; c++) {
+			values[c] = get(c);
+		}
+		return new LocalityRow(values);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof LocalityRow)) {
+			return false;
+		}
+		LocalityRow other = (LocalityRow) obj;
+		for (int c = 0; c < COLUMNS.size(); c++) {
+			if (!get(c).equals(other.get(c))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = 1;
+		for (int c = 0; c < COLUMNS.size(); c++) {
+			hash = 31 * hash + get(c).hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+}
@@ -0,0 +1,231 @@
+package com.github.ztan.ezylocality.core;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One version of the data of a {@link LocalityStore}: the in-memory table, its administrative hierarchy and the
+ * indexes built over it on first use, and the H2 queries reading the same data. A snapshot never changes once published, so
+ * a query which started on a snapshot keeps reading it even when the store is reloaded in the meantime.
+ * <p>
+ * The H2 data table or database of a snapshot is only freed once nothing uses it: the store holds the current
+ * snapshot, and every query going through H2 acquires it until its result set is closed.
+ */
+final class LocalitySnapshot {
+
+	private static final AtomicLong GENERATIONS = new AtomicLong();
+
+	/**
+	 * Tells the snapshots apart, e.g. so that a search cursor is not used against a reloaded store.
+	 */
+	final long generation = GENERATIONS.incrementAndGet();
+
+	/**
+	 * The in-memory rows, or <code>null</code> when the data could not be loaded into memory.
+	 */
+	final LocalityTable table;
+	/**
+	 * The tab delimited data file, or <code>null</code> when the country has no data.
+	 */
+	final String csvFile;
+	/**
+	 * The H2 data table backing the queries, or <code>null</code> when they read the data file.
+	 */
+	final String tableName;
+	/**
+	 * The prebuilt H2 database holding {@link #tableName}, opened read-only, or <code>null</code> when the table is
+	 * in the in-memory database of the store.
+	 */
+	final JdbcConnectionPool database;
+	final String selectAllStatement;
+	final String selectCountStatement;
+
+	/**
+	 * The number of holders of the snapshot, the store counting as one while the snapshot is current.
+	 */
+	private final AtomicInteger users = new AtomicInteger(1);
+
+	private volatile AdminHierarchy hierarchy;
+	private volatile TrigramIndex trigramIndex;
+	private volatile SpatialIndex spatialIndex;
+	private volatile HashIndex[] hashIndexes = new HashIndex[LocalityStore.SEARCH_COLUMNS.size()];
+	private volatile FuzzyIndex fuzzyIndex;
+	private volatile PrefixIndex[] prefixIndexes = new PrefixIndex[LocalityStore.SEARCH_COLUMNS.size()];
+
+	LocalitySnapshot(LocalityTable table, String csvFile, String tableName, JdbcConnectionPool database,
+			String selectAllStatement, String selectCountStatement) {
+		this.table = table;
+		this.csvFile = csvFile;
+		this.tableName = tableName;
+		this.database = database;
+		this.selectAllStatement = selectAllStatement;
+		this.selectCountStatement = selectCountStatement;
+	}
+
+	/**
+	 * Registers a user of the H2 resources of the snapshot, to be matched by a {@link #release()}.
+	 *
+	 * @return <code>false</code> when the last user has already released the snapshot, so that it cannot be used
+	 */
+	boolean acquire() {
+		for (int users = this.users.get(); users > 0; users = this.users.get()) {
+			if (this.users.compareAndSet(users, users + 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether this was the last user, which is then to free the H2 resources of the snapshot
+	 */
+	boolean release() {
+		return this.users.decrementAndGet() == 0;
+	}
+
+	/**
+	 * @return the administrative areas of the table, built on first use
+	 */
+	AdminHierarchy hierarchy() {
+		AdminHierarchy hierarchy = this.hierarchy;
+		if (hierarchy == null) {
+			synchronized (this) {
+				hierarchy = this.hierarchy;
+				if (hierarchy == null) {
+					hierarchy = AdminHierarchy.build(this.table);
+					this.hierarchy = hierarchy;
+				}
+			}
+		}
+		return hierarchy;
+	}
+
+	/**
+	 * @return the trigram index of the table, built on first use
+	 */
+	TrigramIndex trigramIndex() {
+		TrigramIndex index = this.trigramIndex;
+		if (index == null && this.table != null) {
+			synchronized (this) {
+				index = this.trigramIndex;
+				if (index == null) {
+					index = TrigramIndex.build(this.table);
+					this.trigramIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the spatial index of the table, built on first use
+	 */
+	SpatialIndex spatialIndex() {
+		SpatialIndex index = this.spatialIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = this.spatialIndex;
+				if (index == null) {
+					index = SpatialIndex.build(this.table);
+					this.spatialIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the hash index of a search column of the table, built on first use
+	 */
+	HashIndex hashIndex(int searchColumn) {
+		HashIndex index = this.hashIndexes[searchColumn];
+		if (index == null) {
+			synchronized (this) {
+				index = this.hashIndexes[searchColumn];
+				if (index == null) {
+					index = HashIndex.build(this.table, searchColumn);
+					HashIndex[] indexes = this.hashIndexes.clone();
+					indexes[searchColumn] = index;
+					this.hashIndexes = indexes;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the prefix index of a search column of the table, built on first use
+	 */
+	PrefixIndex prefixIndex(int searchColumn) {
+		PrefixIndex index = this.prefixIndexes[searchColumn];
+		if (index == null) {
+			synchronized (this) {
+				index = this.prefixIndexes[searchColumn];
+				if (index == null) {
+					index = PrefixIndex.build(this.table, searchColumn);
+					// copied on write, so that readers see a fully built index through the volatile array reference
+					PrefixIndex[] indexes = this.prefixIndexes.clone();
+					indexes[searchColumn] = index;
+					this.prefixIndexes = indexes;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the fuzzy index of the place names of the table, built on first use
+	 */
+	FuzzyIndex fuzzyIndex() {
+		FuzzyIndex index = this.fuzzyIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = this.fuzzyIndex;
+				if (index == null) {
+					index = FuzzyIndex.build(prefixIndex(LocalityStore.SEARCH_COLUMNS.indexOf("place_name")));
+					this.fuzzyIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the table and its indexes hold on the Java heap
+	 */
+	long memoryUsage() {
+		long bytes = 0;
+		if (this.table != null) {
+			bytes += this.table.memoryUsage();
+		}
+		AdminHierarchy hierarchy = this.hierarchy;
+		if (hierarchy != null) {
+			bytes += hierarchy.memoryUsage();
+		}
+		TrigramIndex trigramIndex = this.trigramIndex;
+		if (trigramIndex != null) {
+			bytes += trigramIndex.memoryUsage();
+		}
+		SpatialIndex spatialIndex = this.spatialIndex;
+		if (spatialIndex != null) {
+			bytes += spatialIndex.memoryUsage();
+		}
+		FuzzyIndex fuzzyIndex = this.fuzzyIndex;
+		if (fuzzyIndex != null) {
+			bytes += fuzzyIndex.memoryUsage();
+		}
+		for (HashIndex hashIndex : this.hashIndexes) {
+			if (hashIndex != null) {
+				bytes += hashIndex.memoryUsage();
+			}
+		}
+		for (PrefixIndex prefixIndex : this.prefixIndexes) {
+			if (prefixIndex != null) {
+				bytes += prefixIndex.memoryUsage();
+			}
+		}
+		return bytes;
+	}
+}
@@ -1,23 +1,41 @@
 package com.github.ztan.ezylocality.core;
 
 import org.h2.jdbcx.JdbcConnectionPool;
+import org.reactivestreams.Publisher;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -30,11 +48,11 @@ import static java.util.Optional.ofNullable;
  *
  * @author ztan
  */
-public class LocalityStore {
+public class LocalityStore implements AutoCloseable {
 
 	private static final Logger log = Logger.getLogger(LocalityStore.class.getName());
 
-	private static final List<String> COLUMNS = Arrays.asList("country_code", "postal_code", "place_name",
+	static final List<String> COLUMNS = Arrays.asList("country_code", "postal_code", "place_name",
 			"admin_name1", "admin_code1", "admin_name2", "admin_code2", "admin_name3", "admin_code3", "latitude",
 			"longitude", "accuracy");
 
@@ -44,7 +62,7 @@ public class LocalityStore {
 					"admin_name3 VARCHAR(100)", "admin_code3 VARCHAR(20)", "latitude FLOAT",
 					"longitude FLOAT", "accuracy NUMBER(1)");
 
-	private static final List<String> SEARCH_COLUMNS = Arrays.asList("postal_code", "place_name", "admin_name1",
+	static final List<String> SEARCH_COLUMNS = Arrays.asList("postal_code", "place_name", "admin_name1",
 			"admin_code1", "admin_name2", "admin_code2", "admin_name3", "admin_code3");
 
 	private static final List<String> RANK_COLUMNS = Arrays.asList("postal_code", "place_name", "admin_name1",
@@ -54,6 +72,8 @@ public class LocalityStore {
 			.collect(Collectors.joining("||CHAR(9)||"));
 	private static final String SELECT_COLUMNS = String.join(", ", COLUMNS);
 	private static final String SELECT_COLUMNS_DEF = String.join(", ", COLUMNS_DEF);
+	private static final String COLUMN_MATCHING_CLAUSE = SEARCH_COLUMNS.stream().map(c -> "LOWER(" + c + ") LIKE ?")
+			.collect(Collectors.joining(" OR "));
 
 	private static final List<String> ALL_SUPPORTED_COUNTRIES = Arrays.asList("AD", "AR", "AS", "AT", "AU", "AX", "BD",
 			"BE", "BG", "BM", "BR", "BY", "CA", "CH", "CO", "CR", "CZ", "DE", "DK", "DO", "DZ", "ES", "FI", "FM", "FO",
@@ -62,50 +82,318 @@ public class LocalityStore {
 			"PK", "PL", "PM", "PR", "PT", "PW", "RE", "RO", "RU", "SE", "SI", "SJ", "SK", "SM", "TH", "TR", "UA", "US",
 			"UY", "VA", "VI", "WF", "YT", "ZA");
 
-	private final String csvFile;
-	private final String selectAllStatement;
-	private final String selectCountStatement;
+	/**
+	 * The extension of the prebuilt H2 database files of the countries.
+	 */
+	static final String DATABASE_EXTENSION = ".mv.db";
+	/**
+	 * The data table of the prebuilt H2 database files.
+	 */
+	static final String DATABASE_TABLE = "LOCALITIES";
+
+	private static final AtomicLong TABLE_SEQUENCE = new AtomicLong();
+
+	private final String countryCode;
+	private final Engine engine;
+	private final boolean createDataFile;
 	private final JdbcConnectionPool connectionPool;
-	private String tableName;
+	private final Object reloadLock = new Object();
+	private volatile LocalitySnapshot snapshot;
+	private volatile QueryCache queryCache;
+	private volatile boolean disposed;
 
 	/**
-	 * Constructs a locality store.
+	 * The query engines a {@link LocalityStore} can be backed by.
+	 */
+	public enum Engine {
+		/**
+		 * Keeps the country data in memory with a trigram index, and passes searches that cannot be answered from
+		 * memory (e.g. terms with <code>LIKE</code> wildcards) on to H2. H2 reads the prebuilt database of the country,
+		 * opened read-only, when its artifact has one, and otherwise its data table or the data file through
+		 * <code>CSVREAD</code>.
+		 * <p>
+		 * H2 matches such a term as a <code>LIKE</code> pattern against the lower-cased columns, so it ignores case
+		 * but, unlike the terms answered from memory, not accents or punctuation, e.g. "z_rich" finds "Zürich" but
+		 * "zur_ch" does not.
+		 */
+		H2,
+		/**
+		 * Parses the country data file directly into dictionary encoded column arrays, with byte or short codes for
+		 * columns with few distinct values, and latitude and longitude quantized to millionths of a degree. This
+		 * takes a fraction of the memory of the H2 data table. Searches never go through JDBC, and the H2 driver is
+		 * not required. Search terms are always matched literally.
+		 * <p>
+		 * When the country artifact contains a precompiled <code>.bin</code> data file, it is memory-mapped instead
+		 * of parsed, and the search index is built on first use.
+		 */
+		COLUMNAR
+	}
+
+	/**
+	 * Constructs a locality store. The country data is read once and kept in memory together with a trigram index
+	 * over the search columns, so that most searches do not need to scan the data.
 	 *
 	 * @param countryCode    an ISO 3166-1 country code
 	 * @param createDataFile whether to create a h2 in memory table to back all queries.
 	 */
 	public LocalityStore(String countryCode, boolean createDataFile) {
-		assertDriver();
+		this(countryCode, Engine.H2, createDataFile);
+	}
+
+	/**
+	 * Constructs a locality store.
+	 *
+	 * @param countryCode an ISO 3166-1 country code
+	 */
+	public LocalityStore(String countryCode) {
+		this(countryCode, false);
+	}
+
+	/**
+	 * Constructs a locality store backed by the given engine.
+	 *
+	 * @param countryCode an ISO 3166-1 country code
+	 * @param engine      the query engine
+	 */
+	public LocalityStore(String countryCode, Engine engine) {
+		this(countryCode, engine, false);
+	}
 
+	/**
+	 * Constructs a store holding no data, for a {@link SharedLocalityStore} handing all queries on to
+	 * <code>store</code>.
+	 */
+	LocalityStore(LocalityStore store) {
+		this.countryCode = store.countryCode;
+		this.engine = store.engine;
+		this.createDataFile = store.createDataFile;
+		this.connectionPool = null;
+		this.snapshot = new LocalitySnapshot(null, null, null, null, null, null);
+	}
 
-		this.csvFile = getCsvFilePath(countryCode);
-		String _tableName = null;
-		this.connectionPool = JdbcConnectionPool.create("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1", "sa", "sa");
-		if (createDataFile) {
+	private LocalityStore(String countryCode, Engine engine, boolean createDataFile) {
+		long start = Instrumentation.start();
+		this.countryCode = countryCode;
+		this.engine = engine;
+		this.createDataFile = createDataFile;
+		String csvFile = getCsvFilePath(countryCode);
+		if (engine == Engine.COLUMNAR) {
+			this.connectionPool = null;
+			URL binaryResource = csvFile == null ? null : getDataResource(countryCode, ".bin");
+			try {
+				this.snapshot = readSnapshot(csvFile, binaryResource, null);
+			} catch (IOException ex) {
+				log.log(Level.SEVERE, "Cannot read data file.", ex);
+				this.snapshot = new LocalitySnapshot(null, csvFile, null, null, null, null);
+			}
+		} else {
+			assertDriver();
+			this.connectionPool = JdbcConnectionPool.create("jdbc:h2:mem:test;DB_CLOSE_DELAY=-1", "sa", "sa");
+			URL databaseResource = csvFile == null ? null : getDataResource(countryCode, DATABASE_EXTENSION);
+			this.snapshot = loadSnapshot(csvFile, databaseResource, null, false);
+		}
+		Instrumentation.storeLoaded(countryCode, engine, start, this);
+	}
+
+	/**
+	 * Maps a precompiled binary data file when there is one, otherwise parses the tab delimited data file.
+	 *
+	 * @param previous the table of the previous version of the data, whose values the new table may share
+	 */
+	private LocalitySnapshot readSnapshot(String csvFile, URL binaryResource, LocalityTable previous)
+			throws IOException {
+		LocalityTable table = null;
+		if (binaryResource != null) {
 			try {
-				_tableName = "COUNTRY_" + countryCode.toUpperCase() + System.currentTimeMillis();
-				Connection conn = getInMemoryConnection();
-				final PreparedStatement statement =
-						conn.prepareStatement("CREATE TABLE " + _tableName + " (" + SELECT_COLUMNS_DEF + ") " +
-								"AS " + getSelectSql(SELECT_COLUMNS));
+				table = MappedTable.open(binaryResource);
+			} catch (IOException ex) {
+				if (csvFile == null) {
+					throw ex;
+				}
+				log.log(Level.WARNING, "Cannot map binary data file, reading the tab delimited file instead.", ex);
+			}
+		}
+		if (table == null && csvFile != null) {
+			table = ColumnarTable.read(new URL(csvFile), COLUMNS, SEARCH_COLUMNS,
+					previous instanceof ColumnarTable ? (ColumnarTable) previous : null);
+		}
+		LocalitySnapshot snapshot = new LocalitySnapshot(table, csvFile, null, null, null, null);
+		if (!(table instanceof MappedTable)) {
+			snapshot.trigramIndex();
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Reads the tab delimited data file into memory, and opens the prebuilt H2 database of the country for the searches
+	 * H2 answers when there is one. Otherwise the data is optionally read into an H2 data table, or H2 reads the data
+	 * file on every query.
+	 *
+	 * @param csvFile  the tab delimited data file, or <code>null</code> to read the data from the database
+	 * @param database a prebuilt H2 database file, or <code>null</code>
+	 * @param previous the table of the previous version of the data, whose values the new table may share
+	 * @param strict   whether to fail when the data cannot be loaded into memory, rather than falling back to table
+	 *                 scans
+	 */
+	private LocalitySnapshot loadSnapshot(String csvFile, URL database, LocalityTable previous, boolean strict) {
+		String tableName = null;
+		JdbcConnectionPool databasePool = null;
+		if (database != null) {
+			databasePool = openDatabase(database, csvFile == null && strict);
+			tableName = databasePool == null ? null : DATABASE_TABLE;
+		}
+		if (tableName == null && this.createDataFile && csvFile != null) {
+			tableName = "COUNTRY_" + this.countryCode.toUpperCase() + System.currentTimeMillis() + "_"
+					+ TABLE_SEQUENCE.incrementAndGet();
+			try (Connection conn = getInMemoryConnection();
+				 PreparedStatement statement = conn.prepareStatement("CREATE TABLE " + tableName + " ("
+						 + SELECT_COLUMNS_DEF + ") AS " + getSelectSql(csvFile, null, SELECT_COLUMNS))) {
 				statement.execute();
 			} catch (SQLException ex) {
 				log.log(Level.SEVERE, "Cannot create data table.", ex);
-				_tableName = null;
+				tableName = null;
+			}
+		}
+		String selectAllStatement = getSelectSql(csvFile, tableName, SELECT_COLUMNS);
+		String selectCountStatement = getSelectSql(csvFile, tableName, " COUNT(*) ");
+		LocalityTable table = null;
+		ColumnarTable previousTable = previous instanceof ColumnarTable ? (ColumnarTable) previous : null;
+		try {
+			if (csvFile != null) {
+				table = ColumnarTable.read(new URL(csvFile), COLUMNS, SEARCH_COLUMNS, previousTable);
+			} else if (databasePool != null) {
+				table = readDatabase(databasePool, previousTable);
+			}
+		} catch (IOException | SQLException ex) {
+			if (strict) {
+				if (databasePool != null) {
+					databasePool.dispose();
+				} else {
+					dropTable(tableName);
+				}
+				throw new IllegalStateException("Cannot load data into memory.", ex);
 			}
+			log.log(Level.SEVERE, "Cannot load data into memory, falling back to table scans.", ex);
 		}
-		this.tableName = _tableName;
-		this.selectAllStatement = getSelectSql(SELECT_COLUMNS);
-		this.selectCountStatement = getSelectSql(" COUNT(*) ");
+		LocalitySnapshot snapshot = new LocalitySnapshot(table, csvFile, tableName, databasePool, selectAllStatement,
+				selectCountStatement);
+		snapshot.trigramIndex();
+		return snapshot;
 	}
 
 	/**
-	 * Constructs a locality store.
+	 * Opens a prebuilt H2 database file read-only, be it a file or an entry of a jar.
 	 *
-	 * @param countryCode an ISO 3166-1 country code
+	 * @param strict whether to fail when the database cannot be opened, rather than going without it
+	 * @return a pool of connections to the database, or <code>null</code> when it cannot be opened
 	 */
-	public LocalityStore(String countryCode) {
-		this(countryCode, false);
+	private static JdbcConnectionPool openDatabase(URL database, boolean strict) {
+		String path = database.toExternalForm();
+		path = path.substring(0, path.length() - DATABASE_EXTENSION.length());
+		String url;
+		if (path.startsWith("jar:file:")) {
+			// H2 reads databases within zip files, read-only, through its own zip file system
+			url = "jdbc:h2:zip:" + decode(path.substring("jar:file:".length())) + ";TRACE_LEVEL_FILE=0";
+		} else if (path.startsWith("file:")) {
+			url = "jdbc:h2:file:" + decode(path.substring("file:".length()))
+					+ ";ACCESS_MODE_DATA=r;TRACE_LEVEL_FILE=0";
+		} else {
+			if (strict) {
+				throw new IllegalStateException("Cannot open database " + database + ".");
+			}
+			log.warning("Cannot open database " + database + ", reading the tab delimited file instead.");
+			return null;
+		}
+		JdbcConnectionPool pool = JdbcConnectionPool.create(url, "sa", "sa");
+		try {
+			// opening a first connection checks that the database can be read
+			pool.getConnection().close();
+			return pool;
+		} catch (SQLException ex) {
+			pool.dispose();
+			if (strict) {
+				throw new IllegalStateException("Cannot open database " + database + ".", ex);
+			}
+			log.log(Level.WARNING, "Cannot open database " + database + ", reading the tab delimited file instead.",
+					ex);
+			return null;
+		}
+	}
+
+	private static String decode(String path) {
+		try {
+			return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static ColumnarTable readDatabase(JdbcConnectionPool database, ColumnarTable previous)
+			throws SQLException {
+		try (Connection conn = database.getConnection();
+			 PreparedStatement statement = conn.prepareStatement(
+					 "SELECT " + SELECT_COLUMNS + " FROM " + DATABASE_TABLE + " ORDER BY row_id");
+			 ResultSet resultSet = statement.executeQuery()) {
+			return ColumnarTable.load(resultSet, COLUMNS, SEARCH_COLUMNS, previous);
+		}
+	}
+
+	/**
+	 * Reloads the store from a new version of its data, e.g. a refreshed geonames export, while it keeps serving
+	 * queries. The new data is read and indexed first, then swapped in at once: queries started before the swap,
+	 * including open streams, keep reading the previous data until they complete, and queries started after it only
+	 * see the new data. The H2 data table or database of the previous data is only freed once the last query reading
+	 * it is closed. Values unchanged since the previous version are shared with it rather than copied, so that
+	 * the two versions held during the swap take little more memory than one.
+	 *
+	 * @param dataFile a geonames tab delimited data file, or a precompiled data file: a <code>.bin</code> file with
+	 *                 the columnar engine, or a <code>.mv.db</code> H2 database file with the H2 engine
+	 * @throws IOException           if the data file cannot be read, in which case the store keeps its current data
+	 * @throws IllegalStateException if the store is disposed
+	 */
+	public void reload(URL dataFile) throws IOException {
+		synchronized (this.reloadLock) {
+			if (this.disposed) {
+				throw new IllegalStateException("The store is disposed.");
+			}
+			LocalitySnapshot previous = this.snapshot;
+			LocalitySnapshot next;
+			if (this.engine == Engine.COLUMNAR) {
+				boolean binary = dataFile.getPath().endsWith(".bin");
+				next = readSnapshot(binary ? null : dataFile.toExternalForm(), binary ? dataFile : null,
+						previous.table);
+			} else {
+				boolean database = dataFile.getPath().endsWith(DATABASE_EXTENSION);
+				try {
+					next = loadSnapshot(database ? null : dataFile.toExternalForm(), database ? dataFile : null,
+							previous.table, true);
+				} catch (IllegalStateException ex) {
+					throw new IOException(ex.getMessage(), ex.getCause());
+				}
+			}
+			this.snapshot = next;
+			releaseSnapshot(previous);
+		}
+	}
+
+	/**
+	 * Reloads the store from a new version of its data in the background, see {@link #reload(URL)}.
+	 *
+	 * @param dataFile a geonames tab delimited data file, or a precompiled data file: a <code>.bin</code> file with
+	 *                 the columnar engine, or a <code>.mv.db</code> H2 database file with the H2 engine
+	 * @return a future completing once the new data has been swapped in
+	 */
+	public CompletableFuture<Void> reloadAsync(URL dataFile) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		runAsync(future, LocalityExecutors.defaultExecutor(), () -> {
+			try {
+				reload(dataFile);
+				return null;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		});
+		return future;
 	}
 
 	private static void assertDriver() {
@@ -127,21 +415,32 @@ public class LocalityStore {
 		return csvResource.toExternalForm();
 	}
 
-	private static URL _getDataResource(String code) {
+	private static URL _getDataResource(String code, String extension) {
 		List<String> paths = Arrays.asList(LocalityStore.class.getPackage().getName().split("\\."));
 		String parentPath = String.join("/", paths.subList(0, paths.size() - 1));
 
-		return LocalityStore.class.getResource("/" + parentPath + "/countries/" + code + ".txt");
+		return LocalityStore.class.getResource("/" + parentPath + "/countries/" + code + extension);
 	}
 
 	private static URL getDataResource(String code) {
 		if ("GB".equals(code)) {
-			return ofNullable(_getDataResource("GB_full")).orElse(_getDataResource(code));
+			return ofNullable(_getDataResource("GB_full", ".txt")).orElse(_getDataResource(code, ".txt"));
 		} else {
-			return _getDataResource(code);
+			return _getDataResource(code, ".txt");
 		}
 	}
 
+	/**
+	 * @return the data file of the country with the given extension, taken from the same artifact as the one
+	 * {@link #getDataResource(String)} picks
+	 */
+	private static URL getDataResource(String code, String extension) {
+		if ("GB".equals(code) && _getDataResource("GB_full", ".txt") != null) {
+			return _getDataResource("GB_full", extension);
+		}
+		return _getDataResource(code, extension);
+	}
+
 	/**
 	 * Gets the supported countries. In order to load the dataset for a certain
 	 * country, add the package {@code ezy-locality-<country code> } to the
@@ -167,28 +466,144 @@ public class LocalityStore {
 		super.finalize();
 	}
 
+	/**
+	 * Closes the store. A store obtained from {@link LocalityStores} is released instead, and only disposed once all
+	 * of its users have closed it.
+	 */
+	@Override
+	public void close() {
+		dispose();
+	}
+
+	/**
+	 * Gets an estimate of the memory held by the store's in-memory data and indexes. It does not count H2 data
+	 * tables, nor precompiled data files, which are mapped outside of the Java heap.
+	 *
+	 * @return a number of bytes
+	 */
+	public long memoryUsage() {
+		long bytes = this.snapshot.memoryUsage();
+		QueryCache queryCache = this.queryCache;
+		if (queryCache != null) {
+			bytes += queryCache.memoryUsage();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the number of localities of the country, counted without reading the rows when they are in memory
+	 */
+	int size() {
+		LocalityTable table = this.snapshot.table;
+		return table != null ? table.size() : count("");
+	}
+
+	/**
+	 * Enables, resizes or disables the query cache of the store. The cache keeps the rows matching recently searched
+	 * terms, keyed by the folded term, and evicts the least recently used terms once the total number of cached
+	 * rows exceeds <code>maximumWeight</code>; every entry also weighs a fixed overhead. A single entry answers
+	 * {@link #search(String, boolean)} with or without ranking and whatever the limit, {@link #count(String)} and
+	 * {@link #searchTopK(String, int)}. A term is only cached once a query has read all its rows, so a search
+	 * stream which is closed early neither fills the cache nor verifies more rows than it returns. Terms which are
+	 * passed on to H2 are not cached. Resizing the cache discards its entries and statistics.
+	 *
+	 * @param maximumWeight the maximum number of cached rows, or 0 to disable the cache
+	 */
+	public void setQueryCacheSize(long maximumWeight) {
+		this.queryCache = maximumWeight > 0 ? new QueryCache(maximumWeight) : null;
+	}
+
+	/**
+	 * @return the statistics of the query cache, all zero when the cache is disabled
+	 */
+	public QueryCacheStats queryCacheStats() {
+		QueryCache queryCache = this.queryCache;
+		return queryCache != null ? queryCache.stats() : new QueryCacheStats(0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Frees the data of the store. A store obtained from {@link LocalityStores} cannot be disposed, as it is shared;
+	 * {@link #close()} releases it instead.
+	 *
+	 * @throws UnsupportedOperationException if the store is obtained from {@link LocalityStores}
+	 */
 	public void dispose() {
-		if (this.tableName != null) {
-			try {
-				getInMemoryConnection().prepareStatement("DROP TABLE " + this.tableName).execute();
-				this.tableName = null;
-			} catch (SQLException ex) {
-				log.log(Level.SEVERE, "Cannot delete data table.", ex);
+		if (this.connectionPool == null) {
+			return;
+		}
+		synchronized (this.reloadLock) {
+			if (this.disposed) {
+				return;
+			}
+			this.disposed = true;
+			releaseSnapshot(this.snapshot);
+		}
+	}
+
+	/**
+	 * @return the current snapshot, acquired for a query going through H2 until {@link #releaseSnapshot} is called,
+	 * or <code>null</code> when the store is disposed
+	 */
+	private LocalitySnapshot acquireSnapshot() {
+		while (true) {
+			LocalitySnapshot snapshot = this.snapshot;
+			if (snapshot.acquire()) {
+				return snapshot;
+			}
+			if (snapshot == this.snapshot) {
+				return null;
 			}
+			// released by a reload in the meantime, so the next snapshot is current
+		}
+	}
+
+	/**
+	 * Releases an acquired snapshot, or the store's hold on a snapshot which is no longer current, and frees it once
+	 * its last user has released it.
+	 */
+	private void releaseSnapshot(LocalitySnapshot snapshot) {
+		if (snapshot.release()) {
+			free(snapshot);
+		}
+	}
+
+	/**
+	 * Drops the data table of a snapshot which is no longer used, or closes its prebuilt database. The connection
+	 * pool of a disposed store goes with its last snapshot.
+	 */
+	private void free(LocalitySnapshot snapshot) {
+		if (snapshot.database != null) {
+			snapshot.database.dispose();
+		} else {
+			dropTable(snapshot.tableName);
+		}
+		if (this.disposed && snapshot == this.snapshot) {
+			this.connectionPool.dispose();
 		}
-		this.connectionPool.dispose();
 	}
 
-	private String getSelectSql(String columns) {
-		if (this.csvFile == null) {
+	private void dropTable(String tableName) {
+		if (tableName == null) {
+			return;
+		}
+		try (Connection conn = getInMemoryConnection();
+			 PreparedStatement statement = conn.prepareStatement("DROP TABLE " + tableName)) {
+			statement.execute();
+		} catch (SQLException ex) {
+			log.log(Level.SEVERE, "Cannot delete data table.", ex);
+		}
+	}
+
+	private static String getSelectSql(String csvFile, String tableName, String columns) {
+		if (csvFile == null && tableName == null) {
 			return null;
 		}
 
-		if (this.tableName == null) {
+		if (tableName == null) {
 			return "SELECT " + columns + " FROM CSVREAD('" + csvFile + "', " + CSV_COLUMNS
 					+ ", 'fieldSeparator=' || CHAR(9)) ";
 		} else {
-			return "SELECT " + columns + " FROM " + this.tableName;
+			return "SELECT " + columns + " FROM " + tableName;
 
 		}
 	}
@@ -196,7 +611,9 @@ public class LocalityStore {
 	/**
 	 * Searches for a given term (<code>text</code>) in the country data. Note: this
 	 * is not fulltext search and the order of the results are based on their
-	 * appearances in the data file.
+	 * appearances in the data file. Case, accents and punctuation are ignored,
+	 * e.g. "zurich" finds "Zürich", unless the term contains SQL wildcards and
+	 * the store uses the H2 engine.
 	 *
 	 * @param text the search term
 	 * @return a <code>Stream</code> instance backed by a query result set. Each
@@ -219,17 +636,209 @@ public class LocalityStore {
 	 * results.
 	 */
 	public Stream<Map<String, String>> search(final String text, boolean rank) {
-		if (this.selectAllStatement == null) {
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode,
+				rank ? LocalityMetrics.Query.RANKED_SEARCH : LocalityMetrics.Query.SEARCH);
+		Stream<Map<String, String>> results = search(text, rank, trace);
+		return trace == null ? results : trace.trace(results);
+	}
+
+	private Stream<Map<String, String>> search(final String text, boolean rank, Instrumentation.Trace trace) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (isIndexed(snapshot, text)) {
+			return matchingRows(snapshot, text, trace).mapToObj(row -> {
+				Map<String, String> item = getRow(snapshot, row);
+				if (rank) {
+					rankResult(text, item);
+				}
+				return item;
+			});
+		}
+		LocalitySnapshot acquired = acquireSnapshot();
+		if (acquired == null) {
 			return Stream.empty();
 		}
-		UncheckedCloseable close = null;
+		if (acquired.selectAllStatement == null) {
+			releaseSnapshot(acquired);
+			return Stream.empty();
+		}
+		if (trace != null) {
+			trace.scannedUnknown();
+		}
+		return select(acquired, acquired.selectAllStatement + " WHERE " + COLUMN_MATCHING_CLAUSE,
+				getColumnMatchingParameters(text), rank ? text : null);
+	}
+
+	/**
+	 * Searches for a term like {@link #search(String)}, one page at a time, e.g. to page through every locality
+	 * containing "spring". The cursor of a page records where it ended, so fetching the next page resumes the search
+	 * from there instead of skipping the results of the previous pages, and the store keeps no state between pages.
+	 * Terms answered by H2 (see {@link Engine#H2}) are the exception, and skip the results of the previous pages.
+	 *
+	 * @param text     the search term
+	 * @param pageSize the maximum number of results of the page
+	 * @param cursor   the cursor of the previous page, see {@link SearchPage#getNextCursor()}, or <code>null</code>
+	 *                 for the first page
+	 * @return the page
+	 * @throws IllegalArgumentException if <code>pageSize</code> is not positive, or if the cursor is invalid, was
+	 *                                  issued for another term, or before the store was reloaded
+	 */
+	public SearchPage searchPage(final String text, int pageSize, String cursor) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("The page size must be positive.");
+		}
+		LocalitySnapshot snapshot = this.snapshot;
+		String key = SearchKeys.fold(text);
+		int after = -1;
+		long position = 0;
+		if (cursor != null) {
+			long[] fields = decodeCursor(cursor);
+			if (fields[0] != snapshot.generation || fields[3] != key.hashCode()) {
+				throw new IllegalArgumentException("The cursor was issued for another search, or before a reload.");
+			}
+			after = (int) fields[1];
+			position = fields[2];
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.SEARCH_PAGE);
+		List<Map<String, String>> results = new ArrayList<>();
+		boolean more;
+		if (isIndexed(snapshot, text)) {
+			int[] rows = nextRows(snapshot, key, after, pageSize + 1, trace);
+			more = rows.length > pageSize;
+			for (int i = 0; i < Math.min(rows.length, pageSize); i++) {
+				results.add(getRow(snapshot, rows[i]));
+			}
+			after = rows.length == 0 ? after : rows[Math.min(rows.length, pageSize) - 1];
+		} else {
+			try (Stream<Map<String, String>> stream = search(text, false, trace)) {
+				stream.skip(position).limit(pageSize + 1).forEach(results::add);
+			}
+			more = results.size() > pageSize;
+			if (more) {
+				results.remove(pageSize);
+			}
+		}
+		if (trace != null) {
+			trace.returned(results.size());
+			trace.complete();
+		}
+		String nextCursor = more ? encodeCursor(snapshot.generation, after, position + results.size(),
+				key.hashCode()) : null;
+		return new SearchPage(results, nextCursor);
+	}
+
+	/**
+	 * @return the ascending ids of at most <code>limit</code> rows matching the key, following the row
+	 * <code>after</code>
+	 */
+	private static int[] nextRows(LocalitySnapshot snapshot, String key, int after, int limit,
+			Instrumentation.Trace trace) {
+		LocalityTable table = snapshot.table;
+		int[] rows = new int[limit];
+		int size = 0;
+		if (key.length() < TrigramIndex.GRAM_LENGTH) {
+			for (int row = after + 1; row < table.size() && size < limit; row++) {
+				if (trace != null) {
+					trace.scanned();
+				}
+				if (table.matches(row, key)) {
+					rows[size++] = row;
+				}
+			}
+			return Arrays.copyOf(rows, size);
+		}
+		TrigramIndex index = snapshot.trigramIndex();
+		while (size < limit) {
+			// candidates are fetched in batches of the rows still missing, as some fail verification
+			int[] candidates = index.candidates(key, after, limit - size);
+			for (int row : candidates) {
+				if (trace != null) {
+					trace.scanned();
+				}
+				if (table.matches(row, key)) {
+					rows[size++] = row;
+				}
+			}
+			if (candidates.length == 0 || size == limit) {
+				break;
+			}
+			after = candidates[candidates.length - 1];
+		}
+		return Arrays.copyOf(rows, size);
+	}
+
+	private static String encodeCursor(long generation, int after, long position, int keyHash) {
+		String cursor = generation + "." + after + "." + position + "." + keyHash;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return the generation of the snapshot, the last row returned, the number of results returned, and the hash of
+	 * the search key recorded in a cursor
+	 */
+	private static long[] decodeCursor(String cursor) {
+		try {
+			String[] fields = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.US_ASCII)
+					.split("\\.");
+			if (fields.length == 4) {
+				long[] values = new long[fields.length];
+				for (int i = 0; i < fields.length; i++) {
+					values[i] = Long.parseLong(fields[i]);
+				}
+				return values;
+			}
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.", ex);
+		}
+		throw new IllegalArgumentException("Invalid cursor '" + cursor + "'.");
+	}
+
+	/**
+	 * Searches for whole words with the H2 native fulltext index of the prebuilt database of the country, e.g.
+	 * <code>"mount"</code> finds "Mount Nasura" but not "Paramount". The term may combine words with
+	 * <code>AND</code>, <code>OR</code> and <code>NOT</code>. Without a prebuilt database, e.g. with the columnar
+	 * engine, this is the same as {@link #search(String)}.
+	 *
+	 * @param text the words to search for
+	 * @return a <code>Stream</code> of localities in the order of their appearance in the data file. Each element has
+	 * the same keys as the elements returned by {@link #search(String)}.
+	 */
+	public Stream<Map<String, String>> fulltextSearch(final String text) {
+		LocalitySnapshot snapshot = acquireSnapshot();
+		if (snapshot == null) {
+			return Stream.empty();
+		}
+		if (snapshot.database == null) {
+			releaseSnapshot(snapshot);
+			return search(text);
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.FULLTEXT_SEARCH);
+		if (trace != null) {
+			trace.scannedUnknown();
+		}
+		Stream<Map<String, String>> results = select(snapshot, "SELECT " + SELECT_COLUMNS
+				+ " FROM FT_SEARCH_DATA(?, 0, 0) FT JOIN " + DATABASE_TABLE + " L ON L.row_id = FT.KEYS[0]"
+				+ " ORDER BY L.row_id", Collections.singletonList(text), null);
+		return trace == null ? results : trace.trace(results);
+	}
+
+	/**
+	 * Runs a query in H2 against an acquired snapshot, which is released once the stream is closed, or at once when
+	 * the query fails.
+	 *
+	 * @param parameters the values of the parameters of the query
+	 * @param rankText   the search term to rank the results against, or <code>null</code> not to rank them
+	 * @return a <code>Stream</code> backed by the result set, closing it when closed
+	 */
+	private Stream<Map<String, String>> select(LocalitySnapshot snapshot, String sql, List<String> parameters,
+			String rankText) {
+		UncheckedCloseable close = () -> releaseSnapshot(snapshot);
 		try {
-			Connection conn = getInMemoryConnection();
-			close = UncheckedCloseable.wrap(conn);
-			PreparedStatement stmt = conn.prepareStatement(
-					this.selectAllStatement + " WHERE " + getColumnMatchingClause(text));
+			Connection conn = getConnection(snapshot);
+			close = close.nest(conn);
+			PreparedStatement stmt = conn.prepareStatement(sql);
 
 			close = close.nest(stmt);
+			setParameters(stmt, parameters);
 			ResultSet resultSet = stmt.executeQuery();
 			close = close.nest(resultSet);
 
@@ -243,8 +852,8 @@ public class LocalityStore {
 								Map<String, String> item = COLUMNS.stream()
 										.collect(Collectors.toMap(c -> c, c -> getStringFromResultSet(resultSet, c),
 												(a, b) -> b, LinkedHashMap::new));
-								if (rank) {
-									rankResult(text, item);
+								if (rankText != null) {
+									rankResult(rankText, item);
 								}
 								action.accept(item);
 								return true;
@@ -255,18 +864,137 @@ public class LocalityStore {
 					}, false).onClose(close);
 
 		} catch (SQLException sqlEx) {
-			if (close != null) {
-				try {
-					close.close();
-				} catch (Exception ex) {
-					sqlEx.addSuppressed(ex);
-				}
+			try {
+				close.close();
+			} catch (Exception ex) {
+				sqlEx.addSuppressed(ex);
 			}
 			log.log(Level.SEVERE, "Failed to execute query. ", sqlEx);
 		}
 		return Stream.empty();
 	}
 
+	/**
+	 * Searches for a given term (<code>text</code>) in the country data, like {@link #search(String)}, and returns
+	 * the matches as typed {@link Locality} instances rather than maps.
+	 *
+	 * @param text the search term
+	 * @return a <code>Stream</code> of the matched localities, in the order of their appearance in the data file
+	 */
+	public Stream<Locality> searchLocalities(final String text) {
+		return searchLocalities(text, false);
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) in the country data, like {@link #search(String)}, and returns
+	 * the matches as typed {@link Locality} instances rather than maps.
+	 *
+	 * @param text  the search term
+	 * @param reuse whether to return a single flyweight view, which moves to the next match every time the stream
+	 *              advances. This saves allocating an object per match, but an element is only valid until the next
+	 *              one is consumed; use {@link Locality#copy()} to keep it.
+	 * @return a <code>Stream</code> of the matched localities, in the order of their appearance in the data file
+	 */
+	public Stream<Locality> searchLocalities(final String text, boolean reuse) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (!isIndexed(snapshot, text)) {
+			return search(text).map(LocalityRow::of);
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.SEARCH);
+		LocalityTable table = snapshot.table;
+		Stream<Locality> results;
+		if (reuse) {
+			LocalityRow view = new LocalityRow(table, -1);
+			results = matchingRows(snapshot, text, trace).mapToObj(view::at);
+		} else {
+			results = matchingRows(snapshot, text, trace).mapToObj(row -> new LocalityRow(table, row));
+		}
+		return trace == null ? results : trace.trace(results);
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) in the country data, and returns the <code>k</code> results most
+	 * similar to it. This gives the same results as sorting {@link #search(String, boolean)} with ranking by 'rank'
+	 * and keeping the first <code>k</code>, but only ever holds <code>k</code> results and scores the matches without
+	 * allocating.
+	 *
+	 * @param text the search term
+	 * @param k    the maximum number of results
+	 * @return a <code>Stream</code> of at most <code>k</code> results in ascending order of 'rank', i.e. the most
+	 * similar first. Results with equal rank are in the order of their appearance in the data file.
+	 */
+	public Stream<Map<String, String>> searchTopK(final String text, int k) {
+		if (k <= 0) {
+			return Stream.empty();
+		}
+		LocalitySnapshot snapshot = this.snapshot;
+		if (!isIndexed(snapshot, text)) {
+			return search(text, true).sorted(Comparator.comparingDouble(m -> Double.parseDouble(m.get("rank"))))
+					.limit(k);
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.TOP_K);
+		CompareUtils.Scorer scorer = new CompareUtils.Scorer(text);
+		int[] rankColumns = RANK_COLUMNS.stream().mapToInt(COLUMNS::indexOf).toArray();
+		RowHeap heap = new RowHeap(k);
+		matchingRows(snapshot, text, trace).forEach(row -> {
+			scorer.reset();
+			for (int column : rankColumns) {
+				scorer.add(snapshot.table.get(row, column));
+			}
+			heap.offer(row, 1 - scorer.similarity());
+		});
+		heap.sort();
+		if (trace != null) {
+			trace.returned(heap.size());
+			trace.complete();
+		}
+		return IntStream.range(0, heap.size()).mapToObj(i -> {
+			Map<String, String> item = getRow(snapshot, heap.row(i));
+			item.put("rank", String.valueOf(heap.score(i)));
+			return item;
+		});
+	}
+
+	/**
+	 * Finds the localities whose place name is within a small number of typing errors of a term, e.g. "Adelaide" for
+	 * "Adelade". The candidates come from an index of the bigrams of the place names, so only the names sharing
+	 * enough bigrams with the term are compared with it.
+	 *
+	 * @param text        the place name, ignoring case, accents and punctuation
+	 * @param maxDistance the largest number of inserted, deleted or substituted characters, from 0 to 2
+	 * @return a <code>Stream</code> of localities in ascending order of distance, then of place name, then in the
+	 * order of their appearance in the data file. Each element has the same keys as the elements returned by
+	 * {@link #search(String)}, plus the number of edits stored as 'edit_distance'.
+	 * @throws IllegalArgumentException if <code>maxDistance</code> is not between 0 and 2
+	 */
+	public Stream<Map<String, String>> fuzzySearch(final String text, int maxDistance) {
+		if (maxDistance < 0 || maxDistance > FuzzyIndex.MAX_DISTANCE) {
+			throw new IllegalArgumentException("The edit distance must be between 0 and " + FuzzyIndex.MAX_DISTANCE
+					+ ".");
+		}
+		LocalitySnapshot snapshot = this.snapshot;
+		String key = SearchKeys.fold(text);
+		if (snapshot.table == null || key.isEmpty()) {
+			return Stream.empty();
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.FUZZY_SEARCH);
+		FuzzyIndex index = snapshot.fuzzyIndex();
+		int[] matches = index.find(key, maxDistance);
+		Stream<Map<String, String>> results = IntStream.range(0, matches.length / 2).boxed().flatMap(i -> {
+			String distance = String.valueOf(matches[2 * i + 1]);
+			return index.values().rowsOfKey(matches[2 * i]).mapToObj(row -> {
+				Map<String, String> item = getRow(snapshot, row);
+				item.put("edit_distance", distance);
+				return item;
+			});
+		});
+		if (trace == null) {
+			return results;
+		}
+		trace.scanned(matches.length / 2);
+		return trace.trace(results);
+	}
+
 	/**
 	 * Counts the total occurrences of the search term.
 	 *
@@ -274,36 +1002,518 @@ public class LocalityStore {
 	 * @return an integer
 	 */
 	public int count(final String text) {
-		if (this.selectCountStatement == null) {
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.COUNT);
+		int count = count(text, trace);
+		if (trace != null) {
+			trace.returned(count);
+			trace.complete();
+		}
+		return count;
+	}
+
+	private int count(final String text, Instrumentation.Trace trace) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (isIndexed(snapshot, text)) {
+			return (int) matchingRows(snapshot, text, trace).count();
+		}
+		LocalitySnapshot acquired = acquireSnapshot();
+		if (acquired == null) {
 			return 0;
 		}
+		try {
+			if (acquired.selectCountStatement == null) {
+				return 0;
+			}
+			if (trace != null) {
+				trace.scannedUnknown();
+			}
 
-		try (Connection conn = getInMemoryConnection();
-			 PreparedStatement query = conn.prepareStatement(
-					 this.selectCountStatement + " WHERE " + getColumnMatchingClause(text))) {
-			final ResultSet resultSet = query.executeQuery();
-			resultSet.next();
-			return resultSet.getInt(1);
+			try (Connection conn = getConnection(acquired);
+				 PreparedStatement query = conn.prepareStatement(
+						 acquired.selectCountStatement + " WHERE " + COLUMN_MATCHING_CLAUSE)) {
+				setParameters(query, getColumnMatchingParameters(text));
+				final ResultSet resultSet = query.executeQuery();
+				resultSet.next();
+				return resultSet.getInt(1);
 
-		} catch (SQLException e) {
-			log.log(Level.SEVERE, "Failed to execute query. ", e);
+			} catch (SQLException e) {
+				log.log(Level.SEVERE, "Failed to execute query. ", e);
+				return 0;
+			}
+		} finally {
+			releaseSnapshot(acquired);
+		}
+	}
+
+	/**
+	 * Finds the localities whose value of a column starts with a given prefix, ignoring case and accents, e.g. to
+	 * autocomplete a postcode or a suburb typed into a form. The lookups go through a sorted index over the column, built on first
+	 * use, so only the matching rows are visited.
+	 *
+	 * @param field  the column to match, one of 'postal_code', 'place_name', 'admin_name1', 'admin_code1',
+	 *               'admin_name2', 'admin_code2', 'admin_name3' or 'admin_code3'
+	 * @param prefix the prefix
+	 * @param limit  the maximum number of results
+	 * @return a <code>Stream</code> of at most <code>limit</code> results, ordered by the value of the column ignoring
+	 * case, and then by their appearance in the data file
+	 * @throws IllegalArgumentException if <code>field</code> is not a searchable column
+	 */
+	public Stream<Map<String, String>> prefixSearch(String field, final String prefix, int limit) {
+		int searchColumn = SEARCH_COLUMNS.indexOf(field);
+		if (searchColumn < 0) {
+			throw new IllegalArgumentException("Column '" + field + "' is not searchable.");
+		}
+		if (limit <= 0) {
+			return Stream.empty();
+		}
+		String key = SearchKeys.fold(prefix);
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null) {
+			return search(prefix)
+					.filter(m -> SearchKeys.fold(m.get(field)).startsWith(key))
+					.sorted(Comparator.comparing(m -> SearchKeys.fold(m.get(field))))
+					.limit(limit);
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.PREFIX_SEARCH);
+		IntStream rows = snapshot.prefixIndex(searchColumn).rows(key).limit(limit);
+		if (trace == null) {
+			return rows.mapToObj(row -> getRow(snapshot, row));
+		}
+		// rows are only read from the index as far as they are returned
+		return trace.trace(rows.peek(row -> trace.scanned()).mapToObj(row -> getRow(snapshot, row)));
+	}
+
+	/**
+	 * Looks up many postal codes at once, e.g. to validate addresses in bulk. Unlike {@link #search(String)}, a
+	 * postal code only matches localities having exactly that postal code, ignoring case, accents and punctuation.
+	 * The lookups go through a hash index over the postal codes, built on first use.
+	 *
+	 * @param postcodes the postal codes to look up
+	 * @return a map from each distinct postal code, in the order given, to the localities having it in the order of
+	 * their appearance in the data file; the list is empty when there is none
+	 */
+	public Map<String, List<Locality>> lookupPostcodes(Collection<String> postcodes) {
+		Map<String, List<Locality>> results = new LinkedHashMap<>();
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null) {
+			for (String postcode : postcodes) {
+				results.computeIfAbsent(postcode, this::lookupPostcode);
+			}
+			return results;
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.POSTCODE_LOOKUP);
+		HashIndex index = snapshot.hashIndex(SEARCH_COLUMNS.indexOf("postal_code"));
+		for (String postcode : postcodes) {
+			if (results.containsKey(postcode)) {
+				continue;
+			}
+			int[] rows = index.rowsOf(SearchKeys.fold(postcode));
+			Locality[] localities = new Locality[rows.length];
+			for (int i = 0; i < rows.length; i++) {
+				localities[i] = new LocalityRow(snapshot.table, rows[i]);
+			}
+			results.put(postcode, Arrays.asList(localities));
+			if (trace != null) {
+				trace.scanned(rows.length);
+				trace.returned(rows.length);
+			}
+		}
+		if (trace != null) {
+			trace.complete();
+		}
+		return results;
+	}
+
+	/**
+	 * Looks up a postal code by filtering the results of a search, when the data is not held in memory.
+	 */
+	private List<Locality> lookupPostcode(String postcode) {
+		String key = postcode.trim();
+		try (Stream<Locality> stream = searchLocalities(key)) {
+			return stream.filter(l -> l.getPostalCode().equalsIgnoreCase(key)).collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) like {@link #search(String)} without blocking the calling thread.
+	 * The search runs on virtual threads when the Java runtime has them, and on a shared pool of daemon threads
+	 * otherwise.
+	 *
+	 * @param text  the search term
+	 * @param limit the maximum number of results
+	 * @return a future of the first <code>limit</code> results. Cancelling it stops the search and releases its
+	 * query.
+	 */
+	public CompletableFuture<List<Map<String, String>>> searchAsync(final String text, int limit) {
+		return searchAsync(text, limit, LocalityExecutors.defaultExecutor());
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) like {@link #search(String)} without blocking the calling thread.
+	 *
+	 * @param text     the search term
+	 * @param limit    the maximum number of results
+	 * @param executor the executor running the search
+	 * @return a future of the first <code>limit</code> results. Cancelling it stops the search and releases its
+	 * query.
+	 */
+	public CompletableFuture<List<Map<String, String>>> searchAsync(final String text, int limit,
+			Executor executor) {
+		CompletableFuture<List<Map<String, String>>> future = new CompletableFuture<>();
+		runAsync(future, executor, () -> {
+			List<Map<String, String>> results = new ArrayList<>();
+			try (Stream<Map<String, String>> stream = search(text)) {
+				Iterator<Map<String, String>> iterator = stream.iterator();
+				while (results.size() < limit && !future.isDone() && iterator.hasNext()) {
+					results.add(iterator.next());
+				}
+			}
+			return results;
+		});
+		return future;
+	}
+
+	/**
+	 * Counts the total occurrences of the search term like {@link #count(String)} without blocking the calling
+	 * thread. The count runs on virtual threads when the Java runtime has them, and on a shared pool of daemon
+	 * threads otherwise.
+	 *
+	 * @param text the search term
+	 * @return a future of the count
+	 */
+	public CompletableFuture<Integer> countAsync(final String text) {
+		return countAsync(text, LocalityExecutors.defaultExecutor());
+	}
+
+	/**
+	 * Counts the total occurrences of the search term like {@link #count(String)} without blocking the calling
+	 * thread.
+	 *
+	 * @param text     the search term
+	 * @param executor the executor running the count
+	 * @return a future of the count
+	 */
+	public CompletableFuture<Integer> countAsync(final String text, Executor executor) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		runAsync(future, executor, () -> count(text));
+		return future;
+	}
+
+	private static <T> void runAsync(CompletableFuture<T> future, Executor executor, Supplier<T> task) {
+		try {
+			executor.execute(() -> {
+				if (future.isDone()) {
+					return;
+				}
+				try {
+					future.complete(task.get());
+				} catch (RuntimeException ex) {
+					future.completeExceptionally(ex);
+				}
+			});
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+		}
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) like {@link #search(String)}, and publishes the results to
+	 * reactive streams subscribers as they request them. Each subscriber gets a search of its own, run on virtual
+	 * threads when the Java runtime has them, and on a shared pool of daemon threads otherwise.
+	 *
+	 * @param text the search term
+	 * @return a publisher of the results, in the order of their appearance in the data file
+	 * @see #searchPublisher(String, Executor)
+	 */
+	public Publisher<Map<String, String>> searchPublisher(final String text) {
+		return searchPublisher(text, LocalityExecutors.defaultExecutor());
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) like {@link #search(String)}, and publishes the results to
+	 * reactive streams subscribers as they request them. Each subscriber gets a search of its own, which is started
+	 * on the first request and only reads as many results as requested. Cancelling the subscription closes the
+	 * search, including its JDBC result set, statement and connection.
+	 *
+	 * @param text     the search term
+	 * @param executor the executor running the searches
+	 * @return a publisher of the results, in the order of their appearance in the data file
+	 */
+	public Publisher<Map<String, String>> searchPublisher(final String text, Executor executor) {
+		return new SearchPublisher<>(() -> search(text), executor);
+	}
+
+	/**
+	 * Finds the localities nearest to a location, e.g. to reverse geocode a GPS fix. Rows without coordinates are
+	 * ignored.
+	 *
+	 * @param latitude  the latitude of the location in degrees
+	 * @param longitude the longitude of the location in degrees
+	 * @param k         the maximum number of localities to return
+	 * @return a <code>Stream</code> of at most <code>k</code> localities in ascending order of distance. Each element
+	 * has the same keys as the elements returned by {@link #search(String)}, plus the great-circle distance in
+	 * kilometres stored as 'distance'.
+	 */
+	public Stream<Map<String, String>> nearest(double latitude, double longitude, int k) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null || k <= 0) {
+			return Stream.empty();
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.SPATIAL);
+		return getRows(snapshot, snapshot.spatialIndex().nearest(latitude, longitude, k), trace);
+	}
+
+	/**
+	 * Finds the localities within a distance of a location. Rows without coordinates are ignored.
+	 *
+	 * @param latitude   the latitude of the location in degrees
+	 * @param longitude  the longitude of the location in degrees
+	 * @param kilometres the great-circle distance from the location
+	 * @return a <code>Stream</code> of localities in ascending order of distance. Each element has the same keys as
+	 * the elements returned by {@link #search(String)}, plus the great-circle distance in kilometres stored as
+	 * 'distance'.
+	 */
+	public Stream<Map<String, String>> withinRadius(double latitude, double longitude, double kilometres) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null || kilometres < 0) {
+			return Stream.empty();
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.SPATIAL);
+		return getRows(snapshot, snapshot.spatialIndex().withinRadius(latitude, longitude, kilometres), trace);
+	}
+
+	private Stream<Map<String, String>> getRows(LocalitySnapshot snapshot, RowHeap hits,
+			Instrumentation.Trace trace) {
+		if (trace != null) {
+			trace.scanned(hits.size());
+			trace.returned(hits.size());
+			trace.complete();
+		}
+		return IntStream.range(0, hits.size()).mapToObj(i -> {
+			Map<String, String> item = getRow(snapshot, hits.row(i));
+			item.put("distance", String.valueOf(SpatialIndex.toKilometres(hits.score(i))));
+			return item;
+		});
+	}
+
+	/**
+	 * Finds the localities matching a structured query, e.g. the localities of a postcode within a state:
+	 * <pre>
+	 * store.query(LocalityQuery.equalTo("postal_code", "2000").and(LocalityQuery.equalTo("admin_code1", "NSW")))
+	 * </pre>
+	 * The query is answered from its most selective index, see {@link LocalityQuery}.
+	 *
+	 * @param query the query
+	 * @return a <code>Stream</code> of localities in the order of their appearance in the data file. Each element has
+	 * the same keys as the elements returned by {@link #search(String)}.
+	 */
+	public Stream<Map<String, String>> query(LocalityQuery query) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null) {
+			return Stream.empty();
+		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.STRUCTURED);
+		Stream<Map<String, String>> results = queryRows(snapshot, query, trace).mapToObj(row -> getRow(snapshot, row));
+		return trace == null ? results : trace.trace(results);
+	}
+
+	/**
+	 * Counts the localities matching a structured query.
+	 *
+	 * @param query the query
+	 * @return an integer
+	 */
+	public int count(LocalityQuery query) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (snapshot.table == null) {
 			return 0;
 		}
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.STRUCTURED);
+		int count = (int) queryRows(snapshot, query, trace).count();
+		if (trace != null) {
+			trace.returned(count);
+			trace.complete();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the administrative hierarchy of the country, built on first use. Its root stands for the
+	 * whole country, and is empty when the country has no data.
+	 */
+	public AdminArea hierarchy() {
+		return this.snapshot.hierarchy().root();
+	}
+
+	/**
+	 * Searches for a term like {@link #search(String)}, and counts the matching localities per administrative area
+	 * while reading them, e.g. to show drill-downs next to the first results.
+	 *
+	 * @param text  the search term
+	 * @param limit the maximum number of results to return
+	 * @return the first <code>limit</code> results, the number of matching localities, and their counts per area
+	 */
+	public FacetedResults searchFaceted(final String text, int limit) {
+		LocalitySnapshot snapshot = this.snapshot;
+		AdminHierarchy.Counter counter = snapshot.hierarchy().counter();
+		List<Map<String, String>> results = new ArrayList<>();
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.FACETED);
+		if (isIndexed(snapshot, text)) {
+			matchingRows(snapshot, text, trace).forEach(row -> {
+				counter.accept(row);
+				if (results.size() < limit) {
+					results.add(getRow(snapshot, row));
+				}
+			});
+		} else {
+			try (Stream<Map<String, String>> stream = search(text, false, trace)) {
+				stream.forEach(item -> {
+					counter.accept(item);
+					if (results.size() < limit) {
+						results.add(item);
+					}
+				});
+			}
+		}
+		return faceted(results, counter, trace);
+	}
+
+	/**
+	 * Finds the localities matching a structured query like {@link #query(LocalityQuery)}, and counts them per
+	 * administrative area while reading them.
+	 *
+	 * @param query the query
+	 * @param limit the maximum number of results to return
+	 * @return the first <code>limit</code> results, the number of matching localities, and their counts per area
+	 */
+	public FacetedResults queryFaceted(LocalityQuery query, int limit) {
+		LocalitySnapshot snapshot = this.snapshot;
+		AdminHierarchy.Counter counter = snapshot.hierarchy().counter();
+		List<Map<String, String>> results = new ArrayList<>();
+		Instrumentation.Trace trace = Instrumentation.trace(this.countryCode, LocalityMetrics.Query.FACETED);
+		if (snapshot.table != null) {
+			queryRows(snapshot, query, trace).forEach(row -> {
+				counter.accept(row);
+				if (results.size() < limit) {
+					results.add(getRow(snapshot, row));
+				}
+			});
+		}
+		return faceted(results, counter, trace);
+	}
+
+	private static FacetedResults faceted(List<Map<String, String>> results, AdminHierarchy.Counter counter,
+			Instrumentation.Trace trace) {
+		if (trace != null) {
+			trace.returned(counter.total());
+			trace.complete();
+		}
+		return new FacetedResults(results, counter);
+	}
+
+	private IntStream queryRows(LocalitySnapshot snapshot, LocalityQuery query, Instrumentation.Trace trace) {
+		LocalityTable table = snapshot.table;
+		int[] candidates = query.candidates(snapshot);
+		IntStream rows = candidates == null ? IntStream.range(0, table.size()) : IntStream.of(candidates);
+		if (trace != null) {
+			rows = rows.peek(row -> trace.scanned());
+		}
+		return rows.filter(row -> query.matches(table, row));
+	}
+
+	/**
+	 * @return whether the search term can be answered from memory. With the H2 engine, terms containing LIKE
+	 * wildcards or escape characters are left to H2, so that they keep matching the same way they always did.
+	 */
+	private boolean isIndexed(LocalitySnapshot snapshot, String text) {
+		if (snapshot.table == null) {
+			return false;
+		}
+		return this.engine == Engine.COLUMNAR
+				|| (text.indexOf('%') < 0 && text.indexOf('_') < 0 && text.indexOf('\\') < 0);
+	}
+
+	/**
+	 * Cheaply rules out search terms which cannot match any row, e.g. to skip a country in a multi-country search.
+	 *
+	 * @return <code>false</code> when a search for <code>text</code> is known to return nothing
+	 */
+	boolean mayMatch(String text) {
+		LocalitySnapshot snapshot = this.snapshot;
+		if (!isIndexed(snapshot, text)) {
+			return snapshot.selectAllStatement != null;
+		}
+		return snapshot.trigramIndex().mayContain(SearchKeys.fold(text));
+	}
+
+	/**
+	 * @return the ascending ids of the rows where any search column contains <code>text</code>, ignoring case and
+	 * accents. Terms shorter than a trigram are matched by scanning the in-memory table.
+	 */
+	private IntStream matchingRows(LocalitySnapshot snapshot, String text, Instrumentation.Trace trace) {
+		String key = SearchKeys.fold(text);
+		QueryCache queryCache = this.queryCache;
+		if (queryCache == null) {
+			return findRows(snapshot, key, trace);
+		}
+		int[] rows = queryCache.get(snapshot.table, key);
+		return rows != null ? IntStream.of(rows) : queryCache.fill(snapshot.table, key, findRows(snapshot, key, trace));
+	}
+
+	/**
+	 * @param trace counts the verified rows, may be <code>null</code>
+	 */
+	private IntStream findRows(LocalitySnapshot snapshot, String key, Instrumentation.Trace trace) {
+		LocalityTable table = snapshot.table;
+		IntStream rows = key.length() < TrigramIndex.GRAM_LENGTH
+				? IntStream.range(0, table.size())
+				: IntStream.of(snapshot.trigramIndex().candidates(key));
+		if (trace != null) {
+			rows = rows.peek(row -> trace.scanned());
+		}
+		return rows.filter(row -> table.matches(row, key));
+	}
 
+	private static Map<String, String> getRow(LocalitySnapshot snapshot, int row) {
+		return new LocalityRow(snapshot.table, row).toMap();
 	}
 
-	private String getColumnMatchingClause(String text) {
-		String key = ("%" + text + "%").toLowerCase();
-		return LocalityStore.SEARCH_COLUMNS.stream().map(c -> "LOWER(" + c + ") like '" + key + "'").collect(Collectors.joining(" OR "));
+	/**
+	 * @return the parameters of {@link #COLUMN_MATCHING_CLAUSE}, i.e. the lower-cased term between <code>%</code>
+	 * wildcards, once for every search column
+	 */
+	private static List<String> getColumnMatchingParameters(String text) {
+		return Collections.nCopies(SEARCH_COLUMNS.size(), ("%" + text + "%").toLowerCase(Locale.ROOT));
+	}
+
+	private static void setParameters(PreparedStatement stmt, List<String> parameters) throws SQLException {
+		for (int i = 0; i < parameters.size(); i++) {
+			stmt.setString(i + 1, parameters.get(i));
+		}
 	}
 
 	private Connection getInMemoryConnection() throws SQLException {
-		return this.connectionPool.getConnection();
+		return getConnection(this.connectionPool);
+	}
+
+	/**
+	 * @return a connection to the database holding the data table of the snapshot
+	 */
+	private Connection getConnection(LocalitySnapshot snapshot) throws SQLException {
+		return getConnection(snapshot.database != null ? snapshot.database : this.connectionPool);
+	}
+
+	private Connection getConnection(JdbcConnectionPool pool) throws SQLException {
+		long start = Instrumentation.start();
+		Connection connection = pool.getConnection();
+		Instrumentation.connectionAcquired(this.countryCode, start);
+		return connection;
 	}
 
 	private void rankResult(String searchText, Map<String, String> result) {
-		String value = RANK_COLUMNS.stream().map(result::get).collect(Collectors.joining(" "));
-		double rank = 1 - CompareUtils.calculateSimilarity(searchText, value);
+		CompareUtils.Scorer scorer = new CompareUtils.Scorer(searchText);
+		RANK_COLUMNS.forEach(c -> scorer.add(result.get(c)));
+		double rank = 1 - scorer.similarity();
 		result.put("rank", String.valueOf(rank));
 	}
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A process-wide registry of shared {@link LocalityStore} instances. The data of a country is loaded once, however
+ * many threads or components ask for it, and is disposed when the last of them releases it. Every call to
+ * {@link #get(String)} returns a handle of its own on the shared store, which releases it when closed, once. Stores are
+ * safe to use from multiple threads.
+ * <pre>
+ * try (LocalityStore store = LocalityStores.get("AU")) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author ztan
+ */
+public final class LocalityStores {
+
+	private static final Map<String, Entry> entries = new HashMap<>();
+
+	private LocalityStores() {
+	}
+
+	/**
+	 * Gets the shared store of a country backed by the default engine. Every call must be paired with a call to
+	 * {@link LocalityStore#close()} or {@link #release(LocalityStore)}.
+	 *
+	 * @param countryCode an ISO 3166-1 country code
+	 * @return a handle on the shared store, built on the first call
+	 */
+	public static LocalityStore get(String countryCode) {
+		return get(countryCode, LocalityStore.Engine.H2);
+	}
+
+	/**
+	 * Gets the shared store of a country backed by the given engine. Every call must be paired with a call to
+	 * {@link LocalityStore#close()} or {@link #release(LocalityStore)}.
+	 *
+	 * @param countryCode an ISO 3166-1 country code
+	 * @param engine      the query engine
+	 * @return a handle on the shared store, built on the first call
+	 */
+	public static LocalityStore get(String countryCode, LocalityStore.Engine engine) {
+		Entry entry;
+		synchronized (entries) {
+			entry = entries.computeIfAbsent(countryCode + "/" + engine, key -> new Entry(key, countryCode, engine));
+			entry.references++;
+		}
+		try {
+			// built outside of the registry lock, so that loading a large country does not hold up the others
+			return new SharedLocalityStore(entry.getStore(), () -> release(entry));
+		} catch (RuntimeException | Error ex) {
+			release(entry);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Releases a store obtained from {@link #get(String)}, like {@link LocalityStore#close()}. The shared store is
+	 * disposed when it is no longer used.
+	 *
+	 * @param store a store obtained from {@link #get(String)}
+	 * @throws IllegalArgumentException if the store is not obtained from {@link #get(String)}
+	 */
+	public static void release(LocalityStore store) {
+		if (!(store instanceof SharedLocalityStore)) {
+			throw new IllegalArgumentException("The store is not obtained from LocalityStores.");
+		}
+		store.close();
+	}
+
+	private static void release(Entry entry) {
+		synchronized (entries) {
+			if (--entry.references > 0) {
+				return;
+			}
+			entries.remove(entry.key, entry);
+		}
+		LocalityStore store = entry.store;
+		if (store != null) {
+			store.dispose();
+		}
+	}
+
+	/**
+	 * Disposes all the shared stores, whether they are still in use or not.
+	 */
+	public static void closeAll() {
+		Map<String, Entry> released;
+		synchronized (entries) {
+			released = new LinkedHashMap<>(entries);
+			entries.clear();
+		}
+		released.values().stream().filter(e -> e.store != null).forEach(e -> e.store.dispose());
+	}
+
+	/**
+	 * Reports the memory used by each loaded country, see {@link LocalityStore#memoryUsage()}.
+	 *
+	 * @return a map of country codes to numbers of bytes, sorted by country code
+	 */
+	public static Map<String, Long> memoryUsage() {
+		Map<String, Long> usage = new TreeMap<>();
+		synchronized (entries) {
+			entries.values().stream().filter(e -> e.store != null)
+					.forEach(e -> usage.merge(e.countryCode, e.store.memoryUsage(), Long::sum));
+		}
+		return usage;
+	}
+
+	private static final class Entry {
+		private final String key;
+		private final String countryCode;
+		private final LocalityStore.Engine engine;
+		private volatile LocalityStore store;
+		private int references;
+
+		private Entry(String key, String countryCode, LocalityStore.Engine engine) {
+			this.key = key;
+			this.countryCode = countryCode;
+			this.engine = engine;
+		}
+
+		private LocalityStore getStore() {
+			LocalityStore store = this.store;
+			if (store == null) {
+				synchronized (this) {
+					store = this.store;
+					if (store == null) {
+						store = new LocalityStore(this.countryCode, this.engine);
+						this.store = store;
+					}
+				}
+			}
+			return store;
+		}
+	}
+}
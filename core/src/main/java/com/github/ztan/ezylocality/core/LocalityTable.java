@@ -0,0 +1,56 @@
+package com.github.ztan.ezylocality.core;
+
+/**
+ * The rows of a country data source, held in memory or memory-mapped. Columns are addressed by their index in the
+ * column list the table was loaded with, and search columns by their index in the search column list.
+ */
+interface LocalityTable {
+
+	/**
+	 * @return the number of rows
+	 */
+	int size();
+
+	/**
+	 * @return the value of a column, never <code>null</code>
+	 */
+	String get(int row, int column);
+
+	/**
+	 * @return the latitude of the row, or {@link Double#NaN} when unknown
+	 */
+	double latitude(int row);
+
+	/**
+	 * @return the longitude of the row, or {@link Double#NaN} when unknown
+	 */
+	double longitude(int row);
+
+	/**
+	 * @return the search key of a search column, folded by {@link SearchKeys}
+	 */
+	String key(int row, int searchColumn);
+
+	/**
+	 * @return the number of search columns
+	 */
+	int keyCount();
+
+	/**
+	 * @return an estimate of the number of bytes the table holds on the Java heap
+	 */
+	long memoryUsage();
+
+	/**
+	 * @return whether any non-empty search column of the row contains the (folded) <code>key</code>
+	 */
+	default boolean matches(int row, String key) {
+		for (int s = 0; s < keyCount(); s++) {
+			String value = key(row, s);
+			if (!value.isEmpty() && value.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,322 @@
+package com.github.ztan.ezylocality.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A read-only view of a precompiled country data file written by {@link LocalityFileWriter}. The file is memory
+ * mapped, so opening a table does not parse any rows and the data stays off the Java heap.
+ * <p>
+ * All integers are big-endian and every section starts at a multiple of 4 bytes. The layout is:
+ * <pre>
+ * header:       magic, version, row count, column count, search column count,
+ *               search column indexes, latitude column, longitude column
+ * per column:   string column: entry count, entry count + 1 offsets, byte length, UTF-8 bytes (sorted values),
+ *                              row count codes
+ *               coordinate column: row count doubles
+ * per search column: folded form of the column's dictionary, laid out like a dictionary
+ * </pre>
+ */
+final class MappedTable implements LocalityTable {
+
+	static final int MAGIC = 0x455A594C;
+	static final int VERSION = 4;
+
+	/**
+	 * The temporary copies of the data files read from jars, by entry URL, for as long as a table maps them.
+	 */
+	private static final Map<String, CopyReference> EXTRACTED = new HashMap<>();
+	private static final ReferenceQueue<TemporaryCopy> UNUSED_COPIES = new ReferenceQueue<>();
+
+	private final ByteBuffer buffer;
+	// keeps the temporary copy of a jar entry, if any, from being deleted while it is mapped
+	private final TemporaryCopy copy;
+	private final int size;
+	private final int[] searchColumns;
+	private final int latitudeColumn;
+	private final int longitudeColumn;
+	private final int[] codes;
+	private final int[] dictionaries;
+	private final int[] keys;
+	private volatile EncodedKey lastKey = new EncodedKey("", new byte[0]);
+
+	private MappedTable(ByteBuffer buffer, TemporaryCopy copy) throws IOException {
+		this.buffer = buffer;
+		this.copy = copy;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported data file format.");
+		}
+		this.size = buffer.getInt(8);
+		int columnCount = buffer.getInt(12);
+		int searchColumnCount = buffer.getInt(16);
+		int position = 20;
+		this.searchColumns = new int[searchColumnCount];
+		for (int s = 0; s < searchColumnCount; s++, position += 4) {
+			this.searchColumns[s] = buffer.getInt(position);
+		}
+		this.latitudeColumn = buffer.getInt(position);
+		this.longitudeColumn = buffer.getInt(position + 4);
+		position += 8;
+
+		this.codes = new int[columnCount];
+		this.dictionaries = new int[columnCount];
+		for (int c = 0; c < columnCount; c++) {
+			if (c == this.latitudeColumn || c == this.longitudeColumn) {
+				this.codes[c] = position;
+				this.dictionaries[c] = -1;
+				position += this.size * 8;
+			} else {
+				this.dictionaries[c] = position;
+				position = skipStrings(position);
+				this.codes[c] = position;
+				position += this.size * 4;
+			}
+		}
+		this.keys = new int[searchColumnCount];
+		for (int s = 0; s < searchColumnCount; s++) {
+			this.keys[s] = position;
+			position = skipStrings(position);
+			if (buffer.getInt(this.keys[s]) != buffer.getInt(this.dictionaries[this.searchColumns[s]])) {
+				throw new IOException("Corrupted data file.");
+			}
+		}
+	}
+
+	/**
+	 * Maps a precompiled data file. Files inside a jar are first copied to a temporary file, since jar entries cannot
+	 * be mapped.
+	 */
+	static MappedTable open(URL resource) throws IOException {
+		Path path;
+		TemporaryCopy copy = null;
+		if ("file".equals(resource.getProtocol())) {
+			try {
+				path = Paths.get(resource.toURI());
+			} catch (URISyntaxException ex) {
+				throw new IOException(ex);
+			}
+		} else {
+			copy = extract(resource);
+			path = copy.path;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedTable(buffer, copy);
+		}
+	}
+
+	/**
+	 * Copies a data file out of its jar, once for all the tables mapping it at the same time: the entry URL names the
+	 * artifact jar and so its version, and later stores of the same artifact, e.g. after a reload, map the same copy.
+	 * Copies no longer mapped by any table are deleted, or else on exit.
+	 *
+	 * @return the temporary copy of the data file
+	 */
+	static TemporaryCopy extract(URL resource) throws IOException {
+		String key = resource.toExternalForm();
+		synchronized (EXTRACTED) {
+			deleteUnusedCopies();
+			CopyReference reference = EXTRACTED.get(key);
+			TemporaryCopy copy = reference == null ? null : reference.get();
+			if (copy == null || !Files.isRegularFile(copy.path)) {
+				Path path = Files.createTempFile("ezy-locality-", ".bin");
+				path.toFile().deleteOnExit();
+				try (InputStream in = resource.openStream()) {
+					Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
+				}
+				copy = new TemporaryCopy(path);
+				EXTRACTED.put(key, new CopyReference(key, copy));
+			}
+			return copy;
+		}
+	}
+
+	/**
+	 * Deletes the temporary copies whose tables have all been garbage collected.
+	 */
+	static void deleteUnusedCopies() {
+		synchronized (EXTRACTED) {
+			for (Reference<? extends TemporaryCopy> r; (r = UNUSED_COPIES.poll()) != null; ) {
+				CopyReference reference = (CopyReference) r;
+				EXTRACTED.remove(reference.key, reference);
+				try {
+					Files.deleteIfExists(reference.path);
+				} catch (IOException ex) {
+					// still mapped on platforms which cannot delete mapped files; deleted on exit instead
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the position following a string section starting at <code>position</code>
+	 */
+	private int skipStrings(int position) {
+		int entries = this.buffer.getInt(position);
+		int bytesPosition = position + 4 + (entries + 1) * 4;
+		int length = this.buffer.getInt(bytesPosition);
+		return bytesPosition + 4 + ((length + 3) & ~3);
+	}
+
+	private int stringStart(int section, int code) {
+		return this.buffer.getInt(section + 4 + code * 4);
+	}
+
+	private int stringEnd(int section, int code) {
+		return this.buffer.getInt(section + 8 + code * 4);
+	}
+
+	private int stringBytes(int section) {
+		return section + 4 + (this.buffer.getInt(section) + 1) * 4 + 4;
+	}
+
+	private String string(int section, int code) {
+		int start = stringStart(section, code);
+		int length = stringEnd(section, code) - start;
+		if (length == 0) {
+			return "";
+		}
+		byte[] bytes = new byte[length];
+		int base = stringBytes(section) + start;
+		for (int i = 0; i < length; i++) {
+			bytes[i] = this.buffer.get(base + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private int code(int row, int column) {
+		return this.buffer.getInt(this.codes[column] + row * 4);
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public String get(int row, int column) {
+		if (this.dictionaries[column] < 0) {
+			return ColumnarTable.formatCoordinate(this.buffer.getDouble(this.codes[column] + row * 8));
+		}
+		return string(this.dictionaries[column], code(row, column));
+	}
+
+	@Override
+	public double latitude(int row) {
+		return this.buffer.getDouble(this.codes[this.latitudeColumn] + row * 8);
+	}
+
+	@Override
+	public double longitude(int row) {
+		return this.buffer.getDouble(this.codes[this.longitudeColumn] + row * 8);
+	}
+
+	@Override
+	public String key(int row, int searchColumn) {
+		return string(this.keys[searchColumn], searchCode(row, searchColumn));
+	}
+
+	private int searchCode(int row, int searchColumn) {
+		return code(row, this.searchColumns[searchColumn]);
+	}
+
+	@Override
+	public int keyCount() {
+		return this.keys.length;
+	}
+
+	/**
+	 * The mapped file itself is not counted, as it is held outside of the Java heap.
+	 */
+	@Override
+	public long memoryUsage() {
+		return 16 + 4L * (this.searchColumns.length + this.codes.length + this.dictionaries.length
+				+ this.keys.length);
+	}
+
+	/**
+	 * Matches the UTF-8 bytes of the key against the mapped bytes, without decoding any string.
+	 */
+	@Override
+	public boolean matches(int row, String key) {
+		EncodedKey encoded = this.lastKey;
+		if (encoded.key != key) {
+			encoded = new EncodedKey(key, key.getBytes(StandardCharsets.UTF_8));
+			this.lastKey = encoded;
+		}
+		for (int s = 0; s < this.keys.length; s++) {
+			int section = this.keys[s];
+			int code = searchCode(row, s);
+			int start = stringStart(section, code);
+			int end = stringEnd(section, code);
+			if (end > start && contains(stringBytes(section), start, end, encoded.bytes)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean contains(int base, int start, int end, byte[] pattern) {
+		int last = end - pattern.length;
+		for (int i = start; i <= last; i++) {
+			int j = 0;
+			while (j < pattern.length && this.buffer.get(base + i + j) == pattern[j]) {
+				j++;
+			}
+			if (j == pattern.length) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final class EncodedKey {
+		private final String key;
+		private final byte[] bytes;
+
+		private EncodedKey(String key, byte[] bytes) {
+			this.key = key;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * A temporary copy of a data file read from a jar, shared by the tables mapping it.
+	 */
+	static final class TemporaryCopy {
+
+		final Path path;
+
+		private TemporaryCopy(Path path) {
+			this.path = path;
+		}
+	}
+
+	private static final class CopyReference extends WeakReference<TemporaryCopy> {
+
+		private final String key;
+		private final Path path;
+
+		private CopyReference(String key, TemporaryCopy copy) {
+			super(copy, UNUSED_COPIES);
+			this.key = key;
+			this.path = copy.path;
+		}
+	}
+}
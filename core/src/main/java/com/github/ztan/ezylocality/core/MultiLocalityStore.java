@@ -0,0 +1,225 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Searches several countries at once. The countries are searched in parallel, each through its shared store from
+ * {@link LocalityStores}, and countries whose data cannot contain the search term are skipped without being
+ * searched.
+ * <pre>
+ * try (MultiLocalityStore store = new MultiLocalityStore(LocalityStore.supportedCountries());
+ *      Stream&lt;Map&lt;String, String&gt;&gt; stream = store.search("Springfield")) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * @author ztan
+ */
+public class MultiLocalityStore implements AutoCloseable {
+
+	private static final int QUEUE_CAPACITY = 256;
+
+	private static final Map<String, String> END = Collections.emptyMap();
+
+	private final Map<String, LocalityStore> stores = new LinkedHashMap<>();
+	private final Executor executor;
+
+	/**
+	 * Constructs a multi-country store searching on virtual threads when the Java runtime has them, and on a shared
+	 * pool of daemon threads otherwise.
+	 *
+	 * @param countryCodes ISO 3166-1 country codes
+	 */
+	public MultiLocalityStore(Collection<String> countryCodes) {
+		this(countryCodes, LocalityExecutors.defaultExecutor());
+	}
+
+	/**
+	 * Constructs a multi-country store.
+	 *
+	 * @param countryCodes ISO 3166-1 country codes
+	 * @param executor     the executor running the per-country searches
+	 */
+	public MultiLocalityStore(Collection<String> countryCodes, Executor executor) {
+		this.executor = executor;
+		countryCodes.forEach(c -> this.stores.computeIfAbsent(c, LocalityStores::get));
+	}
+
+	/**
+	 * @return the stores of the countries which may contain the search term
+	 */
+	private List<LocalityStore> candidates(String text) {
+		return this.stores.values().stream().filter(s -> s.mayMatch(text)).collect(Collectors.toList());
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) in all the countries, see {@link LocalityStore#search(String)}.
+	 * The results of each country are in the order of their appearance in its data file, but the results of
+	 * different countries are interleaved in the order they are found. Closing the stream stops the searches still
+	 * running.
+	 *
+	 * @param text the search term
+	 * @return a <code>Stream</code> instance backed by the searches of all the countries
+	 */
+	public Stream<Map<String, String>> search(final String text) {
+		List<LocalityStore> candidates = candidates(text);
+		if (candidates.isEmpty()) {
+			return Stream.empty();
+		}
+		Merge merge = new Merge(candidates.size());
+		for (LocalityStore store : candidates) {
+			this.executor.execute(() -> merge.produce(store, text));
+		}
+		return StreamSupport.stream(merge, false).onClose(merge::cancel);
+	}
+
+	/**
+	 * Counts the total occurrences of the search term in all the countries.
+	 *
+	 * @param text the search term
+	 * @return an integer
+	 */
+	public int count(final String text) {
+		return candidates(text).stream()
+				.map(s -> CompletableFuture.supplyAsync(() -> s.count(text), this.executor))
+				.collect(Collectors.toList()).stream()
+				.mapToInt(CompletableFuture::join).sum();
+	}
+
+	/**
+	 * Searches for a given term (<code>text</code>) in all the countries, and returns the <code>k</code> results
+	 * most similar to it across all of them, see {@link LocalityStore#searchTopK(String, int)}.
+	 *
+	 * @param text the search term
+	 * @param k    the maximum number of results
+	 * @return a <code>Stream</code> of at most <code>k</code> results in ascending order of 'rank'
+	 */
+	public Stream<Map<String, String>> searchTopK(final String text, int k) {
+		List<CompletableFuture<List<Map<String, String>>>> futures = candidates(text).stream()
+				.map(s -> CompletableFuture.supplyAsync(() -> {
+					try (Stream<Map<String, String>> stream = s.searchTopK(text, k)) {
+						return stream.collect(Collectors.toList());
+					}
+				}, this.executor))
+				.collect(Collectors.toList());
+		List<Map<String, String>> results = new ArrayList<>();
+		futures.forEach(f -> results.addAll(f.join()));
+		results.sort(Comparator.comparingDouble(m -> Double.parseDouble(m.get("rank"))));
+		return results.stream().limit(Math.max(k, 0));
+	}
+
+	/**
+	 * Looks up many postal codes at once in all the countries, see {@link LocalityStore#lookupPostcodes(Collection)}.
+	 * The countries are looked up in parallel.
+	 *
+	 * @param postcodes the postal codes to look up
+	 * @return a map from each distinct postal code, in the order given, to the localities having it, country by
+	 * country in the order the countries were given; the list is empty when there is none
+	 */
+	public Map<String, List<Locality>> lookupPostcodes(Collection<String> postcodes) {
+		List<CompletableFuture<Map<String, List<Locality>>>> futures = this.stores.values().stream()
+				.map(s -> CompletableFuture.supplyAsync(() -> s.lookupPostcodes(postcodes), this.executor))
+				.collect(Collectors.toList());
+		Map<String, List<Locality>> results = new LinkedHashMap<>();
+		postcodes.forEach(p -> results.put(p, new ArrayList<>()));
+		futures.forEach(f -> f.join().forEach((p, localities) -> results.get(p).addAll(localities)));
+		return results;
+	}
+
+	/**
+	 * Releases the stores of all the countries.
+	 */
+	@Override
+	public void close() {
+		this.stores.values().forEach(LocalityStore::close);
+		this.stores.clear();
+	}
+
+	/**
+	 * Merges the results produced by the per-country searches into a single stream, through a bounded queue.
+	 */
+	private static final class Merge extends Spliterators.AbstractSpliterator<Map<String, String>> {
+		private final BlockingQueue<Map<String, String>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		private volatile boolean cancelled;
+		private volatile RuntimeException failure;
+		private int running;
+
+		private Merge(int producers) {
+			super(Long.MAX_VALUE, Spliterator.NONNULL);
+			this.running = producers;
+		}
+
+		private void produce(LocalityStore store, String text) {
+			try (Stream<Map<String, String>> stream = store.search(text)) {
+				stream.anyMatch(item -> !put(item));
+			} catch (RuntimeException ex) {
+				this.failure = ex;
+			} finally {
+				put(END);
+			}
+		}
+
+		/**
+		 * @return <code>false</code> when the merge has been cancelled
+		 */
+		private boolean put(Map<String, String> item) {
+			try {
+				while (!this.cancelled) {
+					if (this.queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+						return true;
+					}
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+
+		private void cancel() {
+			this.cancelled = true;
+			this.queue.clear();
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Map<String, String>> action) {
+			while (this.running > 0) {
+				Map<String, String> item;
+				try {
+					item = this.queue.take();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					cancel();
+					return false;
+				}
+				if (item == END) {
+					this.running--;
+					if (this.failure != null) {
+						cancel();
+						throw this.failure;
+					}
+				} else {
+					action.accept(item);
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * A sorted index over the folded values of a search column of a {@link LocalityTable}, for prefix lookups. The
+ * distinct values are kept in a sorted array, and the rows of each value in a shared array ordered by value and then
+ * by row id, so the rows of all the values starting with a prefix form a single range found by two binary searches.
+ */
+final class PrefixIndex {
+
+	private final String[] keys;
+	private final int[] starts;
+	private final int[] rows;
+
+	private PrefixIndex(String[] keys, int[] starts, int[] rows) {
+		this.keys = keys;
+		this.starts = starts;
+		this.rows = rows;
+	}
+
+	/**
+	 * Builds the index over a search column of the table. Rows with an empty value are left out.
+	 */
+	static PrefixIndex build(LocalityTable table, int searchColumn) {
+		Map<String, Integer> codes = new HashMap<>();
+		int[] rowCodes = new int[table.size()];
+		for (int row = 0; row < table.size(); row++) {
+			String key = table.key(row, searchColumn);
+			rowCodes[row] = key.isEmpty() ? -1 : codes.computeIfAbsent(key, k -> codes.size());
+		}
+		String[] keys = codes.keySet().toArray(new String[0]);
+		Arrays.sort(keys);
+		int[] recode = new int[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			recode[codes.get(keys[i])] = i;
+		}
+
+		int[] starts = new int[keys.length + 1];
+		for (int row = 0; row < rowCodes.length; row++) {
+			if (rowCodes[row] >= 0) {
+				rowCodes[row] = recode[rowCodes[row]];
+				starts[rowCodes[row] + 1]++;
+			}
+		}
+		for (int i = 0; i < keys.length; i++) {
+			starts[i + 1] += starts[i];
+		}
+		int[] rows = new int[starts[keys.length]];
+		int[] next = Arrays.copyOf(starts, keys.length);
+		for (int row = 0; row < rowCodes.length; row++) {
+			if (rowCodes[row] >= 0) {
+				rows[next[rowCodes[row]]++] = row;
+			}
+		}
+		return new PrefixIndex(keys, starts, rows);
+	}
+
+	/**
+	 * @param prefix a folded prefix
+	 * @return the ids of the rows whose value starts with <code>prefix</code>, ordered by value and then by row id
+	 */
+	IntStream rows(String prefix) {
+		long range = range(prefix);
+		int[] rows = this.rows;
+		return IntStream.range((int) (range >>> 32), (int) range).map(i -> rows[i]);
+	}
+
+	/**
+	 * @param prefix a folded prefix
+	 * @return the number of rows whose value starts with <code>prefix</code>
+	 */
+	int count(String prefix) {
+		long range = range(prefix);
+		return (int) range - (int) (range >>> 32);
+	}
+
+	/**
+	 * @return the number of distinct values
+	 */
+	int keyCount() {
+		return this.keys.length;
+	}
+
+	/**
+	 * @return the distinct value at a position of the sorted values
+	 */
+	String key(int index) {
+		return this.keys[index];
+	}
+
+	/**
+	 * @return the ascending ids of the rows having the distinct value at a position of the sorted values
+	 */
+	IntStream rowsOfKey(int index) {
+		return Arrays.stream(this.rows, this.starts[index], this.starts[index + 1]);
+	}
+
+	/**
+	 * @return the start of the range of rows whose value starts with <code>prefix</code> in the upper half, and its
+	 * end in the lower half
+	 */
+	private long range(String prefix) {
+		int from = Arrays.binarySearch(this.keys, prefix);
+		if (from < 0) {
+			from = -from - 1;
+		}
+		int low = from;
+		int high = this.keys.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (this.keys[middle].startsWith(prefix)) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return (long) this.starts[from] << 32 | this.starts[low];
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the index holds on the Java heap
+	 */
+	long memoryUsage() {
+		long bytes = 16 + 4L * this.keys.length + 16 + 4L * this.starts.length + 16 + 4L * this.rows.length;
+		for (String key : this.keys) {
+			bytes += 40 + 2L * key.length();
+		}
+		return bytes;
+	}
+}
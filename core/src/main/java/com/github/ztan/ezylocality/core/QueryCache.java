@@ -0,0 +1,150 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A least recently used cache of the rows matching search keys. The cache is bounded by weight, i.e. the total
+ * number of row ids it holds, so that a few broad terms cannot crowd out many narrow ones without being accounted
+ * for. Each entry remembers the table it was computed against, and is never returned for any other table.
+ * <p>
+ * A miss is only cached once its rows have all been read, so that a search cut short by a limit verifies no more
+ * candidates than it returns.
+ */
+final class QueryCache {
+
+	/**
+	 * The weight of an entry over the number of its rows, accounting for the key and the entry itself.
+	 */
+	private static final int ENTRY_WEIGHT = 16;
+
+	private final long maximumWeight;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long weight;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	QueryCache(long maximumWeight) {
+		this.maximumWeight = maximumWeight;
+	}
+
+	/**
+	 * @param table the table the rows must have been computed against
+	 * @param key   the folded search key
+	 * @return the ascending ids of the rows matching the key, or <code>null</code> on a miss
+	 */
+	synchronized int[] get(LocalityTable table, String key) {
+		Entry entry = this.entries.get(key);
+		if (entry != null && entry.table == table) {
+			this.hitCount++;
+			return entry.rows;
+		}
+		this.missCount++;
+		return null;
+	}
+
+	/**
+	 * Wraps the rows computed on a miss, so that they are cached once the stream has been read to its end. Nothing is
+	 * cached when the stream is cut short, or when the rows would weigh more than the whole cache.
+	 *
+	 * @param rows the ascending ids of the rows matching the key, computed lazily
+	 */
+	IntStream fill(LocalityTable table, String key, IntStream rows) {
+		PrimitiveIterator.OfInt iterator = rows.iterator();
+		Spliterator.OfInt spliterator = new Spliterators.AbstractIntSpliterator(Long.MAX_VALUE,
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+			private int[] buffer = new int[16];
+			private int size;
+
+			@Override
+			public boolean tryAdvance(IntConsumer action) {
+				if (!iterator.hasNext()) {
+					if (this.buffer != null) {
+						put(table, key, Arrays.copyOf(this.buffer, this.size));
+						this.buffer = null;
+					}
+					return false;
+				}
+				int row = iterator.nextInt();
+				if (this.buffer != null) {
+					if (ENTRY_WEIGHT + this.size >= QueryCache.this.maximumWeight) {
+						this.buffer = null;
+					} else {
+						if (this.size == this.buffer.length) {
+							this.buffer = Arrays.copyOf(this.buffer, this.size * 2);
+						}
+						this.buffer[this.size++] = row;
+					}
+				}
+				action.accept(row);
+				return true;
+			}
+		};
+		return StreamSupport.intStream(spliterator, false).onClose(rows::close);
+	}
+
+	private synchronized void put(LocalityTable table, String key, int[] rows) {
+		long entryWeight = weightOf(rows);
+		if (entryWeight > this.maximumWeight) {
+			return;
+		}
+		Entry previous = this.entries.put(key, new Entry(table, rows));
+		if (previous != null) {
+			this.weight -= weightOf(previous.rows);
+		}
+		this.weight += entryWeight;
+		Iterator<Entry> eldest = this.entries.values().iterator();
+		while (this.weight > this.maximumWeight) {
+			this.weight -= weightOf(eldest.next().rows);
+			eldest.remove();
+			this.evictionCount++;
+		}
+	}
+
+	private static long weightOf(int[] rows) {
+		return ENTRY_WEIGHT + rows.length;
+	}
+
+	/**
+	 * Removes all entries, e.g. after the data they were computed from has changed.
+	 */
+	synchronized void invalidateAll() {
+		this.entries.clear();
+		this.weight = 0;
+	}
+
+	synchronized QueryCacheStats stats() {
+		return new QueryCacheStats(this.hitCount, this.missCount, this.evictionCount, this.entries.size(),
+				this.weight);
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the cache holds on the Java heap
+	 */
+	synchronized long memoryUsage() {
+		long bytes = 0;
+		for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+			bytes += 40 + 2L * entry.getKey().length() + 64 + 16 + 4L * entry.getValue().rows.length;
+		}
+		return bytes;
+	}
+
+	private static final class Entry {
+		private final LocalityTable table;
+		private final int[] rows;
+
+		private Entry(LocalityTable table, int[] rows) {
+			this.table = table;
+			this.rows = rows;
+		}
+	}
+}
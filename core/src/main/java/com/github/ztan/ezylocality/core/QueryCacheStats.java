@@ -0,0 +1,73 @@
+package com.github.ztan.ezylocality.core;
+
+/**
+ * A snapshot of the statistics of the query cache of a {@link LocalityStore}.
+ *
+ * @author ztan
+ * @see LocalityStore#setQueryCacheSize(long)
+ */
+public final class QueryCacheStats {
+
+	private final long hitCount;
+	private final long missCount;
+	private final long evictionCount;
+	private final int entryCount;
+	private final long weight;
+
+	QueryCacheStats(long hitCount, long missCount, long evictionCount, int entryCount, long weight) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.evictionCount = evictionCount;
+		this.entryCount = entryCount;
+		this.weight = weight;
+	}
+
+	/**
+	 * @return the number of queries answered from the cache
+	 */
+	public long getHitCount() {
+		return this.hitCount;
+	}
+
+	/**
+	 * @return the number of queries which had to be computed
+	 */
+	public long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * @return the number of entries removed to keep the cache within its size
+	 */
+	public long getEvictionCount() {
+		return this.evictionCount;
+	}
+
+	/**
+	 * @return the number of cached search terms
+	 */
+	public int getEntryCount() {
+		return this.entryCount;
+	}
+
+	/**
+	 * @return the current weight of the cache, in the unit of {@link LocalityStore#setQueryCacheSize(long)}
+	 */
+	public long getWeight() {
+		return this.weight;
+	}
+
+	/**
+	 * @return the ratio of queries answered from the cache, or 0 when there has been no query
+	 */
+	public double getHitRate() {
+		long requests = this.hitCount + this.missCount;
+		return requests == 0 ? 0 : (double) this.hitCount / requests;
+	}
+
+	@Override
+	public String toString() {
+		return "QueryCacheStats{hitCount=" + this.hitCount + ", missCount=" + this.missCount + ", evictionCount="
+				+ this.evictionCount + ", entryCount=" + this.entryCount + ", weight=" + this.weight + "}";
+	}
+}
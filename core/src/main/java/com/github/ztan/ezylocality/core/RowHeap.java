@@ -0,0 +1,131 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Arrays;
+
+/**
+ * Row ids paired with <code>double</code> scores, where a lower score is better. While collecting it is either a
+ * bounded max-heap keeping the <code>capacity</code> best rows offered so far, or an unbounded list; once sorted,
+ * the rows are in ascending order of score, and of row id for equal scores.
+ */
+final class RowHeap {
+
+	private final int capacity;
+	private int[] rows;
+	private double[] scores;
+	private int size;
+
+	/**
+	 * @param capacity the maximum number of rows to keep, or a negative value for an unbounded list
+	 */
+	RowHeap(int capacity) {
+		this.capacity = capacity;
+		this.rows = new int[capacity < 0 ? 16 : capacity];
+		this.scores = new double[this.rows.length];
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	int row(int i) {
+		return this.rows[i];
+	}
+
+	double score(int i) {
+		return this.scores[i];
+	}
+
+	/**
+	 * @return the score a row must not exceed to be kept
+	 */
+	double bound() {
+		return this.capacity < 0 || this.size < this.capacity ? Double.POSITIVE_INFINITY : this.scores[0];
+	}
+
+	/**
+	 * Adds a row to an unbounded list.
+	 */
+	void add(int row, double score) {
+		if (this.size == this.rows.length) {
+			this.rows = Arrays.copyOf(this.rows, this.size * 2);
+			this.scores = Arrays.copyOf(this.scores, this.size * 2);
+		}
+		this.rows[this.size] = row;
+		this.scores[this.size] = score;
+		this.size++;
+	}
+
+	/**
+	 * Offers a row to a bounded heap, replacing the worst row kept when the heap is full and the new row is better.
+	 */
+	void offer(int row, double score) {
+		if (this.size < this.capacity) {
+			add(row, score);
+			siftUp(this.size - 1);
+		} else if (this.capacity > 0
+				&& (score < this.scores[0] || (score == this.scores[0] && row < this.rows[0]))) {
+			this.rows[0] = row;
+			this.scores[0] = score;
+			siftDown(0, this.size);
+		}
+	}
+
+	/**
+	 * Heap sorts the rows into ascending order of score.
+	 *
+	 * @return this instance
+	 */
+	RowHeap sort() {
+		if (this.capacity < 0) {
+			for (int i = 1; i < this.size; i++) {
+				siftUp(i);
+			}
+		}
+		for (int end = this.size - 1; end > 0; end--) {
+			swap(0, end);
+			siftDown(0, end);
+		}
+		return this;
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!greater(i, parent)) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int size) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				return;
+			}
+			if (child + 1 < size && greater(child + 1, child)) {
+				child++;
+			}
+			if (!greater(child, i)) {
+				return;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private boolean greater(int i, int j) {
+		return this.scores[i] > this.scores[j] || (this.scores[i] == this.scores[j] && this.rows[i] > this.rows[j]);
+	}
+
+	private void swap(int i, int j) {
+		int row = this.rows[i];
+		this.rows[i] = this.rows[j];
+		this.rows[j] = row;
+		double score = this.scores[i];
+		this.scores[i] = this.scores[j];
+		this.scores[j] = score;
+	}
+}
@@ -0,0 +1,110 @@
+package com.github.ztan.ezylocality.core;
+
+import java.text.Normalizer;
+
+/**
+ * Folds values and search terms into the search keys they are matched by, so that matching ignores case, accents and
+ * punctuation, e.g. "Zürich" and "ZURICH" are both keyed "zurich", and "St. Kilda" and "st kilda" are both keyed
+ * "st kilda".
+ * <p>
+ * Text is decomposed (NFKD), the accents of Latin, Greek and Cyrillic letters are stripped, letters are case folded,
+ * and every run of whitespace and punctuation becomes a single space, with none at either end. Letters which do not
+ * decompose, like 'ł' or 'ø', are mapped to their base letter, and ligatures like 'ß' or 'æ' to their letters. The
+ * marks of other scripts are kept, as they are part of their letters there.
+ */
+final class SearchKeys {
+
+	private SearchKeys() {
+	}
+
+	/**
+	 * @return the search key of a value or a search term
+	 */
+	static String fold(String text) {
+		String decomposed = isAscii(text) ? text : Normalizer.normalize(text, Normalizer.Form.NFKD);
+		StringBuilder key = new StringBuilder(decomposed.length());
+		boolean separated = false;
+		boolean accented = false;
+		for (int i = 0; i < decomposed.length(); ) {
+			int c = decomposed.codePointAt(i);
+			i += Character.charCount(c);
+			if (isMark(c)) {
+				if (!accented) {
+					key.appendCodePoint(c);
+				}
+			} else if (Character.isLetterOrDigit(c)) {
+				if (separated && key.length() > 0) {
+					key.append(' ');
+				}
+				separated = false;
+				accented = hasAccents(c);
+				appendFolded(key, Character.toLowerCase(Character.toUpperCase(c)));
+			} else {
+				separated = true;
+			}
+		}
+		return key.toString();
+	}
+
+	private static boolean isAscii(String text) {
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) >= 0x80) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isMark(int c) {
+		int type = Character.getType(c);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+				|| type == Character.ENCLOSING_MARK;
+	}
+
+	/**
+	 * @return whether the marks following the letter are accents, to be stripped
+	 */
+	private static boolean hasAccents(int c) {
+		if (c < 0x80) {
+			return true;
+		}
+		Character.UnicodeScript script = Character.UnicodeScript.of(c);
+		return script == Character.UnicodeScript.LATIN || script == Character.UnicodeScript.GREEK
+				|| script == Character.UnicodeScript.CYRILLIC;
+	}
+
+	private static void appendFolded(StringBuilder key, int c) {
+		switch (c) {
+			case 'ß':
+				key.append("ss");
+				break;
+			case 'æ':
+				key.append("ae");
+				break;
+			case 'œ':
+				key.append("oe");
+				break;
+			case 'þ':
+				key.append("th");
+				break;
+			case 'ø':
+				key.append('o');
+				break;
+			case 'ł':
+				key.append('l');
+				break;
+			case 'đ':
+			case 'ð':
+				key.append('d');
+				break;
+			case 'ħ':
+				key.append('h');
+				break;
+			case 'ı':
+				key.append('i');
+				break;
+			default:
+				key.appendCodePoint(c);
+		}
+	}
+}
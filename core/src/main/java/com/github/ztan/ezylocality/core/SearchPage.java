@@ -0,0 +1,43 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of search results, with the cursor to fetch the next one.
+ *
+ * @author ztan
+ * @see LocalityStore#searchPage(String, int, String)
+ */
+public final class SearchPage {
+
+	private final List<Map<String, String>> results;
+	private final String nextCursor;
+
+	SearchPage(List<Map<String, String>> results, String nextCursor) {
+		this.results = Collections.unmodifiableList(results);
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * @return the results of the page, in the order of their appearance in the data file. Each element has the same
+	 * keys as the elements returned by {@link LocalityStore#search(String)}.
+	 */
+	public List<Map<String, String>> getResults() {
+		return this.results;
+	}
+
+	/**
+	 * @return the opaque cursor to pass to {@link LocalityStore#searchPage(String, int, String)} for the next page, or
+	 * <code>null</code> when this is the last page
+	 */
+	public String getNextCursor() {
+		return this.nextCursor;
+	}
+
+	@Override
+	public String toString() {
+		return "SearchPage{results=" + this.results.size() + ", nextCursor=" + this.nextCursor + "}";
+	}
+}
@@ -0,0 +1,147 @@
+package com.github.ztan.ezylocality.core;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Publishes the results of a search to each subscriber as they are requested. A subscription runs its query on the
+ * executor: the query is only started once the first result is requested, results are only emitted as far as they
+ * are requested, and no thread is held while waiting for more demand. Completing, failing or cancelling a
+ * subscription closes its query, i.e. the JDBC result set, statement and connection chained to the search stream.
+ */
+final class SearchPublisher<T> implements Publisher<T> {
+
+	private final Supplier<Stream<T>> query;
+	private final Executor executor;
+
+	SearchPublisher(Supplier<Stream<T>> query, Executor executor) {
+		this.query = query;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber");
+		subscriber.onSubscribe(new SearchSubscription<>(subscriber, this.query, this.executor));
+	}
+
+	/**
+	 * Emits results from a single drain loop at a time, scheduled on the executor whenever there is demand or a
+	 * cancellation to act on.
+	 */
+	private static final class SearchSubscription<T> implements Subscription, Runnable {
+		private final Subscriber<? super T> subscriber;
+		private final Supplier<Stream<T>> query;
+		private final Executor executor;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger pending = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile Throwable invalidRequest;
+		private Stream<T> stream;
+		private Iterator<T> iterator;
+		private boolean done;
+
+		private SearchSubscription(Subscriber<? super T> subscriber, Supplier<Stream<T>> query, Executor executor) {
+			this.subscriber = subscriber;
+			this.query = query;
+			this.executor = executor;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				this.invalidRequest = new IllegalArgumentException("Requested " + n + " items, must be positive.");
+			} else {
+				long current;
+				do {
+					current = this.requested.get();
+				} while (current != Long.MAX_VALUE
+						&& !this.requested.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			this.cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (this.pending.getAndIncrement() == 0) {
+				try {
+					this.executor.execute(this);
+				} catch (RuntimeException ex) {
+					this.cancelled = true;
+					this.subscriber.onError(ex);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			while (!this.done) {
+				if (this.cancelled) {
+					finish();
+					return;
+				}
+				if (this.invalidRequest != null) {
+					finish();
+					this.subscriber.onError(this.invalidRequest);
+					return;
+				}
+				long demand = this.requested.get();
+				long emitted = 0;
+				try {
+					if (this.iterator == null && demand > 0) {
+						this.stream = this.query.get();
+						this.iterator = this.stream.iterator();
+					}
+					while (emitted != demand && !this.cancelled) {
+						if (!this.iterator.hasNext()) {
+							finish();
+							this.subscriber.onComplete();
+							return;
+						}
+						this.subscriber.onNext(this.iterator.next());
+						emitted++;
+					}
+				} catch (RuntimeException ex) {
+					finish();
+					this.subscriber.onError(ex);
+					return;
+				}
+				if (emitted != 0 && demand != Long.MAX_VALUE) {
+					this.requested.addAndGet(-emitted);
+				}
+				missed = this.pending.addAndGet(-missed);
+				if (missed == 0) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Closes the query and ignores any further signal.
+		 */
+		private void finish() {
+			this.done = true;
+			this.cancelled = true;
+			if (this.stream != null) {
+				this.stream.close();
+				this.stream = null;
+				this.iterator = null;
+			}
+		}
+	}
+}
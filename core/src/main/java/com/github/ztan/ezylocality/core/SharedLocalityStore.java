@@ -0,0 +1,222 @@
+package com.github.ztan.ezylocality.core;
+
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * A handle on a store shared through {@link LocalityStores}, one per call to {@link LocalityStores#get(String)}.
+ * Every query goes to the shared store. Closing the handle releases its hold on the shared store once, however many
+ * times it is closed, and the handle cannot be used afterwards. The shared store can only be disposed by the registry,
+ * once its last handle is closed.
+ */
+final class SharedLocalityStore extends LocalityStore {
+
+	private final LocalityStore store;
+	private final Runnable release;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	/**
+	 * @param store   the shared store
+	 * @param release releases the hold of the handle on the shared store
+	 */
+	SharedLocalityStore(LocalityStore store, Runnable release) {
+		super(store);
+		this.store = store;
+		this.release = release;
+	}
+
+	private LocalityStore store() {
+		if (this.closed.get()) {
+			throw new IllegalStateException("The store is closed.");
+		}
+		return this.store;
+	}
+
+	/**
+	 * Releases the shared store, unless the handle is closed already.
+	 */
+	@Override
+	public void close() {
+		if (this.closed.compareAndSet(false, true)) {
+			this.release.run();
+		}
+	}
+
+	/**
+	 * @throws UnsupportedOperationException always, as a shared store is disposed by {@link LocalityStores} once all
+	 *                                       of its users have closed it
+	 */
+	@Override
+	public void dispose() {
+		throw new UnsupportedOperationException("A shared store is disposed once all of its users have closed it.");
+	}
+
+	@Override
+	protected void finalize() {
+		close();
+	}
+
+	@Override
+	public void reload(URL dataFile) throws IOException {
+		store().reload(dataFile);
+	}
+
+	@Override
+	public CompletableFuture<Void> reloadAsync(URL dataFile) {
+		return store().reloadAsync(dataFile);
+	}
+
+	@Override
+	public long memoryUsage() {
+		return store().memoryUsage();
+	}
+
+	@Override
+	int size() {
+		return store().size();
+	}
+
+	@Override
+	public void setQueryCacheSize(long maximumWeight) {
+		store().setQueryCacheSize(maximumWeight);
+	}
+
+	@Override
+	public QueryCacheStats queryCacheStats() {
+		return store().queryCacheStats();
+	}
+
+	@Override
+	public Stream<Map<String, String>> search(String text) {
+		return store().search(text);
+	}
+
+	@Override
+	public Stream<Map<String, String>> search(String text, boolean rank) {
+		return store().search(text, rank);
+	}
+
+	@Override
+	public SearchPage searchPage(String text, int pageSize, String cursor) {
+		return store().searchPage(text, pageSize, cursor);
+	}
+
+	@Override
+	public Stream<Map<String, String>> fulltextSearch(String text) {
+		return store().fulltextSearch(text);
+	}
+
+	@Override
+	public Stream<Locality> searchLocalities(String text) {
+		return store().searchLocalities(text);
+	}
+
+	@Override
+	public Stream<Locality> searchLocalities(String text, boolean reuse) {
+		return store().searchLocalities(text, reuse);
+	}
+
+	@Override
+	public Stream<Map<String, String>> searchTopK(String text, int k) {
+		return store().searchTopK(text, k);
+	}
+
+	@Override
+	public Stream<Map<String, String>> fuzzySearch(String text, int maxDistance) {
+		return store().fuzzySearch(text, maxDistance);
+	}
+
+	@Override
+	public int count(String text) {
+		return store().count(text);
+	}
+
+	@Override
+	public Stream<Map<String, String>> prefixSearch(String field, String prefix, int limit) {
+		return store().prefixSearch(field, prefix, limit);
+	}
+
+	@Override
+	public Map<String, List<Locality>> lookupPostcodes(Collection<String> postcodes) {
+		return store().lookupPostcodes(postcodes);
+	}
+
+	@Override
+	public CompletableFuture<List<Map<String, String>>> searchAsync(String text, int limit) {
+		return store().searchAsync(text, limit);
+	}
+
+	@Override
+	public CompletableFuture<List<Map<String, String>>> searchAsync(String text, int limit, Executor executor) {
+		return store().searchAsync(text, limit, executor);
+	}
+
+	@Override
+	public CompletableFuture<Integer> countAsync(String text) {
+		return store().countAsync(text);
+	}
+
+	@Override
+	public CompletableFuture<Integer> countAsync(String text, Executor executor) {
+		return store().countAsync(text, executor);
+	}
+
+	@Override
+	public Publisher<Map<String, String>> searchPublisher(String text) {
+		return store().searchPublisher(text);
+	}
+
+	@Override
+	public Publisher<Map<String, String>> searchPublisher(String text, Executor executor) {
+		return store().searchPublisher(text, executor);
+	}
+
+	@Override
+	public Stream<Map<String, String>> nearest(double latitude, double longitude, int k) {
+		return store().nearest(latitude, longitude, k);
+	}
+
+	@Override
+	public Stream<Map<String, String>> withinRadius(double latitude, double longitude, double kilometres) {
+		return store().withinRadius(latitude, longitude, kilometres);
+	}
+
+	@Override
+	public Stream<Map<String, String>> query(LocalityQuery query) {
+		return store().query(query);
+	}
+
+	@Override
+	public int count(LocalityQuery query) {
+		return store().count(query);
+	}
+
+	@Override
+	public AdminArea hierarchy() {
+		return store().hierarchy();
+	}
+
+	@Override
+	public FacetedResults searchFaceted(String text, int limit) {
+		return store().searchFaceted(text, limit);
+	}
+
+	@Override
+	public FacetedResults queryFaceted(LocalityQuery query, int limit) {
+		return store().queryFaceted(query, limit);
+	}
+
+	@Override
+	boolean mayMatch(String text) {
+		return store().mayMatch(text);
+	}
+}
@@ -0,0 +1,329 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Arrays;
+
+/**
+ * A static KD-tree over the coordinates of a {@link LocalityTable}. Coordinates are converted to points on the unit
+ * sphere, so that the straight-line (chord) distance between two points grows with their great-circle distance and
+ * no special handling is needed around the poles or the antimeridian. The tree is implicit: the median of every
+ * range of the point arrays is the node splitting that range, which keeps it in a few primitive arrays.
+ */
+final class SpatialIndex {
+
+	/**
+	 * Mean earth radius in kilometres.
+	 */
+	static final double EARTH_RADIUS = 6371.0088;
+
+	private final int[] rows;
+	private final double[][] points;
+	/**
+	 * The lower and upper bounds of the points on each axis.
+	 */
+	private final double[][] extent = {{1, 1, 1}, {-1, -1, -1}};
+
+	private SpatialIndex(int[] rows, double[][] points) {
+		this.rows = rows;
+		this.points = points;
+		for (int axis = 0; axis < 3; axis++) {
+			for (double value : points[axis]) {
+				this.extent[0][axis] = Math.min(this.extent[0][axis], value);
+				this.extent[1][axis] = Math.max(this.extent[1][axis], value);
+			}
+		}
+	}
+
+	/**
+	 * Builds the index over all rows with known coordinates.
+	 */
+	static SpatialIndex build(LocalityTable table) {
+		int[] rows = new int[table.size()];
+		double[][] points = new double[3][table.size()];
+		int size = 0;
+		for (int row = 0; row < table.size(); row++) {
+			double latitude = table.latitude(row);
+			double longitude = table.longitude(row);
+			if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+				continue;
+			}
+			rows[size] = row;
+			toPoint(latitude, longitude, points, size);
+			size++;
+		}
+		rows = Arrays.copyOf(rows, size);
+		for (int axis = 0; axis < 3; axis++) {
+			points[axis] = Arrays.copyOf(points[axis], size);
+		}
+		SpatialIndex index = new SpatialIndex(rows, points);
+		index.split(0, size, 0);
+		return index;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the index holds on the Java heap
+	 */
+	long memoryUsage() {
+		return 16 + 4L * this.rows.length + 3 * (16 + 8L * this.rows.length);
+	}
+
+	private static void toPoint(double latitude, double longitude, double[][] points, int i) {
+		double[] point = point(latitude, longitude);
+		for (int axis = 0; axis < 3; axis++) {
+			points[axis][i] = point[axis];
+		}
+	}
+
+	/**
+	 * @return the great-circle distance in kilometres of a squared chord length on the unit sphere
+	 */
+	static double toKilometres(double squaredChord) {
+		return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(squaredChord) / 2));
+	}
+
+	/**
+	 * @return the squared chord length on the unit sphere of a great-circle distance in kilometres
+	 */
+	private static double toSquaredChord(double kilometres) {
+		double chord = 2 * Math.sin(Math.min(Math.PI, kilometres / EARTH_RADIUS) / 2);
+		return chord * chord;
+	}
+
+	private void split(int from, int to, int axis) {
+		if (to - from < 2) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, axis);
+		split(from, mid, (axis + 1) % 3);
+		split(mid + 1, to, (axis + 1) % 3);
+	}
+
+	/**
+	 * Partially sorts <code>[left, right]</code> on <code>axis</code> so that the element at <code>k</code> is the
+	 * one a full sort would put there.
+	 */
+	private void select(int left, int right, int k, int axis) {
+		double[] values = this.points[axis];
+		while (right > left) {
+			double pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int row = this.rows[i];
+		this.rows[i] = this.rows[j];
+		this.rows[j] = row;
+		for (double[] values : this.points) {
+			double value = values[i];
+			values[i] = values[j];
+			values[j] = value;
+		}
+	}
+
+	private double squaredDistance(int i, double[] point) {
+		double dx = this.points[0][i] - point[0];
+		double dy = this.points[1][i] - point[1];
+		double dz = this.points[2][i] - point[2];
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private static double[] point(double latitude, double longitude) {
+		double lat = Math.toRadians(latitude);
+		double lon = Math.toRadians(longitude);
+		return new double[]{Math.cos(lat) * Math.cos(lon), Math.cos(lat) * Math.sin(lon), Math.sin(lat)};
+	}
+
+	/**
+	 * Finds the <code>k</code> rows nearest to a location.
+	 *
+	 * @return the rows scored by squared chord distance, see {@link #toKilometres(double)}
+	 */
+	RowHeap nearest(double latitude, double longitude, int k) {
+		RowHeap heap = new RowHeap(Math.min(k, this.rows.length));
+		nearest(point(latitude, longitude), 0, this.rows.length, 0, heap);
+		return heap.sort();
+	}
+
+	private void nearest(double[] point, int from, int to, int axis, RowHeap heap) {
+		if (from >= to) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		heap.offer(this.rows[mid], squaredDistance(mid, point));
+		double delta = point[axis] - this.points[axis][mid];
+		int next = (axis + 1) % 3;
+		if (delta < 0) {
+			nearest(point, from, mid, next, heap);
+			if (delta * delta <= heap.bound()) {
+				nearest(point, mid + 1, to, next, heap);
+			}
+		} else {
+			nearest(point, mid + 1, to, next, heap);
+			if (delta * delta <= heap.bound()) {
+				nearest(point, from, mid, next, heap);
+			}
+		}
+	}
+
+	/**
+	 * Finds all the rows within a great-circle distance of a location.
+	 *
+	 * @return the rows scored by squared chord distance, see {@link #toKilometres(double)}
+	 */
+	RowHeap withinRadius(double latitude, double longitude, double kilometres) {
+		RowHeap hits = new RowHeap(-1);
+		withinRadius(point(latitude, longitude), toSquaredChord(kilometres), 0, this.rows.length, 0, hits);
+		return hits.sort();
+	}
+
+	private void withinRadius(double[] point, double bound, int from, int to, int axis, RowHeap hits) {
+		if (from >= to) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		double distance = squaredDistance(mid, point);
+		if (distance <= bound) {
+			hits.add(this.rows[mid], distance);
+		}
+		double delta = point[axis] - this.points[axis][mid];
+		int next = (axis + 1) % 3;
+		if (delta <= 0 || delta * delta <= bound) {
+			withinRadius(point, bound, from, mid, next, hits);
+		}
+		if (delta >= 0 || delta * delta <= bound) {
+			withinRadius(point, bound, mid + 1, to, next, hits);
+		}
+	}
+
+	/**
+	 * Finds the candidate rows within a latitude and longitude range. As the range is not a box on the unit sphere,
+	 * the rows found are those within the box bounding it, which the caller checks against the range itself.
+	 *
+	 * @param east a longitude less than <code>west</code> for a range crossing the antimeridian
+	 * @return the ascending ids of the candidate rows
+	 */
+	int[] withinBox(double south, double west, double north, double east) {
+		int[][] hits = {new int[16], {0}};
+		withinBox(bounds(south, west, north, east), 0, this.rows.length, 0, hits);
+		int[] rows = Arrays.copyOf(hits[0], hits[1][0]);
+		Arrays.sort(rows);
+		return rows;
+	}
+
+	/**
+	 * @param hits the rows found so far, and their number
+	 */
+	private void withinBox(double[][] bounds, int from, int to, int axis, int[][] hits) {
+		if (from >= to) {
+			return;
+		}
+		int mid = (from + to) >>> 1;
+		boolean inside = true;
+		for (int a = 0; a < 3 && inside; a++) {
+			double value = this.points[a][mid];
+			inside = bounds[0][a] <= value && value <= bounds[1][a];
+		}
+		if (inside) {
+			int size = hits[1][0];
+			if (size == hits[0].length) {
+				hits[0] = Arrays.copyOf(hits[0], size * 2);
+			}
+			hits[0][size] = this.rows[mid];
+			hits[1][0] = size + 1;
+		}
+		double value = this.points[axis][mid];
+		int next = (axis + 1) % 3;
+		if (bounds[0][axis] <= value) {
+			withinBox(bounds, from, mid, next, hits);
+		}
+		if (value <= bounds[1][axis]) {
+			withinBox(bounds, mid + 1, to, next, hits);
+		}
+	}
+
+	/**
+	 * Estimates the number of rows within a latitude and longitude range, assuming the points are spread evenly
+	 * over the box bounding them all.
+	 */
+	int estimateWithinBox(double south, double west, double north, double east) {
+		double[][] bounds = bounds(south, west, north, east);
+		double fraction = 1;
+		for (int axis = 0; axis < 3; axis++) {
+			double width = this.extent[1][axis] - this.extent[0][axis];
+			double overlap = Math.min(bounds[1][axis], this.extent[1][axis])
+					- Math.max(bounds[0][axis], this.extent[0][axis]);
+			if (overlap < 0) {
+				return 0;
+			}
+			fraction *= width <= 0 ? 1 : Math.min(1, overlap / width);
+		}
+		return (int) Math.ceil(fraction * this.rows.length);
+	}
+
+	/**
+	 * @return the lower and upper bounds on each axis of the points within a latitude and longitude range
+	 */
+	private static double[][] bounds(double south, double west, double north, double east) {
+		if (east < west) {
+			east += 360;
+		}
+		double cosSouth = Math.cos(Math.toRadians(south));
+		double cosNorth = Math.cos(Math.toRadians(north));
+		double[] cosLatitude = {Math.min(cosSouth, cosNorth),
+				south <= 0 && north >= 0 ? 1 : Math.max(cosSouth, cosNorth)};
+		double[] x = multiply(cosLatitude, range(west, east, 0));
+		double[] y = multiply(cosLatitude, range(west, east, 90));
+		// widened a little, so that points on the edges are not lost to rounding
+		double margin = 1e-9;
+		return new double[][]{
+				{x[0] - margin, y[0] - margin, Math.sin(Math.toRadians(south)) - margin},
+				{x[1] + margin, y[1] + margin, Math.sin(Math.toRadians(north)) + margin}};
+	}
+
+	/**
+	 * @param phase 0 for the range of the cosine, 90 for the range of the sine
+	 * @return the lower and upper bounds of the cosine of <code>degrees - phase</code> over a range of degrees
+	 */
+	private static double[] range(double from, double to, double phase) {
+		double a = Math.cos(Math.toRadians(from - phase));
+		double b = Math.cos(Math.toRadians(to - phase));
+		double[] range = {Math.min(a, b), Math.max(a, b)};
+		// the cosine peaks at even multiples of 180 degrees, and bottoms out at odd ones
+		for (long k = (long) Math.ceil((from - phase) / 180); k * 180 <= to - phase; k++) {
+			if (k % 2 == 0) {
+				range[1] = 1;
+			} else {
+				range[0] = -1;
+			}
+		}
+		return range;
+	}
+
+	private static double[] multiply(double[] a, double[] b) {
+		double p1 = a[0] * b[0];
+		double p2 = a[0] * b[1];
+		double p3 = a[1] * b[0];
+		double p4 = a[1] * b[1];
+		return new double[]{Math.min(Math.min(p1, p2), Math.min(p3, p4)), Math.max(Math.max(p1, p2), Math.max(p3, p4))};
+	}
+}
@@ -0,0 +1,362 @@
+package com.github.ztan.ezylocality.core;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A character trigram inverted index over the search keys of a {@link LocalityTable}. For every sequence of 3
+ * consecutive characters found in any search column, the index keeps the ascending list of the rows containing it,
+ * compressed as the gaps between rows.
+ * <p>
+ * A row containing a search term contains all of the term's trigrams, therefore intersecting the posting lists of
+ * those trigrams yields a (usually very small) superset of the matching rows, which can then be verified with
+ * {@link LocalityTable#matches(int, String)}.
+ */
+final class TrigramIndex {
+
+	static final int GRAM_LENGTH = 3;
+
+	/**
+	 * The number of rows of a posting list between two of its skip entries.
+	 */
+	private static final int BLOCK_SIZE = 64;
+	private static final int NO_MORE_ROWS = Integer.MAX_VALUE;
+	private static final int[] NO_ROWS = new int[0];
+
+	private long[] slots;
+	private int[] offsets;
+	private byte[] data;
+	private int[] skips;
+
+	// the posting lists as they are built, before they are encoded
+	private int[][] postings;
+	private int[] sizes;
+	private int count;
+
+	private TrigramIndex(int capacity) {
+		this.slots = new long[capacity];
+		Arrays.fill(this.slots, -1L);
+		this.postings = new int[capacity][];
+		this.sizes = new int[capacity];
+	}
+
+	/**
+	 * Builds the index for all search columns of the table.
+	 */
+	static TrigramIndex build(LocalityTable table) {
+		TrigramIndex index = new TrigramIndex(1 << 12);
+		for (int row = 0; row < table.size(); row++) {
+			for (int c = 0; c < table.keyCount(); c++) {
+				String key = table.key(row, c);
+				for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+					index.add(trigram(key, i), row);
+				}
+			}
+		}
+		index.encode();
+		return index;
+	}
+
+	private static long trigram(String text, int offset) {
+		return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+	}
+
+	private int slotOf(long trigram) {
+		int mask = this.slots.length - 1;
+		int slot = Long.hashCode(trigram * 0x9E3779B97F4A7C15L) & mask;
+		while (this.slots[slot] != -1L && this.slots[slot] != trigram) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void add(long trigram, int row) {
+		int slot = slotOf(trigram);
+		if (this.slots[slot] == -1L) {
+			if ((this.count + 1) * 2 > this.slots.length) {
+				rehash();
+				slot = slotOf(trigram);
+			}
+			this.slots[slot] = trigram;
+			this.postings[slot] = new int[4];
+			this.count++;
+		}
+		int[] rows = this.postings[slot];
+		int size = this.sizes[slot];
+		// rows are added in ascending order, so a duplicate can only be the last element
+		if (size > 0 && rows[size - 1] == row) {
+			return;
+		}
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+			this.postings[slot] = rows;
+		}
+		rows[size] = row;
+		this.sizes[slot] = size + 1;
+	}
+
+	private void rehash() {
+		long[] oldSlots = this.slots;
+		int[][] oldPostings = this.postings;
+		int[] oldSizes = this.sizes;
+		this.slots = new long[oldSlots.length * 2];
+		Arrays.fill(this.slots, -1L);
+		this.postings = new int[this.slots.length][];
+		this.sizes = new int[this.slots.length];
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != -1L) {
+				int slot = slotOf(oldSlots[i]);
+				this.slots[slot] = oldSlots[i];
+				this.postings[slot] = oldPostings[i];
+				this.sizes[slot] = oldSizes[i];
+			}
+		}
+	}
+
+	/**
+	 * Encodes all posting lists into a single byte array. A list starts with its size, followed by the start of its
+	 * skip entries when it is longer than a block, and by the gaps between its ascending rows, all as variable length
+	 * integers. As most gaps are small, a row mostly takes a single byte instead of four.
+	 * <p>
+	 * A skip entry is kept for every {@value #BLOCK_SIZE} rows of a list, holding the row preceding the block and the
+	 * offset of the block, so that a search can jump over the blocks of rows below the row it seeks.
+	 */
+	private void encode() {
+		ByteArray data = new ByteArray();
+		int[] skips = new int[64];
+		int skipCount = 0;
+		this.offsets = new int[this.slots.length];
+		for (int slot = 0; slot < this.slots.length; slot++) {
+			if (this.slots[slot] == -1L) {
+				continue;
+			}
+			int[] rows = this.postings[slot];
+			int size = this.sizes[slot];
+			this.offsets[slot] = data.size;
+			data.writeVarint(size);
+			if (size > BLOCK_SIZE) {
+				data.writeVarint(skipCount);
+				int blocks = (size - 1) / BLOCK_SIZE;
+				if (skipCount + 2 * blocks > skips.length) {
+					skips = Arrays.copyOf(skips, Math.max(skips.length * 2, skipCount + 2 * blocks));
+				}
+			}
+			int previous = -1;
+			for (int i = 0; i < size; i++) {
+				if (i > 0 && i % BLOCK_SIZE == 0) {
+					skips[skipCount++] = previous;
+					skips[skipCount++] = data.size;
+				}
+				data.writeVarint(rows[i] - previous);
+				previous = rows[i];
+			}
+		}
+		this.data = Arrays.copyOf(data.bytes, data.size);
+		this.skips = Arrays.copyOf(skips, skipCount);
+		this.postings = null;
+		this.sizes = null;
+	}
+
+	/**
+	 * @return an estimate of the number of bytes the index holds on the Java heap
+	 */
+	long memoryUsage() {
+		return 16 + 8L * this.slots.length + 16 + 4L * this.offsets.length + 16 + this.data.length + 16
+				+ 4L * this.skips.length;
+	}
+
+	private Postings postingsOf(long trigram) {
+		int slot = slotOf(trigram);
+		return new Postings(this.slots[slot] == -1L ? -1 : this.offsets[slot]);
+	}
+
+	/**
+	 * Checks whether a folded search key can have any match, without intersecting posting lists.
+	 *
+	 * @return <code>false</code> when a trigram of the key is found in no row
+	 */
+	boolean mayContain(String key) {
+		for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+			if (this.slots[slotOf(trigram(key, i))] == -1L) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the number of candidate rows for a folded search key, without intersecting posting lists.
+	 *
+	 * @param key a search key at least {@value #GRAM_LENGTH} characters long
+	 * @return the length of the shortest posting list of the trigrams of <code>key</code>
+	 */
+	int estimate(String key) {
+		int estimate = Integer.MAX_VALUE;
+		for (int i = 0; i + GRAM_LENGTH <= key.length(); i++) {
+			estimate = Math.min(estimate, postingsOf(trigram(key, i)).size);
+		}
+		return estimate;
+	}
+
+	/**
+	 * Finds the candidate rows for a folded search key.
+	 *
+	 * @param key a search key at least {@value #GRAM_LENGTH} characters long
+	 * @return the ascending ids of the rows containing all the trigrams of <code>key</code>
+	 */
+	int[] candidates(String key) {
+		return candidates(key, -1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Finds the next candidate rows for a folded search key, following a given row, by leapfrogging through the
+	 * posting lists from that row on, so that the cost depends on the number of rows returned rather than on the
+	 * length of the lists.
+	 *
+	 * @param key   a search key at least {@value #GRAM_LENGTH} characters long
+	 * @param after the row to start after, or -1 to start from the first row
+	 * @param limit the maximum number of rows to return
+	 * @return the next ascending ids of the rows containing all the trigrams of <code>key</code>, fewer than
+	 * <code>limit</code> only when there are no more
+	 */
+	int[] candidates(String key, int after, int limit) {
+		Postings[] lists = new Postings[key.length() - GRAM_LENGTH + 1];
+		for (int i = 0; i < lists.length; i++) {
+			lists[i] = postingsOf(trigram(key, i));
+			if (lists[i].size == 0) {
+				return NO_ROWS;
+			}
+		}
+		Arrays.sort(lists, Comparator.comparingInt(l -> l.size));
+		int[] result = new int[Math.min(limit, lists[0].size)];
+		int size = 0;
+		Postings first = lists[0];
+		int row = first.seek(after + 1);
+		search:
+		while (size < result.length && row != NO_MORE_ROWS) {
+			for (int i = 1; i < lists.length; i++) {
+				int next = lists[i].seek(row);
+				if (next == NO_MORE_ROWS) {
+					break search;
+				}
+				if (next != row) {
+					row = first.seek(next);
+					continue search;
+				}
+			}
+			result[size++] = row;
+			row = first.next();
+		}
+		return size == result.length ? result : Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * A cursor over the encoded posting list of a trigram.
+	 */
+	private final class Postings {
+
+		private final int size;
+		private final int firstSkip;
+		private int position;
+		private int index;
+		private int row = -1;
+
+		/**
+		 * @param offset the offset of the list, or -1 for an empty list
+		 */
+		private Postings(int offset) {
+			if (offset < 0) {
+				this.size = 0;
+				this.firstSkip = 0;
+				return;
+			}
+			this.position = offset;
+			this.size = readVarint();
+			this.firstSkip = this.size > BLOCK_SIZE ? readVarint() : 0;
+		}
+
+		private int readVarint() {
+			byte[] data = TrigramIndex.this.data;
+			int value = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = data[this.position++];
+				value |= (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * @return the next row of the list, or {@link #NO_MORE_ROWS}
+		 */
+		private int next() {
+			if (this.index == this.size) {
+				this.row = NO_MORE_ROWS;
+			} else {
+				this.row += readVarint();
+				this.index++;
+			}
+			return this.row;
+		}
+
+		/**
+		 * Moves to the first row not less than a given row, unless the current row already is.
+		 *
+		 * @return the current row, or {@link #NO_MORE_ROWS}
+		 */
+		private int seek(int target) {
+			if (this.row >= target) {
+				return this.row;
+			}
+			// jumps to the last block whose preceding row is below the target, as all the rows before it are too
+			int[] skips = TrigramIndex.this.skips;
+			int low = this.index / BLOCK_SIZE + 1;
+			int high = (this.size - 1) / BLOCK_SIZE;
+			int block = 0;
+			if (low <= high && skips[this.firstSkip + 2 * (low - 1)] >= target) {
+				// the target is in the current block, as is mostly the case when leapfrogging through dense lists
+				high = 0;
+			}
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (skips[this.firstSkip + 2 * (middle - 1)] < target) {
+					block = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			if (block > 0) {
+				this.row = skips[this.firstSkip + 2 * (block - 1)];
+				this.position = skips[this.firstSkip + 2 * (block - 1) + 1];
+				this.index = block * BLOCK_SIZE;
+			}
+			int row;
+			do {
+				row = next();
+			} while (row < target);
+			return row;
+		}
+	}
+
+	/**
+	 * A growable byte array.
+	 */
+	private static final class ByteArray {
+
+		private byte[] bytes = new byte[1 << 12];
+		private int size;
+
+		private void writeVarint(int value) {
+			if (this.size + 5 > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, this.bytes.length * 2);
+			}
+			while ((value & ~0x7F) != 0) {
+				this.bytes[this.size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.bytes[this.size++] = (byte) value;
+		}
+	}
+}
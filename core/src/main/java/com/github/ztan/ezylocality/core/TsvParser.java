@@ -0,0 +1,391 @@
+package com.github.ztan.ezylocality.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Parses geonames tab delimited data files straight from their bytes, into chunks of dictionary encoded columns
+ * which a {@link ColumnarTable.Builder} merges into a table.
+ * <p>
+ * Data files on the file system are memory-mapped, others (e.g. jar entries) are read in large blocks. The data is
+ * split into chunks at line boundaries, and the chunks are parsed in parallel, the blocks of a stream as soon as they
+ * are read. Fields are not turned into intermediate strings: each chunk keeps a dictionary per column keyed by the
+ * raw UTF-8 bytes, so only the first occurrence of a value in a chunk is decoded, and coordinates are quantized
+ * directly from their bytes. Lines are split on <code>\n</code>, with a trailing <code>\r</code> dropped, and fields
+ * on tab characters only; geonames data files have no quoting.
+ */
+final class TsvParser {
+
+	static final int CHUNK_SIZE = 4 << 20;
+
+	private final int chunkSize;
+	private final int columnCount;
+	private final int latitudeColumn;
+	private final int longitudeColumn;
+
+	/**
+	 * @param columns the names of the columns, in the order they appear in the file
+	 */
+	TsvParser(List<String> columns) {
+		this(columns, CHUNK_SIZE);
+	}
+
+	/**
+	 * @param columns   the names of the columns, in the order they appear in the file
+	 * @param chunkSize the number of bytes parsed by each task
+	 */
+	TsvParser(List<String> columns, int chunkSize) {
+		this.chunkSize = chunkSize;
+		this.columnCount = columns.size();
+		this.latitudeColumn = columns.indexOf("latitude");
+		this.longitudeColumn = columns.indexOf("longitude");
+	}
+
+	/**
+	 * Parses a data file.
+	 *
+	 * @return the chunks of the file, in file order
+	 */
+	List<Chunk> parse(URL resource) throws IOException {
+		List<CompletableFuture<Chunk>> chunks = "file".equals(resource.getProtocol())
+				? parseMapped(toPath(resource)) : parseStream(resource);
+		List<Chunk> results = new ArrayList<>(chunks.size());
+		try {
+			for (CompletableFuture<Chunk> chunk : chunks) {
+				results.add(chunk.join());
+			}
+		} catch (CompletionException ex) {
+			throw new IOException("Cannot parse data file.", ex.getCause());
+		}
+		return results;
+	}
+
+	private static Path toPath(URL resource) throws IOException {
+		try {
+			return Paths.get(resource.toURI());
+		} catch (URISyntaxException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private List<CompletableFuture<Chunk>> parseMapped(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		List<CompletableFuture<Chunk>> chunks = new ArrayList<>();
+		int start = 0;
+		while (start < buffer.limit()) {
+			int end = lineEnd(buffer, Math.min(start + this.chunkSize, buffer.limit()), buffer.limit());
+			int from = start;
+			// each task copies its range of the mapped file into a block of its own, which it scans far faster
+			chunks.add(CompletableFuture.supplyAsync(() -> {
+				byte[] bytes = new byte[end - from];
+				((ByteBuffer) buffer.duplicate().position(from)).get(bytes);
+				return parse(bytes, 0, bytes.length);
+			}));
+			start = end;
+		}
+		return chunks;
+	}
+
+	/**
+	 * Reads the stream in blocks, and submits each run of complete lines for parsing while reading on.
+	 */
+	private List<CompletableFuture<Chunk>> parseStream(URL resource) throws IOException {
+		List<CompletableFuture<Chunk>> chunks = new ArrayList<>();
+		byte[] bytes = new byte[Math.max(this.chunkSize, 8192)];
+		int length = 0;
+		int start = 0;
+		try (InputStream in = resource.openStream()) {
+			int read;
+			while ((read = in.read(bytes, length, bytes.length - length)) >= 0) {
+				length += read;
+				if (length - start >= this.chunkSize) {
+					int end = lastLineEnd(bytes, start, length);
+					if (end > start) {
+						chunks.add(submit(bytes, start, end));
+						start = end;
+					}
+				}
+				if (length == bytes.length) {
+					// blocks already submitted keep reading the previous array, whose bytes they cover are final
+					bytes = Arrays.copyOf(bytes, bytes.length * 2);
+				}
+			}
+		}
+		if (length > start) {
+			chunks.add(submit(bytes, start, length));
+		}
+		return chunks;
+	}
+
+	/**
+	 * @return the position following the first line feed at or after <code>position</code>, or <code>limit</code>
+	 */
+	private static int lineEnd(ByteBuffer buffer, int position, int limit) {
+		while (position < limit) {
+			if (buffer.get(position++) == '\n') {
+				break;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * @return the position following the last line feed in the range, or <code>start</code> when there is none
+	 */
+	private static int lastLineEnd(byte[] bytes, int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (bytes[i] == '\n') {
+				return i + 1;
+			}
+		}
+		return start;
+	}
+
+	private CompletableFuture<Chunk> submit(byte[] bytes, int start, int end) {
+		return CompletableFuture.supplyAsync(() -> parse(bytes, start, end));
+	}
+
+	/**
+	 * Parses the lines between two positions of the array.
+	 */
+	Chunk parse(byte[] bytes, int start, int end) {
+		Chunk chunk = new Chunk(this.columnCount, this.latitudeColumn, this.longitudeColumn);
+		ByteSlice field = new ByteSlice(bytes);
+		int position = start;
+		while (position < end) {
+			int lineEnd = position;
+			while (lineEnd < end && bytes[lineEnd] != '\n') {
+				lineEnd++;
+			}
+			int next = lineEnd + 1;
+			if (lineEnd > position && bytes[lineEnd - 1] == '\r') {
+				lineEnd--;
+			}
+			if (lineEnd > position) {
+				chunk.ensureCapacity();
+				int fieldStart = position;
+				for (int c = 0; c < this.columnCount; c++) {
+					// the columns missing from a short line are empty
+					fieldStart = Math.min(fieldStart, lineEnd);
+					int fieldEnd = fieldStart;
+					int hash = 0;
+					for (byte b; fieldEnd < lineEnd && (b = bytes[fieldEnd]) != '\t'; fieldEnd++) {
+						hash = 31 * hash + b;
+					}
+					field.set(fieldStart, fieldEnd, hash);
+					chunk.set(c, field);
+					fieldStart = fieldEnd + 1;
+				}
+				chunk.size++;
+			}
+			position = next;
+		}
+		return chunk;
+	}
+
+	/**
+	 * A range of bytes of the data file, holding a field. Fields are matched and hashed through it as bytes, without
+	 * being decoded or copied.
+	 */
+	private static final class ByteSlice {
+		private final byte[] bytes;
+		private int start;
+		private int end;
+		private int hash;
+
+		private ByteSlice(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private void set(int start, int end, int hash) {
+			this.start = start;
+			this.end = end;
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ByteSlice)) {
+				return false;
+			}
+			ByteSlice other = (ByteSlice) o;
+			return matches(other.bytes, other.start, other.end);
+		}
+
+		/**
+		 * @return the hash of the bytes, as computed by the parser
+		 */
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		/**
+		 * @return the field decoded from UTF-8
+		 */
+		@Override
+		public String toString() {
+			return new String(this.bytes, this.start, this.end - this.start, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return whether the slice holds the same bytes as a range of an array
+		 */
+		private boolean matches(byte[] bytes, int start, int end) {
+			if (end - start != this.end - this.start) {
+				return false;
+			}
+			for (int i = 0; i < end - start; i++) {
+				if (bytes[start + i] != this.bytes[this.start + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * The rows of a run of lines. String columns are encoded against a dictionary local to the chunk, in the order
+	 * the values first appear, so that merging the chunks in file order yields the same codes as reading the lines
+	 * one by one.
+	 */
+	static final class Chunk {
+		private final int latitudeColumn;
+		private final int longitudeColumn;
+		private final SliceDictionary[] dictionaries;
+		final int[][] codes;
+		int[] latitudes = new int[256];
+		int[] longitudes = new int[256];
+		/**
+		 * The text of coordinates which are not stored quantized, keyed by their row times 2, plus 1 for longitudes.
+		 */
+		final Map<Integer, String> coordinateText = new HashMap<>();
+		/**
+		 * The number of rows.
+		 */
+		int size;
+
+		private Chunk(int columnCount, int latitudeColumn, int longitudeColumn) {
+			this.latitudeColumn = latitudeColumn;
+			this.longitudeColumn = longitudeColumn;
+			this.dictionaries = new SliceDictionary[columnCount];
+			this.codes = new int[columnCount][];
+			for (int c = 0; c < columnCount; c++) {
+				if (c != latitudeColumn && c != longitudeColumn) {
+					this.dictionaries[c] = new SliceDictionary();
+					this.codes[c] = new int[256];
+				}
+			}
+		}
+
+		/**
+		 * @return the local dictionary of a column, indexed by code, or <code>null</code> for coordinate columns
+		 */
+		String[] dictionary(int column) {
+			SliceDictionary dictionary = this.dictionaries[column];
+			return dictionary == null ? null : dictionary.values.toArray(new String[0]);
+		}
+
+		private void ensureCapacity() {
+			if (this.size == this.latitudes.length) {
+				int capacity = this.size * 2;
+				for (int c = 0; c < this.codes.length; c++) {
+					if (this.codes[c] != null) {
+						this.codes[c] = Arrays.copyOf(this.codes[c], capacity);
+					}
+				}
+				this.latitudes = Arrays.copyOf(this.latitudes, capacity);
+				this.longitudes = Arrays.copyOf(this.longitudes, capacity);
+			}
+		}
+
+		private void set(int column, ByteSlice value) {
+			if (this.codes[column] != null) {
+				this.codes[column][this.size] = this.dictionaries[column].code(value);
+				return;
+			}
+			int axis = column == this.latitudeColumn ? 0 : 1;
+			int coordinate = ColumnarTable.Builder.quantizeCoordinate(value.bytes, value.start, value.end);
+			if (coordinate == ColumnarTable.TEXT_COORDINATE) {
+				this.coordinateText.put(this.size << 1 | axis, value.toString());
+			}
+			(axis == 0 ? this.latitudes : this.longitudes)[this.size] = coordinate;
+		}
+	}
+
+	/**
+	 * An open addressing hash table from the bytes of a value to its code, remembering where in the chunk each value
+	 * was first seen.
+	 */
+	private static final class SliceDictionary {
+		private final List<String> values = new ArrayList<>();
+		private int[] starts = new int[16];
+		private int[] ends = new int[16];
+		private int[] hashes = new int[16];
+		private int[] slots = new int[64];
+
+		private int code(ByteSlice value) {
+			int mask = this.slots.length - 1;
+			int slot = slotOf(value.hash, mask);
+			for (int code; (code = this.slots[slot] - 1) >= 0; slot = (slot + 1) & mask) {
+				if (this.hashes[code] == value.hash && value.matches(value.bytes, this.starts[code], this.ends[code])) {
+					return code;
+				}
+			}
+			int code = this.values.size();
+			this.values.add(value.toString());
+			if (code == this.starts.length) {
+				this.starts = Arrays.copyOf(this.starts, code * 2);
+				this.ends = Arrays.copyOf(this.ends, code * 2);
+				this.hashes = Arrays.copyOf(this.hashes, code * 2);
+			}
+			this.starts[code] = value.start;
+			this.ends[code] = value.end;
+			this.hashes[code] = value.hash;
+			this.slots[slot] = code + 1;
+			if ((code + 1) * 2 > this.slots.length) {
+				rehash();
+			}
+			return code;
+		}
+
+		private static int slotOf(int hash, int mask) {
+			int mixed = hash * 0x9E3779B9;
+			return (mixed ^ mixed >>> 16) & mask;
+		}
+
+		private void rehash() {
+			int[] slots = new int[this.slots.length * 2];
+			int mask = slots.length - 1;
+			for (int code = 0; code < this.values.size(); code++) {
+				int slot = slotOf(this.hashes[code], mask);
+				while (slots[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = code + 1;
+			}
+			this.slots = slots;
+		}
+	}
+}
@@ -1,22 +1,123 @@
 package com.github.ztan.ezylocality.core;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 public class LocalityStoreTest {
 
+	private static final URL SAMPLE_TXT = LocalityStore.class
+			.getResource("/com/github/ztan/ezylocality/countries/SAMPLE.txt");
+
+	private final List<AutoCloseable> resources = new ArrayList<>();
+	private Path tempDirectory;
+
+	@BeforeEach
+	void createTempDirectory() throws IOException {
+		this.tempDirectory = Files.createTempDirectory("ezy-locality-test");
+	}
+
+	/**
+	 * Closes the stores of the test, the latest first, and deletes its temporary files.
+	 */
+	@AfterEach
+	void cleanUp() throws Exception {
+		for (int i = this.resources.size() - 1; i >= 0; i--) {
+			this.resources.get(i).close();
+		}
+		LocalityStores.closeAll();
+		try (Stream<Path> paths = Files.walk(this.tempDirectory)) {
+			paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		}
+	}
+
+	/**
+	 * @return the resource, closed after the test
+	 */
+	private <T extends AutoCloseable> T closing(T resource) {
+		this.resources.add(resource);
+		return resource;
+	}
+
+	/**
+	 * @return a file in the temporary directory of the test
+	 */
+	private File tempFile(String name) {
+		return this.tempDirectory.resolve(name).toFile();
+	}
+
+	private static List<String> sampleLines() throws Exception {
+		return Files.readAllLines(Paths.get(SAMPLE_TXT.toURI()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes a variant of the SAMPLE data file into the temporary directory of the test.
+	 *
+	 * @return the URL of the file
+	 */
+	private URL writeDataFile(byte[] content) throws IOException {
+		Path path = Files.createTempFile(this.tempDirectory, "SAMPLE", ".txt");
+		Files.write(path, content);
+		return path.toUri().toURL();
+	}
+
+	private URL writeDataFile(List<String> lines) throws IOException {
+		return writeDataFile((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Packs a file as the only entry of a jar in the temporary directory of the test.
+	 *
+	 * @return the URL of the jar entry
+	 */
+	private URL jarEntry(String name, File file) throws IOException {
+		File jar = tempFile(file.getName() + ".jar");
+		try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+			if (name.indexOf('/') > 0) {
+				out.putNextEntry(new ZipEntry(name.substring(0, name.lastIndexOf('/') + 1)));
+			}
+			out.putNextEntry(new ZipEntry(name));
+			Files.copy(file.toPath(), out);
+		}
+		return new URL("jar:" + jar.toURI() + "!/" + name);
+	}
+
 	@Test
 	void testSampleZipCodes() {
-		LocalityStore store = new LocalityStore("SAMPLE");
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
 		try (final Stream<Map<String, String>> stream = store.search("6112", true)) {
 			List<Map<String, String>> results = stream.limit(100).collect(Collectors.toList());
 
@@ -31,9 +132,738 @@ public class LocalityStoreTest {
 
 	}
 
+	@Test
+	void testSubstringMatching() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		try (final Stream<Map<String, String>> stream = store.search("DALE")) {
+			List<String> names = stream.map(m -> m.get("place_name")).collect(Collectors.toList());
+			assertEquals(Arrays.asList("Harrisdale", "Armadale", "Bedfordale", "Forrestdale", "Brookdale"), names);
+		}
+
+		assertEquals(16, store.count("sa"));
+		assertEquals(0, store.count("dalex"));
+		assertEquals(12, store.count("6_12"));
+		assertEquals(34, store.count(""));
+		// the pattern is bound as a parameter, so quotes match literally instead of ending the SQL string
+		assertEquals(0, store.count("%' OR 1=1 OR '"));
+		try (Stream<Map<String, String>> stream = store.search("d_le%'")) {
+			assertEquals(0, stream.count());
+		}
+	}
+
+	@Test
+	void testColumnarEngine() {
+		LocalityStore h2Store = closing(new LocalityStore("SAMPLE"));
+		LocalityStore columnarStore = closing(new LocalityStore("SAMPLE", LocalityStore.Engine.COLUMNAR));
+		try (final Stream<Map<String, String>> expected = h2Store.search("611", true);
+			 final Stream<Map<String, String>> actual = columnarStore.search("611", true)) {
+			assertEquals(expected.collect(Collectors.toList()), actual.collect(Collectors.toList()));
+		}
+
+		assertEquals(h2Store.count("Australia"), columnarStore.count("Australia"));
+		assertEquals(0, columnarStore.count("6_12"));
+		assertEquals(0, closing(new LocalityStore("FOO", LocalityStore.Engine.COLUMNAR)).count(""));
+	}
+
+	@Test
+	void testCompactStorage() {
+		ColumnarTable.Builder builder = new ColumnarTable.Builder(LocalityStore.COLUMNS, LocalityStore.SEARCH_COLUMNS);
+		for (int i = 0; i < 1000; i++) {
+			builder.add(new String[]{"AU", String.valueOf(i), "Place " + i, "South Australia", "SA", "", "", "", "",
+					i % 2 == 0 ? "-34" : "-34.50", i % 3 == 0 ? "" : "138.000001", "4"});
+		}
+		ColumnarTable table = builder.build();
+		int latitude = LocalityStore.COLUMNS.indexOf("latitude");
+		int longitude = LocalityStore.COLUMNS.indexOf("longitude");
+		// coordinates read back exactly as they were given
+		assertEquals("-34", table.get(0, latitude));
+		assertEquals("-34.50", table.get(1, latitude));
+		assertEquals("", table.get(0, longitude));
+		assertEquals("138.000001", table.get(1, longitude));
+		assertEquals(-34.5, table.latitude(1));
+		assertEquals(138.000001, table.longitude(1));
+		assertTrue(Double.isNaN(table.longitude(3)));
+		assertEquals("Place 999", table.get(999, LocalityStore.COLUMNS.indexOf("place_name")));
+		assertEquals("place 999", table.key(999, 1));
+		assertTrue(table.memoryUsage() < closing(new LocalityStore("SAMPLE")).memoryUsage() * 1000 / 34);
+
+		try (Stream<Map<String, String>> expected = closing(new LocalityStore("SAMPLE")).search("");
+			 Stream<Map<String, String>> actual = closing(new LocalityStore("SAMPLE", LocalityStore.Engine.COLUMNAR))
+					 .search("")) {
+			assertEquals(expected.collect(Collectors.toList()), actual.collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	void testTsvParser() throws Exception {
+		List<String> lines = sampleLines();
+
+		// a mapped file and a jar entry, split into many chunks
+		for (URL url : Arrays.asList(SAMPLE_TXT, jarEntry("SAMPLE.txt", new File(SAMPLE_TXT.toURI())))) {
+			ColumnarTable.Builder builder = new ColumnarTable.Builder(LocalityStore.COLUMNS,
+					LocalityStore.SEARCH_COLUMNS);
+			for (TsvParser.Chunk chunk : new TsvParser(LocalityStore.COLUMNS, 100).parse(url)) {
+				builder.add(chunk);
+			}
+			ColumnarTable table = builder.build();
+			assertEquals(lines.size(), table.size());
+			for (int row = 0; row < table.size(); row++) {
+				String[] values = new String[LocalityStore.COLUMNS.size()];
+				for (int c = 0; c < values.length; c++) {
+					values[c] = table.get(row, c);
+				}
+				assertEquals(lines.get(row), String.join("\t", values));
+			}
+		}
+	}
+
+	@Test
+	void testPrecompiledDataFile() throws Exception {
+		File bin = tempFile("SAMPLE.bin");
+		LocalityFileWriter.write(new File(SAMPLE_TXT.toURI()), bin);
+
+		LocalityTable expected = ColumnarTable.read(SAMPLE_TXT, LocalityStore.COLUMNS, LocalityStore.SEARCH_COLUMNS);
+		MappedTable actual = MappedTable.open(bin.toURI().toURL());
+		assertEquals(expected.size(), actual.size());
+		for (int row = 0; row < expected.size(); row++) {
+			for (int c = 0; c < LocalityStore.COLUMNS.size(); c++) {
+				assertEquals(expected.get(row, c), actual.get(row, c));
+			}
+			for (int s = 0; s < expected.keyCount(); s++) {
+				assertEquals(expected.key(row, s), actual.key(row, s));
+			}
+			assertEquals(expected.matches(row, "dale"), actual.matches(row, "dale"));
+			assertEquals(expected.latitude(row), actual.latitude(row));
+			assertEquals(expected.longitude(row), actual.longitude(row));
+		}
+		// coordinates read back exactly, not narrowed to float
+		assertEquals(-33.9173, expected.latitude(1));
+		assertEquals(-33.9173, actual.latitude(1));
+		assertEquals(138.7215, actual.longitude(1));
+
+		// a data file inside a jar is copied out once, however many times it is opened
+		URL entry = jarEntry("SAMPLE.bin", bin);
+		MappedTable.TemporaryCopy copy = MappedTable.extract(entry);
+		assertSame(copy, MappedTable.extract(entry));
+		assertEquals(expected.get(1, 2), MappedTable.open(entry).get(1, 2));
+
+		// the copy is deleted once no table maps it
+		Path path = copy.path;
+		copy = null;
+		for (int i = 0; i < 50 && Files.exists(path); i++) {
+			System.gc();
+			Thread.sleep(10);
+			MappedTable.deleteUnusedCopies();
+		}
+		assertFalse(Files.exists(path));
+	}
+
+	@Test
+	void testPrecompileDirectory() throws Exception {
+		File directory = this.tempDirectory.toFile();
+		Files.copy(new File(SAMPLE_TXT.toURI()).toPath(), new File(directory, "SAMPLE.txt").toPath());
+		Files.write(new File(directory, "readme.txt").toPath(), Arrays.asList("The data format is tab-delimited text "
+				+ "in utf8 encoding, with the following fields :", "", "country code      : iso country code, 2 "
+				+ "characters", "postal code       : varchar(20)"), StandardCharsets.UTF_8);
+		LocalityFileWriter.main(new String[]{directory.getPath()});
+
+		assertEquals(new HashSet<>(Arrays.asList("SAMPLE.txt", "SAMPLE.bin", "SAMPLE.mv.db", "readme.txt")),
+				new HashSet<>(Arrays.asList(directory.list())));
+		assertEquals(34, MappedTable.open(new File(directory, "SAMPLE.bin").toURI().toURL()).size());
+	}
+
+	@Test
+	void testPrebuiltDatabase() throws Exception {
+		File database = tempFile("SAMPLE" + LocalityStore.DATABASE_EXTENSION);
+		LocalityFileWriter.writeDatabase(new File(SAMPLE_TXT.toURI()), database);
+		URL entry = jarEntry("countries/SAMPLE" + LocalityStore.DATABASE_EXTENSION, database);
+		List<Map<String, String>> expected;
+		try (Stream<Map<String, String>> stream = closing(new LocalityStore("SAMPLE")).search("")) {
+			expected = stream.collect(Collectors.toList());
+		}
+
+		for (URL url : Arrays.asList(database.toURI().toURL(), entry)) {
+			try (LocalityStore store = new LocalityStore("SAMPLE")) {
+				store.reload(url);
+				try (Stream<Map<String, String>> stream = store.search("")) {
+					assertEquals(expected, stream.collect(Collectors.toList()));
+				}
+				// answered by H2 from the database table
+				assertEquals(5, store.count("d_le"));
+				try (Stream<Map<String, String>> stream = store.search("d_le")) {
+					assertEquals(5, stream.count());
+				}
+				try (Stream<Map<String, String>> stream = store.fulltextSearch("mount")) {
+					assertEquals(Arrays.asList("Mount Bryan", "Mount Nasura", "Mount Richon"),
+							stream.map(m -> m.get("place_name")).collect(Collectors.toList()));
+				}
+				try (Stream<Map<String, String>> stream = store.fulltextSearch("dale")) {
+					assertEquals(0, stream.count());
+				}
+			}
+		}
+	}
+
+	@Test
+	void testNearest() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE", LocalityStore.Engine.COLUMNAR));
+		List<Map<String, String>> all;
+		try (Stream<Map<String, String>> stream = store.search("")) {
+			all = stream.collect(Collectors.toList());
+		}
+		Comparator<Map<String, String>> byDistance = Comparator.comparingDouble(m -> haversine(-32.1461, 116.0093,
+				Double.parseDouble(m.get("latitude")), Double.parseDouble(m.get("longitude"))));
+		List<String> expected = all.stream().sorted(byDistance).map(m -> m.get("place_name"))
+				.collect(Collectors.toList());
+
+		try (Stream<Map<String, String>> stream = store.nearest(-32.1461, 116.0093, 5)) {
+			List<Map<String, String>> results = stream.collect(Collectors.toList());
+			assertEquals(expected.subList(0, 5), results.stream().map(m -> m.get("place_name"))
+					.collect(Collectors.toList()));
+			assertEquals("Armadale", results.get(0).get("place_name"));
+			assertTrue(Double.parseDouble(results.get(0).get("distance")) < 0.01);
+		}
+
+		try (Stream<Map<String, String>> stream = store.withinRadius(-32.1461, 116.0093, 10)) {
+			List<String> results = stream.map(m -> m.get("place_name")).collect(Collectors.toList());
+			long inRange = all.stream().filter(m -> haversine(-32.1461, 116.0093,
+					Double.parseDouble(m.get("latitude")), Double.parseDouble(m.get("longitude"))) <= 10).count();
+			assertEquals(expected.subList(0, (int) inRange), results);
+		}
+	}
+
+	private static double haversine(double lat1, double lon1, double lat2, double lon2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLon = Math.toRadians(lon2 - lon1);
+		double a = Math.pow(Math.sin(dLat / 2), 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.pow(Math.sin(dLon / 2), 2);
+		return 2 * 6371.0088 * Math.asin(Math.sqrt(a));
+	}
+
+	@Test
+	void testSearchTopK() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		List<Map<String, String>> expected;
+		try (Stream<Map<String, String>> stream = store.search("a", true)) {
+			expected = stream.sorted(Comparator.comparingDouble(m -> Double.parseDouble(m.get("rank"))))
+					.limit(5).collect(Collectors.toList());
+		}
+		try (Stream<Map<String, String>> stream = store.searchTopK("a", 5)) {
+			assertEquals(expected, stream.collect(Collectors.toList()));
+		}
+		assertEquals(0.8, CompareUtils.calculateSimilarity("Healed", "Sealed"), 1e-9);
+		assertEquals(12.0 / 21, CompareUtils.calculateSimilarity("web applications", "Applied Web"), 1e-9);
+	}
+
+	@Test
+	void testSearchLocalities() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		List<Map<String, String>> expected;
+		try (Stream<Map<String, String>> stream = store.search("dale")) {
+			expected = stream.collect(Collectors.toList());
+		}
+		try (Stream<Locality> stream = store.searchLocalities("dale")) {
+			List<Locality> results = stream.collect(Collectors.toList());
+			assertEquals(expected, results.stream().map(Locality::toMap).collect(Collectors.toList()));
+
+			Locality armadale = results.get(1);
+			assertEquals("Armadale", armadale.getPlaceName());
+			assertEquals("WA", armadale.getAdminCode1());
+			assertEquals(-32.1461, armadale.getLatitude());
+			assertEquals(4, armadale.getAccuracy());
+		}
+		try (Stream<Locality> stream = store.searchLocalities("dale", true)) {
+			List<Locality> results = stream.map(Locality::copy).collect(Collectors.toList());
+			assertEquals(expected, results.stream().map(Locality::toMap).collect(Collectors.toList()));
+		}
+		try (Stream<Locality> stream = store.searchLocalities("6_12")) {
+			assertEquals(12, stream.count());
+		}
+	}
+
+	@Test
+	void testSharedStores() {
+		LocalityStore store = LocalityStores.get("SAMPLE");
+		try (LocalityStore other = LocalityStores.get("SAMPLE")) {
+			assertNotSame(store, other);
+			assertEquals(4, other.count("6111"));
+			assertThrows(UnsupportedOperationException.class, other::dispose);
+			// closing a handle twice releases the shared store once
+			other.close();
+			assertThrows(IllegalStateException.class, () -> other.count("6111"));
+		}
+		assertTrue(LocalityStores.memoryUsage().get("SAMPLE") > 0);
+		assertEquals(4, store.count("6111"));
+
+		LocalityStores.release(store);
+		assertFalse(LocalityStores.memoryUsage().containsKey("SAMPLE"));
+		store.close();
+		assertThrows(IllegalArgumentException.class, () -> LocalityStores.release(closing(new LocalityStore("SAMPLE"))));
+	}
+
+	@Test
+	void testMultiLocalityStore() {
+		try (MultiLocalityStore store = new MultiLocalityStore(Arrays.asList("SAMPLE", "FOO"))) {
+			try (Stream<Map<String, String>> stream = store.search("6112")) {
+				assertEquals(12, stream.count());
+			}
+			try (Stream<Map<String, String>> stream = store.search("a")) {
+				assertEquals(3, stream.limit(3).count());
+			}
+			assertEquals(16, store.count("sa"));
+			assertEquals(0, store.count("zzz"));
+
+			assertEquals(closing(new LocalityStore("SAMPLE")).searchTopK("dale", 3).collect(Collectors.toList()),
+					store.searchTopK("dale", 3).collect(Collectors.toList()));
+		}
+	}
+
+	@Test
+	void testQueryCache() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		store.setQueryCacheSize(64);
+		// a search cut short by a limit is not cached, as it has not verified all the candidates
+		try (Stream<Map<String, String>> stream = store.search("6112")) {
+			assertEquals(1, stream.limit(1).count());
+		}
+		assertEquals(0, store.queryCacheStats().getEntryCount());
+		assertEquals(12, store.count("6112"));
+		assertEquals(12, store.count("6112"));
+		try (Stream<Map<String, String>> stream = store.search("6112")) {
+			assertEquals(1, stream.limit(1).count());
+		}
+		QueryCacheStats stats = store.queryCacheStats();
+		assertEquals(2, stats.getMissCount());
+		assertEquals(2, stats.getHitCount());
+
+		// "sa" and "south" weigh 16 + 16 each, so caching both evicts the least recently used "6112"
+		assertEquals(16, store.count("SA"));
+		assertEquals(16, store.count("south"));
+		stats = store.queryCacheStats();
+		assertEquals(1, stats.getEvictionCount());
+		assertEquals(2, stats.getEntryCount());
+		assertTrue(stats.getWeight() <= 64);
+
+		store.setQueryCacheSize(0);
+		assertEquals(12, store.count("6112"));
+		assertEquals(0, store.queryCacheStats().getHitCount());
+	}
+
+	@Test
+	void testLookupPostcodes() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		Map<String, List<Locality>> results = store.lookupPostcodes(Arrays.asList("6112", " 6111 ", "611", "6112"));
+		assertEquals(Arrays.asList("6112", " 6111 ", "611"), new ArrayList<>(results.keySet()));
+		assertEquals(12, results.get("6112").size());
+		assertEquals(4, results.get(" 6111 ").size());
+		assertTrue(results.get("611").isEmpty());
+		assertTrue(results.get("6112").stream().allMatch(l -> "6112".equals(l.getPostalCode())));
+
+		try (MultiLocalityStore stores = new MultiLocalityStore(Arrays.asList("SAMPLE", "FOO"))) {
+			assertEquals(12, stores.lookupPostcodes(Arrays.asList("6112")).get("6112").size());
+		}
+		assertTrue(closing(new LocalityStore("FOO")).lookupPostcodes(Arrays.asList("6112")).get("6112").isEmpty());
+	}
+
+	@Test
+	void testStructuredQuery() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		assertEquals(16, store.count(LocalityQuery.equalTo("admin_code1", "sa")));
+		assertEquals(34, store.count(LocalityQuery.equalTo("country_code", "AU")));
+
+		LocalityQuery query = LocalityQuery.equalTo("postal_code", "6112")
+				.and(LocalityQuery.equalTo("admin_code1", "WA"));
+		assertEquals(12, store.query(query).filter(m -> "6112".equals(m.get("postal_code"))).count());
+		assertEquals(0, store.count(query.and(LocalityQuery.equalTo("admin_code1", "SA"))));
+
+		List<String> names = store.query(LocalityQuery.contains("place_name", "DALE")
+				.and(LocalityQuery.startsWith("postal_code", "611"))).map(m -> m.get("place_name"))
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList("Harrisdale", "Armadale", "Bedfordale", "Forrestdale", "Brookdale"), names);
+		assertEquals(3, store.count(LocalityQuery.startsWith("place_name", "mount")));
+		assertEquals(4, store.count(LocalityQuery.equalTo("postal_code", "5415")
+				.or(LocalityQuery.equalTo("postal_code", "6121"))));
+		assertEquals(4, store.count(LocalityQuery.anyOf(LocalityQuery.equalTo("postal_code", "5415"),
+				LocalityQuery.equalTo("place_name", "Manoora"), LocalityQuery.contains("place_name", "rich"))));
+
+		names = store.query(LocalityQuery.within(-34.05, 138.7, -33.9, 138.85)).map(m -> m.get("place_name"))
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList("Manoora", "Mintaro", "Stanley"), names);
+		List<Map<String, String>> all = store.search("").collect(Collectors.toList());
+		long inBox = all.stream().filter(m -> Double.parseDouble(m.get("longitude")) <= 116
+				&& Double.parseDouble(m.get("latitude")) >= -32.17).count();
+		assertEquals(inBox, store.count(LocalityQuery.within(-32.17, 100, 0, 116)));
+		assertEquals(0, store.count(LocalityQuery.within(-90, 170, 90, -170)));
+		assertEquals(34, store.count(LocalityQuery.within(-90, 100, 90, -170)));
+
+		assertThrows(IllegalArgumentException.class, () -> LocalityQuery.equalTo("foo", "bar"));
+		assertEquals(0, closing(new LocalityStore("FOO")).count(LocalityQuery.equalTo("postal_code", "6112")));
+	}
+
+	@Test
+	void testHierarchy() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		AdminArea country = store.hierarchy();
+		assertEquals(34, country.getCount());
+		assertEquals(Arrays.asList("SA", "WA"), country.getChildren().stream().map(AdminArea::getCode)
+				.collect(Collectors.toList()));
+		AdminArea wa = country.getChild("WA");
+		assertEquals("Western Australia", wa.getName());
+		assertEquals(18, wa.getCount());
+		assertEquals(13, wa.getChild("TANGNEY").getCount());
+		assertEquals(2, wa.getChild("TANGNEY").getLevel());
+		assertSame(wa, wa.getChild("TANGNEY").getParent());
+		assertEquals(6, country.getChild("SA").getChild("SA FAR").getCount());
+
+		for (String text : Arrays.asList("dale", "dal_")) {
+			FacetedResults results = store.searchFaceted(text, 2);
+			assertEquals(5, results.getTotalCount());
+			assertEquals(Arrays.asList("Harrisdale", "Armadale"), results.getResults().stream()
+					.map(m -> m.get("place_name")).collect(Collectors.toList()));
+			assertEquals(5, (int) results.getFacets(1).get(wa));
+			assertEquals(4, (int) results.getFacets(2).get(wa.getChild("TANGNEY")));
+			assertTrue(results.getFacets(3).isEmpty());
+		}
+
+		FacetedResults results = store.queryFaceted(LocalityQuery.startsWith("postal_code", "5"), 0);
+		assertEquals(16, results.getTotalCount());
+		assertTrue(results.getResults().isEmpty());
+		assertEquals(Arrays.asList(16), new ArrayList<>(results.getFacets(1).values()));
+		assertEquals(0, closing(new LocalityStore("FOO")).hierarchy().getCount());
+		assertEquals(0, closing(new LocalityStore("FOO")).searchFaceted("sa", 10).getTotalCount());
+	}
+
+	@Test
+	void testFuzzySearch() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		List<Map<String, String>> results = store.fuzzySearch(" Armadael ", 2).collect(Collectors.toList());
+		assertEquals(1, results.size());
+		assertEquals("Armadale", results.get(0).get("place_name"));
+		assertEquals("2", results.get(0).get("edit_distance"));
+		assertEquals(0, store.fuzzySearch("Armadael", 1).count());
+		assertEquals(Arrays.asList("Mount Nasura"), store.fuzzySearch("mount nasira", 1)
+				.map(m -> m.get("place_name")).collect(Collectors.toList()));
+
+		List<String> names;
+		try (Stream<Map<String, String>> stream = store.search("")) {
+			names = stream.map(m -> m.get("place_name").toLowerCase()).collect(Collectors.toList());
+		}
+		for (String term : Arrays.asList("burr", "hays", "oa", "x", "harisdale", "stanly", "booborowe", "mintaro")) {
+			for (int maxDistance = 0; maxDistance <= 2; maxDistance++) {
+				int distance = maxDistance;
+				List<String> expected = names.stream()
+						.filter(name -> FuzzyIndex.distance(term, name, distance) <= distance)
+						.sorted(Comparator.comparingInt((String name) -> FuzzyIndex.distance(term, name, distance))
+								.thenComparing(Comparator.naturalOrder()))
+						.collect(Collectors.toList());
+				assertEquals(expected, store.fuzzySearch(term, maxDistance)
+						.map(m -> m.get("place_name").toLowerCase()).collect(Collectors.toList()), term);
+			}
+		}
+		assertEquals(3, FuzzyIndex.distance("kitten", "sitting", 3));
+		assertEquals(2, FuzzyIndex.distance("flaw", "lawn", 2));
+		assertEquals(2, FuzzyIndex.distance("ab", "ba", 2));
+		assertEquals(2, FuzzyIndex.distance("ab", "ba", 1));
+		assertEquals(2, FuzzyIndex.distance("", "ab", 2));
+		assertEquals(1, FuzzyIndex.distance("harrisdale", "harisdale", 0));
+		assertEquals(2, FuzzyIndex.distance("abcdef", "fabcde", 2));
+		assertEquals(3, FuzzyIndex.distance("abcdef", "badcfe", 2));
+		assertThrows(IllegalArgumentException.class, () -> store.fuzzySearch("burra", 3));
+		assertEquals(0, closing(new LocalityStore("FOO")).fuzzySearch("burra", 1).count());
+	}
+
+	@Test
+	void testSearchPage() throws Exception {
+		for (LocalityStore store : Arrays.asList(closing(new LocalityStore("SAMPLE")),
+				closing(new LocalityStore("SAMPLE", LocalityStore.Engine.COLUMNAR)))) {
+			for (String text : Arrays.asList("sa", "dale", "d_le", "mount", "zzz")) {
+				List<Map<String, String>> expected;
+				try (Stream<Map<String, String>> stream = store.search(text)) {
+					expected = stream.collect(Collectors.toList());
+				}
+				List<Map<String, String>> actual = new ArrayList<>();
+				String cursor = null;
+				int pages = 0;
+				do {
+					SearchPage page = store.searchPage(text, 2, cursor);
+					assertTrue(page.getResults().size() <= 2);
+					actual.addAll(page.getResults());
+					cursor = page.getNextCursor();
+					pages++;
+				} while (cursor != null);
+				assertEquals(expected, actual, text);
+				assertEquals(Math.max(1, (expected.size() + 1) / 2), pages, text);
+			}
+		}
+
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		String cursor = store.searchPage("dale", 2, null).getNextCursor();
+		assertEquals(Arrays.asList("Bedfordale", "Forrestdale"), store.searchPage("DALE", 2, cursor).getResults()
+				.stream().map(m -> m.get("place_name")).collect(Collectors.toList()));
+		assertThrows(IllegalArgumentException.class, () -> store.searchPage("mount", 2, cursor));
+		assertThrows(IllegalArgumentException.class, () -> store.searchPage("dale", 2, "not a cursor"));
+		assertThrows(IllegalArgumentException.class, () -> store.searchPage("dale", 0, null));
+		store.reload(SAMPLE_TXT);
+		assertThrows(IllegalArgumentException.class, () -> store.searchPage("dale", 2, cursor));
+	}
+
+	@Test
+	void testFoldedSearch() throws Exception {
+		assertEquals("zurich hongg", SearchKeys.fold(" Zürich–Höngg "));
+		assertEquals("strasse", SearchKeys.fold("STRASSE"));
+		assertEquals("strasse", SearchKeys.fold("Straße"));
+		assertEquals("lodz", SearchKeys.fold("Łódź"));
+		assertEquals("st kilda", SearchKeys.fold("St. Kilda"));
+		assertEquals("abc 123", SearchKeys.fold("ＡＢＣ　１２３"));
+		assertEquals("नई दिल्ली", SearchKeys.fold("नई दिल्ली"));
+
+		List<String> lines = new ArrayList<>(sampleLines());
+		lines.add("AU\t8001\tZürich\tWestern Australia\tWA\t\t\t\t\t-32.1\t115.9\t4");
+		lines.add("AU\t3182\tSt. Kilda\tVictoria\tVIC\t\t\t\t\t-37.86\t144.98\t4");
+		lines.add("AU\t3183\tKraków\tVictoria\tVIC\t\t\t\t\t-37.87\t144.99\t4");
+		URL accented = writeDataFile(lines);
+
+		for (LocalityStore.Engine engine : LocalityStore.Engine.values()) {
+			LocalityStore store = closing(new LocalityStore("SAMPLE", engine));
+			store.reload(accented);
+			assertEquals(1, store.count("zurich"), engine.name());
+			assertEquals(1, store.count("ZÜRICH"), engine.name());
+			assertEquals(1, store.count("krakow"), engine.name());
+			assertEquals(1, store.count("st-kilda"), engine.name());
+			assertEquals(1, store.count("st kilda"), engine.name());
+			assertEquals(5, store.count("DALE"), engine.name());
+			assertEquals(Arrays.asList("Zürich"), store.prefixSearch("place_name", "zur", 10)
+					.map(m -> m.get("place_name")).collect(Collectors.toList()));
+			assertEquals(1, store.count(LocalityQuery.equalTo("place_name", "Krakow")));
+			assertEquals(2, store.count(LocalityQuery.startsWith("admin_code1", "vic")));
+			assertEquals(1, store.fuzzySearch("Zurick", 1).count());
+			store.dispose();
+		}
+	}
+
+	@Test
+	void testPrefixSearch() {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		List<String> postcodes = store.prefixSearch("postal_code", "611", 100).map(m -> m.get("postal_code"))
+				.collect(Collectors.toList());
+		assertEquals(16, postcodes.size());
+		assertEquals(Arrays.asList("6111", "6111", "6111", "6111", "6112"), postcodes.subList(0, 5));
+
+		List<String> names = store.prefixSearch("place_name", "MOUNT", 2).map(m -> m.get("place_name"))
+				.collect(Collectors.toList());
+		assertEquals(Arrays.asList("Mount Bryan", "Mount Nasura"), names);
+		assertEquals(0, store.prefixSearch("place_name", "dale", 10).count());
+		assertEquals(0, closing(new LocalityStore("FOO")).prefixSearch("postal_code", "611", 10).count());
+	}
+
+	@Test
+	void testAsyncSearch() throws Exception {
+		LocalityStore store = closing(new LocalityStore("SAMPLE"));
+		assertEquals(3, store.searchAsync("6112", 3).get().size());
+		assertEquals(12, (int) store.countAsync("6_12").get());
+
+		// requests are served as they come, and cancelling closes the search
+		AtomicBoolean closed = new AtomicBoolean();
+		List<Map<String, String>> received = new ArrayList<>();
+		Subscription[] subscription = new Subscription[1];
+		new SearchPublisher<>(() -> store.search("6_12").onClose(() -> closed.set(true)), Runnable::run)
+				.subscribe(new Subscriber<Map<String, String>>() {
+					@Override
+					public void onSubscribe(Subscription s) {
+						subscription[0] = s;
+					}
+
+					@Override
+					public void onNext(Map<String, String> item) {
+						received.add(item);
+					}
+
+					@Override
+					public void onError(Throwable ex) {
+						throw new AssertionError(ex);
+					}
+
+					@Override
+					public void onComplete() {
+						throw new AssertionError("completed");
+					}
+				});
+		assertTrue(received.isEmpty());
+		subscription[0].request(2);
+		subscription[0].request(3);
+		assertEquals(5, received.size());
+		assertFalse(closed.get());
+		subscription[0].cancel();
+		assertTrue(closed.get());
+		subscription[0].request(1);
+		assertEquals(5, received.size());
+	}
+
+	@Test
+	void testMetrics() {
+		List<String> events = new ArrayList<>();
+		LocalityMetrics metrics = new LocalityMetrics() {
+			@Override
+			public void storeLoaded(String countryCode, LocalityStore.Engine engine, long nanos, long memoryUsage) {
+				events.add("load " + countryCode + " " + engine);
+			}
+
+			@Override
+			public void queryCompleted(String countryCode, Query query, long nanos, long rowsScanned,
+					long rowsReturned) {
+				events.add(query + " " + rowsScanned + " " + rowsReturned);
+			}
+
+			@Override
+			public void connectionAcquired(String countryCode, long nanos) {
+				events.add("connection");
+			}
+		};
+		LocalityMetrics.register(metrics);
+		try {
+			LocalityStore store = closing(new LocalityStore("SAMPLE", LocalityStore.Engine.COLUMNAR));
+			try (Stream<Map<String, String>> stream = store.search("6112")) {
+				assertEquals(2, stream.limit(2).count());
+			}
+			assertEquals(16, store.count("sa"));
+			assertEquals(12, closing(new LocalityStore("SAMPLE")).count("6_12"));
+		} finally {
+			LocalityMetrics.unregister(metrics);
+		}
+		assertEquals("load SAMPLE COLUMNAR", events.get(0));
+		assertEquals("SEARCH 2 2", events.get(1));
+		assertEquals("COUNT 34 16", events.get(2));
+		assertEquals("load SAMPLE H2", events.get(3));
+		assertEquals("connection", events.get(events.size() - 2));
+		assertEquals("COUNT -1 12", events.get(events.size() - 1));
+	}
+
+	@Test
+	void testReload() throws Exception {
+		URL changed = writeDataFile(sampleLines().stream().filter(line -> !line.contains("\t6112\t"))
+				.collect(Collectors.toList()));
+
+		for (LocalityStore.Engine engine : LocalityStore.Engine.values()) {
+			LocalityStore store = closing(new LocalityStore("SAMPLE", engine));
+			store.setQueryCacheSize(1000);
+			assertEquals(12, store.count("6112"));
+			try (Stream<Map<String, String>> before = store.search("6112")) {
+				store.reload(changed);
+				// streams opened before the reload keep reading the previous data
+				assertEquals(12, before.count());
+			}
+			assertEquals(0, store.count("6112"));
+			assertEquals(4, store.count("6111"));
+			assertEquals(0, store.lookupPostcodes(Arrays.asList("6112")).get("6112").size());
+			store.reloadAsync(SAMPLE_TXT).get();
+			assertEquals(12, store.count("6112"));
+			assertEquals(12, store.prefixSearch("postal_code", "6112", 20).count());
+			store.dispose();
+		}
+	}
+
+	@Test
+	void testReloadDuringQueries() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (LocalityStore store = new LocalityStore("SAMPLE", true)) {
+			AtomicBoolean reloading = new AtomicBoolean(true);
+			List<CompletableFuture<Void>> queries = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				queries.add(CompletableFuture.runAsync(() -> {
+					while (reloading.get()) {
+						// terms with wildcards are answered by H2, from the data table of the snapshot they started on
+						assertEquals(5, store.count("d_le"));
+						try (Stream<Map<String, String>> stream = store.search("d_le")) {
+							assertEquals(5, stream.count());
+						}
+					}
+				}, executor));
+			}
+			for (int i = 0; i < 20; i++) {
+				store.reload(SAMPLE_TXT);
+			}
+			reloading.set(false);
+			for (CompletableFuture<Void> query : queries) {
+				query.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	void testLoader() throws Exception {
+		try (LocalityLoader loader = new LocalityLoader(Arrays.asList("SAMPLE", "FOO"),
+				LocalityStore.Engine.COLUMNAR)) {
+			loader.setWarmUp(Arrays.asList("dale", "6112"), 3);
+			assertFalse(loader.isReady());
+			assertEquals(LoadStatus.State.PENDING, loader.getStatus().get("SAMPLE").getState());
+
+			// concurrent first callers share a single load
+			List<CompletableFuture<LocalityStore>> callers = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				callers.add(CompletableFuture.supplyAsync(() -> loader.get("SAMPLE")));
+			}
+			LocalityStore store = callers.get(0).get();
+			for (CompletableFuture<LocalityStore> caller : callers) {
+				assertSame(store, caller.get());
+			}
+			assertEquals(5, store.count("dale"));
+			LoadStatus status = loader.getStatus().get("SAMPLE");
+			assertTrue(status.isReady());
+			assertEquals(34, status.getSize());
+			assertTrue(loader.isReady("SAMPLE"));
+			assertFalse(loader.isReady());
+			assertEquals(LoadStatus.State.PENDING, loader.getStatus().get("FOO").getState());
+
+			loader.loadAll().get();
+			assertEquals(LoadStatus.State.FAILED, loader.getStatus().get("FOO").getState());
+			assertTrue(loader.getStatus().get("FOO").getFailure() instanceof IllegalStateException);
+			assertThrows(IllegalStateException.class, () -> loader.get("FOO"));
+			assertThrows(IllegalArgumentException.class, () -> loader.get("US"));
+			assertFalse(loader.isReady());
+			assertSame(store, loader.get("SAMPLE"));
+		}
+
+		try (LocalityLoader loader = new LocalityLoader(Arrays.asList("SAMPLE"), LocalityStore.Engine.H2)) {
+			loader.loadAll().get();
+			assertTrue(loader.isReady());
+			assertEquals(12, loader.get("SAMPLE").count("6112"));
+		}
+	}
+
+	@Test
+	void testIrregularLines() throws Exception {
+		List<String> lines = sampleLines();
+		// CRLF line ends, a short line in the middle, and a short last line without a line end
+		String text = String.join("\r\n", lines.subList(0, 10)) + "\r\nAU\t9998\tShortfield\r\n"
+				+ String.join("\r\n", lines.subList(10, lines.size())) + "\r\nAU\t9999\tShortville";
+		URL irregular = writeDataFile(text.getBytes(StandardCharsets.UTF_8));
+
+		for (LocalityStore.Engine engine : LocalityStore.Engine.values()) {
+			LocalityStore store = closing(new LocalityStore("SAMPLE", engine));
+			store.reload(irregular);
+			assertEquals(36, store.count(""), engine.name());
+			for (String name : Arrays.asList("Shortfield", "Shortville")) {
+				Map<String, String> row;
+				try (Stream<Map<String, String>> stream = store.search(name)) {
+					row = stream.findFirst().get();
+				}
+				assertEquals(name, row.get("place_name"));
+				for (String column : LocalityStore.COLUMNS.subList(3, LocalityStore.COLUMNS.size())) {
+					assertEquals("", row.get(column), engine + " " + column);
+				}
+			}
+			try (Stream<Map<String, String>> stream = store.search("Harrisdale")) {
+				assertEquals("4", stream.findFirst().get().get("accuracy"));
+			}
+			store.dispose();
+		}
+	}
+
 	@Test
 	void testMissingCountryCode() {
-		LocalityStore store = new LocalityStore("FOO");
+		LocalityStore store = closing(new LocalityStore("FOO"));
 		try (final Stream<Map<String, String>> stream = store.search("bar")) {
 			List<Map<String, String>> results = stream.limit(1).collect(Collectors.toList());
 			assertEquals(0, results.size());
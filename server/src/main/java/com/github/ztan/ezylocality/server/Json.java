@@ -0,0 +1,72 @@
+package com.github.ztan.ezylocality.server;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Writes the few JSON shapes the server responds with: strings, numbers and objects of string values.
+ */
+final class Json {
+
+	private Json() {
+	}
+
+	static void writeString(String text, Appendable out) throws IOException {
+		out.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '"':
+					out.append("\\\"");
+					break;
+				case '\\':
+					out.append("\\\\");
+					break;
+				case '\n':
+					out.append("\\n");
+					break;
+				case '\r':
+					out.append("\\r");
+					break;
+				case '\t':
+					out.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						out.append(String.format("\\u%04x", (int) c));
+					} else {
+						out.append(c);
+					}
+			}
+		}
+		out.append('"');
+	}
+
+	/**
+	 * Writes a row as an object, its values as strings like they are returned by the store.
+	 */
+	static void writeObject(Map<String, String> row, Appendable out) throws IOException {
+		out.append('{');
+		boolean first = true;
+		for (Map.Entry<String, String> entry : row.entrySet()) {
+			if (!first) {
+				out.append(',');
+			}
+			first = false;
+			writeString(entry.getKey(), out);
+			out.append(':');
+			writeString(entry.getValue(), out);
+		}
+		out.append('}');
+	}
+
+	static String error(String message) {
+		StringBuilder out = new StringBuilder("{\"error\":");
+		try {
+			writeString(message == null ? "" : message, out);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return out.append('}').toString();
+	}
+}
@@ -0,0 +1,149 @@
+package com.github.ztan.ezylocality.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A lookup requested from the server, e.g. <code>/search?country=AU&amp;q=dale&amp;limit=10</code>. Parameters may be
+ * given in any order; repeated parameters, like <code>postcode</code>, keep the order they were given in.
+ */
+final class LocalityRequest {
+
+	static final Set<String> ENDPOINTS = Collections.unmodifiableSet(
+			new HashSet<>(Arrays.asList("search", "count", "postcodes", "nearest")));
+
+	private final String endpoint;
+	private final SortedMap<String, List<String>> parameters;
+
+	private LocalityRequest(String endpoint, SortedMap<String, List<String>> parameters) {
+		this.endpoint = endpoint;
+		this.parameters = parameters;
+	}
+
+	/**
+	 * @param path     the path of the request, e.g. <code>/search</code>
+	 * @param rawQuery the URL encoded query string, may be <code>null</code>
+	 * @return the request, or <code>null</code> when the path is not one of the {@link #ENDPOINTS}
+	 */
+	static LocalityRequest parse(String path, String rawQuery) {
+		String endpoint = path.startsWith("/") ? path.substring(1) : path;
+		if (!ENDPOINTS.contains(endpoint)) {
+			return null;
+		}
+		SortedMap<String, List<String>> parameters = new TreeMap<>();
+		if (rawQuery != null) {
+			for (String pair : rawQuery.split("&")) {
+				if (pair.isEmpty()) {
+					continue;
+				}
+				int equals = pair.indexOf('=');
+				String name = decode(equals < 0 ? pair : pair.substring(0, equals));
+				String value = equals < 0 ? "" : decode(pair.substring(equals + 1));
+				parameters.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+			}
+		}
+		return new LocalityRequest(endpoint, parameters);
+	}
+
+	private static String decode(String text) {
+		try {
+			return URLDecoder.decode(text, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException(ex);
+		} catch (IllegalArgumentException ex) {
+			throw new IllegalArgumentException("Invalid query string.", ex);
+		}
+	}
+
+	String endpoint() {
+		return this.endpoint;
+	}
+
+	/**
+	 * @return the canonical form of the request, the same for requests differing only in the order of their
+	 * parameters
+	 */
+	String key() {
+		return this.endpoint + "?" + this.parameters;
+	}
+
+	/**
+	 * @return the upper case country code
+	 * @throws IllegalArgumentException if the parameter is missing
+	 */
+	String country() {
+		return get("country").toUpperCase(Locale.ROOT);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the parameter is missing or repeated
+	 */
+	String get(String name) {
+		List<String> values = this.parameters.get(name);
+		if (values == null) {
+			throw new IllegalArgumentException("Missing parameter '" + name + "'.");
+		}
+		if (values.size() > 1) {
+			throw new IllegalArgumentException("Parameter '" + name + "' is repeated.");
+		}
+		return values.get(0);
+	}
+
+	/**
+	 * @return all the values of a parameter, in the order given, empty when it is missing
+	 */
+	List<String> getAll(String name) {
+		return this.parameters.getOrDefault(name, Collections.emptyList());
+	}
+
+	boolean has(String name) {
+		return this.parameters.containsKey(name);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the value is not a non-negative integer
+	 */
+	int getInt(String name, int defaultValue) {
+		if (!has(name)) {
+			return defaultValue;
+		}
+		try {
+			int value = Integer.parseInt(get(name));
+			if (value >= 0) {
+				return value;
+			}
+		} catch (NumberFormatException ex) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Parameter '" + name + "' must be a non-negative integer.");
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the parameter is missing or not a number
+	 */
+	double getDouble(String name) {
+		try {
+			return Double.parseDouble(get(name));
+		} catch (NumberFormatException ex) {
+			throw new IllegalArgumentException("Parameter '" + name + "' must be a number.");
+		}
+	}
+
+	boolean getBoolean(String name) {
+		return has(name) && !"false".equalsIgnoreCase(get(name));
+	}
+
+	@Override
+	public String toString() {
+		return key();
+	}
+}
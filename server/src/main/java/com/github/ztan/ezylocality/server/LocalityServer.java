@@ -0,0 +1,419 @@
+package com.github.ztan.ezylocality.server;
+
+import com.github.ztan.ezylocality.core.LoadStatus;
+import com.github.ztan.ezylocality.core.Locality;
+import com.github.ztan.ezylocality.core.LocalityExecutors;
+import com.github.ztan.ezylocality.core.LocalityLoader;
+import com.github.ztan.ezylocality.core.LocalityStore;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A lookup server answering locality queries as JSON over HTTP, so that the services of a host share one warm copy of
+ * the data instead of each loading their own. It runs on the HTTP server of the JDK and needs nothing else.
+ * <p>
+ * Endpoints, all taking the ISO 3166-1 code of a served country as <code>country</code>:
+ * <ul>
+ * <li><code>GET /search?q=dale&amp;limit=10&amp;rank=true</code>: an array of the matching localities, as returned by
+ * {@link LocalityStore#search(String, boolean)}. Searches without a limit, or with a limit above
+ * {@value #COALESCED_LIMIT}, are streamed to the client as the rows are found.</li>
+ * <li><code>GET /count?q=dale</code>: <code>{"count":5}</code></li>
+ * <li><code>GET /postcodes?postcode=6111&amp;postcode=6112</code>: an object mapping each postcode to the array of
+ * its localities</li>
+ * <li><code>GET /nearest?lat=-32.1&amp;lon=115.9&amp;limit=10</code>: an array of the nearest localities, closest
+ * first</li>
+ * <li><code>POST /batch</code>: a body of one of the requests above per line, e.g.
+ * <code>/count?country=AU&amp;q=dale</code>, answered with an array of their responses in the same order. A request
+ * of the batch which fails is answered with <code>{"error":"..."}</code>. Searches of a batch are buffered, so they
+ * must have a limit of at most {@value #COALESCED_LIMIT}.</li>
+ * <li><code>GET /status</code>, without a country: the load status of every served country, answered with 503 until
+ * all of them are ready</li>
+ * </ul>
+ * Identical requests arriving while the first of them is being answered share its response, except for streamed
+ * searches. Countries are loaded by a {@link LocalityLoader}, on the first request for them unless
+ * {@link LocalityLoader#loadAll()} is called, and kept until the server is closed. Requests run on virtual threads when
+ * the Java runtime has them, and on a pool of daemon threads otherwise.
+ *
+ * @author ztan
+ */
+public final class LocalityServer implements AutoCloseable {
+
+	private static final Logger log = Logger.getLogger(LocalityServer.class.getName());
+
+	/**
+	 * The largest number of search results which are buffered and shared by identical requests; larger searches are
+	 * streamed.
+	 */
+	static final int COALESCED_LIMIT = 1000;
+
+	/**
+	 * The largest number of requests in a batch.
+	 */
+	static final int MAX_BATCH_SIZE = 1000;
+
+	static final int DEFAULT_PORT = 7070;
+
+	private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Set<String> countries;
+	private final LocalityLoader loader;
+	private final RequestCoalescer coalescer = new RequestCoalescer();
+
+	/**
+	 * Creates a server on a port of the loopback interface, serving every supported country with the columnar engine.
+	 *
+	 * @param port the port, or 0 for any free port
+	 * @throws IOException if the port cannot be bound
+	 * @see LocalityStore#supportedCountries()
+	 */
+	public LocalityServer(int port) throws IOException {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), LocalityStore.Engine.COLUMNAR,
+				LocalityStore.supportedCountries());
+	}
+
+	/**
+	 * Creates a server. Requests for other countries than the given ones are answered with 404.
+	 *
+	 * @param address   the address to bind to
+	 * @param engine    the query engine of the stores
+	 * @param countries the codes of the countries to serve
+	 * @throws IOException if the address cannot be bound
+	 */
+	public LocalityServer(InetSocketAddress address, LocalityStore.Engine engine, Set<String> countries)
+			throws IOException {
+		this.countries = Collections.unmodifiableSet(countries.stream().map(c -> c.toUpperCase(Locale.ROOT))
+				.collect(Collectors.toSet()));
+		this.loader = new LocalityLoader(this.countries, engine);
+		this.executor = LocalityExecutors.newExecutor("ezy-locality-server");
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/", this::handle);
+	}
+
+	/**
+	 * Starts accepting requests.
+	 */
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * @return the address the server is bound to, e.g. to find the port chosen for port 0
+	 */
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	/**
+	 * @return the loader of the served countries, e.g. to load them all up front or to set their warm-up queries
+	 */
+	public LocalityLoader getLoader() {
+		return this.loader;
+	}
+
+	/**
+	 * @return the number of requests which were answered with the response of an identical request in flight
+	 */
+	public long getCoalescedCount() {
+		return this.coalescer.coalescedCount();
+	}
+
+	/**
+	 * Stops the server, and releases the stores it loaded.
+	 */
+	@Override
+	public void close() {
+		this.server.stop(0);
+		this.executor.shutdown();
+		this.loader.close();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			URI uri = exchange.getRequestURI();
+			if ("/batch".equals(uri.getPath())) {
+				checkMethod(exchange, "POST");
+				batch(exchange);
+				return;
+			}
+			if ("/status".equals(uri.getPath())) {
+				checkMethod(exchange, "GET");
+				send(exchange, this.loader.isReady() ? 200 : 503, status().getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			LocalityRequest request = LocalityRequest.parse(uri.getPath(), uri.getRawQuery());
+			if (request == null) {
+				throw new HttpException(404, "Unknown endpoint '" + uri.getPath() + "'.");
+			}
+			checkMethod(exchange, "GET");
+			if (isStreamed(request)) {
+				int limit = request.getInt("limit", Integer.MAX_VALUE);
+				try (Stream<Map<String, String>> results = store(request.country()).search(request.get("q"),
+						request.getBoolean("rank"))) {
+					exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+					// a length of 0 selects chunked encoding
+					exchange.sendResponseHeaders(200, 0);
+					try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(),
+							StandardCharsets.UTF_8))) {
+						writeArray(results.limit(limit), out);
+					}
+				}
+			} else {
+				send(exchange, 200, answer(request));
+			}
+		} catch (HttpException ex) {
+			sendError(exchange, ex.status, ex.getMessage());
+		} catch (IllegalArgumentException ex) {
+			sendError(exchange, 400, ex.getMessage());
+		} catch (IOException ex) {
+			// the client went away
+			log.log(Level.FINE, "Cannot respond to " + exchange.getRequestURI() + ".", ex);
+		} catch (RuntimeException ex) {
+			log.log(Level.SEVERE, "Cannot answer " + exchange.getRequestURI() + ".", ex);
+			sendError(exchange, 500, "Internal error.");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void checkMethod(HttpExchange exchange, String method) {
+		if (!method.equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Allow", method);
+			throw new HttpException(405, "Use " + method + " for " + exchange.getRequestURI().getPath() + ".");
+		}
+	}
+
+	private static boolean isStreamed(LocalityRequest request) {
+		return request.endpoint().equals("search") && request.getInt("limit", Integer.MAX_VALUE) > COALESCED_LIMIT;
+	}
+
+	/**
+	 * @return the response to a request, computed once for the identical requests in flight
+	 */
+	private byte[] answer(LocalityRequest request) {
+		LocalityStore store = store(request.country());
+		return this.coalescer.get(request.key(), () -> {
+			StringBuilder out = new StringBuilder();
+			try {
+				write(store, request, out);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			return out.toString().getBytes(StandardCharsets.UTF_8);
+		});
+	}
+
+	private static void write(LocalityStore store, LocalityRequest request, Appendable out) throws IOException {
+		switch (request.endpoint()) {
+			case "search":
+				try (Stream<Map<String, String>> results = store.search(request.get("q"), request.getBoolean("rank"))) {
+					writeArray(results.limit(request.getInt("limit", Integer.MAX_VALUE)), out);
+				}
+				break;
+			case "count":
+				out.append("{\"count\":").append(Integer.toString(store.count(request.get("q")))).append('}');
+				break;
+			case "postcodes":
+				out.append('{');
+				boolean first = true;
+				for (Map.Entry<String, List<Locality>> entry : store.lookupPostcodes(request.getAll("postcode"))
+						.entrySet()) {
+					if (!first) {
+						out.append(',');
+					}
+					first = false;
+					Json.writeString(entry.getKey(), out);
+					out.append(':');
+					writeArray(entry.getValue().stream().map(Locality::toMap), out);
+				}
+				out.append('}');
+				break;
+			case "nearest":
+				writeArray(store.nearest(request.getDouble("lat"), request.getDouble("lon"),
+						request.getInt("limit", 10)), out);
+				break;
+			default:
+				throw new IllegalStateException(request.endpoint());
+		}
+	}
+
+	private static void writeArray(Stream<Map<String, String>> rows, Appendable out) throws IOException {
+		out.append('[');
+		boolean first = true;
+		for (Map<String, String> row : (Iterable<Map<String, String>>) rows::iterator) {
+			if (!first) {
+				out.append(',');
+			}
+			first = false;
+			Json.writeObject(row, out);
+		}
+		out.append(']');
+	}
+
+	/**
+	 * Answers the requests of a batch in parallel, and streams their responses in the order of the requests.
+	 */
+	private void batch(HttpExchange exchange) throws IOException {
+		List<String> lines = new ArrayList<>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+				StandardCharsets.UTF_8))) {
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				if (!line.trim().isEmpty()) {
+					lines.add(line.trim());
+				}
+				if (lines.size() > MAX_BATCH_SIZE) {
+					throw new IllegalArgumentException("A batch holds at most " + MAX_BATCH_SIZE + " requests.");
+				}
+			}
+		}
+		List<CompletableFuture<byte[]>> responses = new ArrayList<>(lines.size());
+		for (String line : lines) {
+			responses.add(CompletableFuture.supplyAsync(() -> answerLine(line), this.executor));
+		}
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write('[');
+			for (int i = 0; i < responses.size(); i++) {
+				if (i > 0) {
+					out.write(',');
+				}
+				out.write(responses.get(i).join());
+			}
+			out.write(']');
+		}
+	}
+
+	/**
+	 * @return the response to a request of a batch, or an error object when it fails
+	 */
+	private byte[] answerLine(String line) {
+		try {
+			URI uri = new URI(line);
+			LocalityRequest request = LocalityRequest.parse(uri.getPath() == null ? "" : uri.getPath(),
+					uri.getRawQuery());
+			if (request == null) {
+				throw new IllegalArgumentException("Unknown endpoint '" + uri.getPath() + "'.");
+			}
+			if (isStreamed(request)) {
+				throw new IllegalArgumentException("A search in a batch needs a limit of at most " + COALESCED_LIMIT
+						+ ".");
+			}
+			return answer(request);
+		} catch (URISyntaxException ex) {
+			return Json.error("Invalid request '" + line + "'.").getBytes(StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException | HttpException ex) {
+			return Json.error(ex.getMessage()).getBytes(StandardCharsets.UTF_8);
+		} catch (RuntimeException ex) {
+			log.log(Level.SEVERE, "Cannot answer " + line + ".", ex);
+			return Json.error("Internal error.").getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * @return the store of a served country, loaded on first use
+	 */
+	private LocalityStore store(String country) {
+		if (!this.countries.contains(country)) {
+			throw new HttpException(404, "Country '" + country + "' is not served.");
+		}
+		try {
+			return this.loader.get(country);
+		} catch (IllegalStateException ex) {
+			throw new HttpException(503, ex.getMessage());
+		}
+	}
+
+	private String status() {
+		StringBuilder out = new StringBuilder("{\"ready\":").append(this.loader.isReady()).append(",\"countries\":{");
+		boolean first = true;
+		for (LoadStatus status : this.loader.getStatus().values()) {
+			if (!first) {
+				out.append(',');
+			}
+			first = false;
+			out.append('"').append(status.getCountryCode()).append("\":{\"state\":\"").append(status.getState())
+					.append("\",\"size\":").append(status.getSize())
+					.append(",\"load_time_millis\":").append(status.getLoadTimeMillis())
+					.append(",\"warm_up_time_millis\":").append(status.getWarmUpTimeMillis()).append('}');
+		}
+		return out.append("}}").toString();
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+		exchange.sendResponseHeaders(status, body.length);
+		exchange.getResponseBody().write(body);
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		if (exchange.getResponseCode() >= 0) {
+			// the response has started, so the client only sees it cut short
+			return;
+		}
+		send(exchange, status, Json.error(message).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Runs a server on the loopback interface until the process is stopped.
+	 *
+	 * @param args the port, {@value #DEFAULT_PORT} by default, and optionally a comma separated list of the countries
+	 *             to serve, all the supported ones by default
+	 */
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		Set<String> countries = args.length > 1 ? new HashSet<>(Arrays.asList(args[1].split(",")))
+				: LocalityStore.supportedCountries();
+		LocalityServer server = new LocalityServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+				LocalityStore.Engine.COLUMNAR, countries);
+		Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+		server.start();
+		// serves the countries already loaded while the others load, /status telling when all are ready
+		server.getLoader().loadAll();
+		log.info("Serving " + server.countries.size() + " countries on http://" + server.getAddress().getHostString()
+				+ ":" + server.getAddress().getPort() + "/");
+	}
+
+	/**
+	 * Fails a request with an HTTP status other than 400.
+	 */
+	private static final class HttpException extends RuntimeException {
+
+		private final int status;
+
+		HttpException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.github.ztan.ezylocality.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Runs identical requests arriving while the first of them is still being answered only once, handing its response
+ * to all of them. Responses are not kept once answered, so every request sees data at least as recent as its own
+ * arrival.
+ */
+final class RequestCoalescer {
+
+	private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * @param key    the canonical form of the request
+	 * @param answer computes the response on the calling thread, when no identical request is in flight
+	 * @return the response, shared with the identical requests in flight
+	 * @throws RuntimeException the exception thrown by the shared computation
+	 */
+	byte[] get(String key, Supplier<byte[]> answer) {
+		CompletableFuture<byte[]> future = new CompletableFuture<>();
+		CompletableFuture<byte[]> existing = this.inFlight.putIfAbsent(key, future);
+		if (existing != null) {
+			this.coalesced.incrementAndGet();
+			try {
+				return existing.join();
+			} catch (CompletionException ex) {
+				throw ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+			}
+		}
+		try {
+			byte[] response = answer.get();
+			future.complete(response);
+			return response;
+		} catch (RuntimeException | Error ex) {
+			future.completeExceptionally(ex);
+			throw ex;
+		} finally {
+			this.inFlight.remove(key, future);
+		}
+	}
+
+	/**
+	 * @return the number of requests which were answered with the response of an identical request
+	 */
+	long coalescedCount() {
+		return this.coalesced.get();
+	}
+}
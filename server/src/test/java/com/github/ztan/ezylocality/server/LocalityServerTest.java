@@ -0,0 +1,152 @@
+package com.github.ztan.ezylocality.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import com.github.ztan.ezylocality.core.LocalityStore;
+import org.junit.jupiter.api.Test;
+
+public class LocalityServerTest {
+
+	@Test
+	void testLookups() throws Exception {
+		try (LocalityServer server = new LocalityServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				LocalityStore.Engine.COLUMNAR, Collections.singleton("SAMPLE"))) {
+			server.start();
+			assertEquals("{\"ready\":false,\"countries\":{\"SAMPLE\":{\"state\":\"PENDING\",\"size\":0,"
+					+ "\"load_time_millis\":0,\"warm_up_time_millis\":0}}}", get(server, "/status", 503));
+			assertEquals("{\"count\":5}", get(server, "/count?country=sample&q=dale", 200));
+			assertTrue(get(server, "/status", 200).startsWith("{\"ready\":true,\"countries\":{\"SAMPLE\":"
+					+ "{\"state\":\"READY\",\"size\":34,"));
+
+			String page = get(server, "/search?country=SAMPLE&q=dale&limit=2", 200);
+			assertTrue(page.startsWith("[{\"country_code\":\"AU\",\"postal_code\":\"6112\",\"place_name\":\"Harrisdale\""),
+					page);
+			assertEquals(2, occurrences(page, "\"place_name\""));
+
+			HttpURLConnection streamed = open(server, "/search?country=SAMPLE&q=dale");
+			assertEquals("chunked", streamed.getHeaderField("Transfer-Encoding"));
+			assertEquals(5, occurrences(read(streamed.getInputStream()), "\"place_name\""));
+
+			String postcodes = get(server, "/postcodes?country=SAMPLE&postcode=6112&postcode=9999", 200);
+			assertTrue(postcodes.startsWith("{\"6112\":[{"), postcodes);
+			assertTrue(postcodes.endsWith(",\"9999\":[]}"), postcodes);
+			assertEquals(12, occurrences(postcodes, "\"place_name\""));
+
+			String nearest = get(server, "/nearest?country=SAMPLE&lat=-32.1108&lon=115.9356&limit=3", 200);
+			assertTrue(nearest.contains("\"place_name\":\"Harrisdale\""), nearest);
+			assertEquals(3, occurrences(nearest, "\"distance\""));
+
+			assertEquals("{\"error\":\"Country 'FOO' is not served.\"}", get(server, "/count?country=FOO&q=a", 404));
+			get(server, "/lookup?country=SAMPLE", 404);
+			assertEquals("{\"error\":\"Missing parameter 'q'.\"}", get(server, "/count?country=SAMPLE", 400));
+			get(server, "/nearest?country=SAMPLE&lat=north&lon=1", 400);
+			assertEquals(405, post(server, "/count?country=SAMPLE&q=a", "").getResponseCode());
+		}
+	}
+
+	@Test
+	void testBatch() throws Exception {
+		try (LocalityServer server = new LocalityServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				LocalityStore.Engine.COLUMNAR, Collections.singleton("SAMPLE"))) {
+			server.start();
+			HttpURLConnection connection = post(server, "/batch",
+					"/count?country=SAMPLE&q=dale\n\n/count?country=SAMPLE&q=mount\n/count?country=FOO&q=dale\n"
+							+ "/search?country=SAMPLE&q=dale\n/search?country=SAMPLE&q=bryan&limit=1\n");
+			assertEquals(200, connection.getResponseCode());
+			String responses = read(connection.getInputStream());
+			assertTrue(responses.startsWith("[{\"count\":5},{\"count\":3},{\"error\":\"Country 'FOO' is not served.\"},"
+					+ "{\"error\":\"A search in a batch needs a limit of at most 1000.\"},[{\"country_code\":\"AU\""),
+					responses);
+			assertTrue(responses.endsWith("}]]"), responses);
+			assertEquals(405, open(server, "/batch").getResponseCode());
+		}
+	}
+
+	@Test
+	void testCoalescing() throws Exception {
+		RequestCoalescer coalescer = new RequestCoalescer();
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		byte[] response = new byte[0];
+		CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> coalescer.get("count?{q=[dale]}", () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ex) {
+				throw new IllegalStateException(ex);
+			}
+			return response;
+		}));
+		started.await();
+		CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> coalescer.get("count?{q=[dale]}",
+				() -> new byte[1]));
+		while (coalescer.coalescedCount() == 0) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		assertSame(response, first.get());
+		assertSame(response, second.get());
+		// nothing is kept once answered
+		assertEquals(1, coalescer.get("count?{q=[dale]}", () -> new byte[1]).length);
+		assertEquals(1, coalescer.coalescedCount());
+
+		assertEquals(LocalityRequest.parse("/search", "q=dale&country=AU").key(),
+				LocalityRequest.parse("/search", "country=AU&q=dale").key());
+	}
+
+	private static HttpURLConnection open(LocalityServer server, String path) throws IOException {
+		return (HttpURLConnection) new URL("http", server.getAddress().getHostString(), server.getAddress().getPort(),
+				path).openConnection();
+	}
+
+	private static String get(LocalityServer server, String path, int status) throws IOException {
+		HttpURLConnection connection = open(server, path);
+		assertEquals(status, connection.getResponseCode(), path);
+		assertEquals("application/json; charset=utf-8", connection.getContentType());
+		return read(status == 200 ? connection.getInputStream() : connection.getErrorStream());
+	}
+
+	private static HttpURLConnection post(LocalityServer server, String path, String body) throws IOException {
+		HttpURLConnection connection = open(server, path);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		try (OutputStream out = connection.getOutputStream()) {
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		return connection;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (InputStream input = in) {
+			byte[] buffer = new byte[8192];
+			for (int n = input.read(buffer); n > 0; n = input.read(buffer)) {
+				bytes.write(buffer, 0, n);
+			}
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static int occurrences(String text, String part) {
+		int count = 0;
+		for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+}